@@ -0,0 +1,130 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ext.javax.sip.benchmarks;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.selective.SelectiveSIPRequest;
+import gov.nist.javax.sip.message.selective.SelectiveSIPResponse;
+import gov.nist.javax.sip.parser.StringMsgParser;
+import gov.nist.javax.sip.parser.chars.CharsMsgParser;
+import gov.nist.javax.sip.parser.selective.SelectiveCharParser;
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encodes messages of the {@link MessageCorpus} parsed by the different parsers, 
+ * as a String and as the bytes sent on the wire. 
+ * Run with <code>-prof gc</code> to get the bytes allocated per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+
+	@Param({MessageCorpus.INVITE_SDP, MessageCorpus.OK_RECORD_ROUTE, MessageCorpus.REGISTER_CONTACTS, 
+		MessageCorpus.IMS_INVITE})
+	String message;
+
+	SipStackImpl sipStack;
+	SIPMessage charsMessage;
+	SIPMessage selectiveMessage;
+	SIPMessage stringMessage;
+	ByteBuffer encodeBuffer;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		byte[] buffer = MessageCorpus.get(message);
+		Properties properties = new Properties();
+		properties.setProperty("javax.sip.STACK_NAME", "benchmark");
+		properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+		sipStack = new SipStackImpl(properties);
+		charsMessage = new CharsMsgParser().parseSIPMessage(buffer, true, false, ParseBenchmark.LENIENT);
+		selectiveMessage = new SelectiveCharParser(sipStack, properties).parseSIPMessage(buffer, true, false, ParseBenchmark.LENIENT);
+		stringMessage = new StringMsgParser().parseSIPMessage(buffer, true, false, ParseBenchmark.LENIENT);
+		encodeBuffer = ByteBuffer.allocate(buffer.length * 2);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		sipStack.stop();
+	}
+
+	@Benchmark
+	public String encodeCharsMessage() {
+		return charsMessage.encode();
+	}
+
+	@Benchmark
+	public byte[] encodeCharsMessageAsBytes() {
+		return charsMessage.encodeAsBytes("UDP");
+	}
+
+	@Benchmark
+	public String encodeSelectiveMessage() {
+		return selectiveMessage.encode();
+	}
+
+	@Benchmark
+	public byte[] encodeSelectiveMessageAsBytes() {
+		return selectiveMessage.encodeAsBytes("UDP");
+	}
+
+	@Benchmark
+	public ByteBuffer encodeSelectiveMessageToBuffer() {
+		encodeBuffer.clear();
+		if (selectiveMessage instanceof SelectiveSIPRequest) {
+			return ((SelectiveSIPRequest) selectiveMessage).encodeAsBytes("UDP", encodeBuffer);
+		}
+		return ((SelectiveSIPResponse) selectiveMessage).encodeAsBytes("UDP", encodeBuffer);
+	}
+
+	@Benchmark
+	public String encodeStringMessage() {
+		return stringMessage.encode();
+	}
+
+	@Benchmark
+	public byte[] encodeStringMessageAsBytes() {
+		return stringMessage.encodeAsBytes("UDP");
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ext.javax.sip.benchmarks;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Realistic SIP messages used by the benchmarks, Content-Length being computed from the body.
+ */
+public final class MessageCorpus {
+
+	public static final String INVITE_SDP = "invite-sdp";
+	public static final String OK_RECORD_ROUTE = "ok-record-route";
+	public static final String REGISTER_CONTACTS = "register-contacts";
+	public static final String IMS_INVITE = "ims-invite";
+	public static final String MALFORMED = "malformed";
+
+	private static final String SDP = 
+		"v=0\r\n" +
+		"o=alice 2890844526 2890844526 IN IP4 192.0.2.101\r\n" +
+		"s=-\r\n" +
+		"c=IN IP4 192.0.2.101\r\n" +
+		"t=0 0\r\n" +
+		"m=audio 49172 RTP/AVP 0 8 101\r\n" +
+		"a=rtpmap:0 PCMU/8000\r\n" +
+		"a=rtpmap:8 PCMA/8000\r\n" +
+		"a=rtpmap:101 telephone-event/8000\r\n" +
+		"a=fmtp:101 0-15\r\n" +
+		"a=ptime:20\r\n" +
+		"a=sendrecv\r\n";
+
+	private MessageCorpus() {
+	}
+
+	public static byte[] get(String name) {
+		if (INVITE_SDP.equals(name)) {
+			return message(
+				"INVITE sip:bob@biloxi.example.com SIP/2.0\r\n" +
+				"Via: SIP/2.0/UDP pc33.atlanta.example.com:5060;branch=z9hG4bK776asdhds;rport\r\n" +
+				"Max-Forwards: 70\r\n" +
+				"To: Bob <sip:bob@biloxi.example.com>\r\n" +
+				"From: Alice <sip:alice@atlanta.example.com>;tag=1928301774\r\n" +
+				"Call-ID: a84b4c76e66710@pc33.atlanta.example.com\r\n" +
+				"CSeq: 314159 INVITE\r\n" +
+				"Contact: <sip:alice@pc33.atlanta.example.com;transport=udp>\r\n" +
+				"Allow: INVITE, ACK, CANCEL, OPTIONS, BYE, REFER, NOTIFY, MESSAGE, SUBSCRIBE, INFO, UPDATE\r\n" +
+				"Supported: replaces, timer, 100rel\r\n" +
+				"User-Agent: Benchmark UA 1.0\r\n" +
+				"Session-Expires: 1800;refresher=uac\r\n" +
+				"Min-SE: 90\r\n" +
+				"Content-Type: application/sdp\r\n", SDP);
+		} else if (OK_RECORD_ROUTE.equals(name)) {
+			return message(
+				"SIP/2.0 200 OK\r\n" +
+				"Via: SIP/2.0/UDP proxy3.example.com:5060;branch=z9hG4bK721e4.1;received=192.0.2.3\r\n" +
+				"Via: SIP/2.0/UDP proxy2.example.com:5060;branch=z9hG4bK2d4790.1;received=192.0.2.2\r\n" +
+				"Via: SIP/2.0/UDP proxy1.example.com:5060;branch=z9hG4bK72a2.1;received=192.0.2.1\r\n" +
+				"Via: SIP/2.0/UDP pc33.atlanta.example.com:5060;branch=z9hG4bK776asdhds;received=192.0.2.101\r\n" +
+				"Record-Route: <sip:proxy3.example.com;lr>\r\n" +
+				"Record-Route: <sip:proxy2.example.com;lr;ftag=1928301774>\r\n" +
+				"Record-Route: <sip:proxy1.example.com;lr>, <sip:edge.example.com;lr;transport=tcp>\r\n" +
+				"To: Bob <sip:bob@biloxi.example.com>;tag=a6c85cf\r\n" +
+				"From: Alice <sip:alice@atlanta.example.com>;tag=1928301774\r\n" +
+				"Call-ID: a84b4c76e66710@pc33.atlanta.example.com\r\n" +
+				"CSeq: 314159 INVITE\r\n" +
+				"Contact: <sip:bob@192.0.2.4>\r\n" +
+				"Content-Type: application/sdp\r\n", SDP);
+		} else if (REGISTER_CONTACTS.equals(name)) {
+			StringBuilder register = new StringBuilder(
+				"REGISTER sip:registrar.biloxi.example.com SIP/2.0\r\n" +
+				"Via: SIP/2.0/TCP bobspc.biloxi.example.com:5060;branch=z9hG4bKnashds7\r\n" +
+				"Max-Forwards: 70\r\n" +
+				"To: Bob <sip:bob@biloxi.example.com>\r\n" +
+				"From: Bob <sip:bob@biloxi.example.com>;tag=456248\r\n" +
+				"Call-ID: 843817637684230@998sdasdh09\r\n" +
+				"CSeq: 1826 REGISTER\r\n");
+			for (int i = 0; i < 10; i++) {
+				register.append("Contact: <sip:bob@192.0.2.").append(10 + i)
+					.append(":5060;transport=tcp>;expires=3600;q=0.").append(i)
+					.append(";+sip.instance=\"<urn:uuid:00000000-0000-1000-8000-00000000000").append(i).append(">\"\r\n");
+			}
+			register.append("m: <sip:bob@[2001:db8::10]:5060>;expires=3600\r\n");
+			register.append("Expires: 7200\r\n");
+			return message(register.toString(), "");
+		} else if (IMS_INVITE.equals(name)) {
+			return message(
+				"INVITE tel:+15551234567 SIP/2.0\r\n" +
+				"Via: SIP/2.0/UDP [2001:db8::9:1]:5060;branch=z9hG4bKnashds7;comp=sigcomp\r\n" +
+				"Max-Forwards: 70\r\n" +
+				"Route: <sip:pcscf1.visited1.net:7531;lr;comp=sigcomp>, <sip:orig@scscf1.home1.net;lr>\r\n" +
+				"P-Preferred-Identity: \"John Doe\" <sip:user1_public1@home1.net>\r\n" +
+				"P-Asserted-Identity: \"John Doe\" <sip:user1_public1@home1.net>, <tel:+15559876543>\r\n" +
+				"P-Access-Network-Info: 3GPP-UTRAN-TDD; utran-cell-id-3gpp=234151D0FCE11\r\n" +
+				"P-Charging-Vector: icid-value=\"AyretyU0dm+6O2IrT5tAFrbHLso=023551024\";orig-ioi=home1.net\r\n" +
+				"P-Visited-Network-ID: \"Visited network number 1\"\r\n" +
+				"P-Called-Party-ID: <sip:user2_public1@home2.net>\r\n" +
+				"Privacy: none\r\n" +
+				"From: <sip:user1_public1@home1.net>;tag=171828\r\n" +
+				"To: <tel:+15551234567>\r\n" +
+				"Call-ID: cb03a0s09a2sdfglkj490333\r\n" +
+				"Cseq: 127 INVITE\r\n" +
+				"Require: sec-agree\r\n" +
+				"Proxy-Require: sec-agree\r\n" +
+				"Supported: precondition, 100rel, gruu\r\n" +
+				"Security-Verify: ipsec-3gpp; q=0.1; alg=hmac-sha-1-96; spi-c=98765432; spi-s=87654321; port-c=8642; port-s=7531\r\n" +
+				"Contact: <sip:[2001:db8::9:1]:7531;comp=sigcomp>;+g.3gpp.icsi-ref=\"urn%3Aurn-7%3A3gpp-service.ims.icsi.mmtel\"\r\n" +
+				"Accept-Contact: *;+g.3gpp.icsi-ref=\"urn%3Aurn-7%3A3gpp-service.ims.icsi.mmtel\"\r\n" +
+				"Content-Type: application/sdp\r\n", SDP);
+		} else if (MALFORMED.equals(name)) {
+			return message(
+				"OPTIONS sip:carol@chicago.example.com SIP/2.0\r\n" +
+				"Via: SIP/2.0/UDP pc33.atlanta.example.com;branch=z9hG4bKhjhs8ass877\r\n" +
+				"Max-Forwards: seventy\r\n" +
+				"To: <sip:carol@chicago.example.com\r\n" +
+				"From: Alice <sip:alice@atlanta.example.com>;tag=1928301774\r\n" +
+				"Call-ID: a84b4c76e66710\r\n" +
+				"CSeq: 63104 OPTIONS\r\n" +
+				"Subject: folded\r\n" +
+				" \t across lines\r\n" +
+				"Expires: tomorrow\r\n" +
+				"NoColonHere\r\n" +
+				"Contact: <sip:alice@pc33.atlanta.example.com>\r\n" +
+				"Accept: application/sdp\r\n", "");
+		}
+		throw new IllegalArgumentException("Unknown message " + name);
+	}
+
+	private static byte[] message(String headers, String body) {
+		try {
+			byte[] content = body.getBytes("UTF-8");
+			return (headers + "Content-Length: " + content.length + "\r\n\r\n" + body).getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ext.javax.sip.benchmarks;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.parser.MessageParser;
+import gov.nist.javax.sip.parser.ParseExceptionListener;
+import gov.nist.javax.sip.parser.StringMsgParser;
+import gov.nist.javax.sip.parser.chars.CharsMsgParser;
+import gov.nist.javax.sip.parser.selective.SelectiveCharParser;
+import gov.nist.javax.sip.parser.selective.SelectiveParser;
+
+import java.text.ParseException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses the messages of the {@link MessageCorpus} with the chars, selective chars, selective 
+ * and RI String parsers side by side. 
+ * Run with <code>-prof gc</code> to get the bytes allocated per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+	/**
+	 * Swallows the parse errors of the malformed messages so that the parsers keep going
+	 */
+	static final ParseExceptionListener LENIENT = new ParseExceptionListener() {
+		public void handleException(ParseException ex, SIPMessage sipMessage, Class headerClass, 
+				String headerText, String messageText) throws ParseException {
+		}
+	};
+
+	@Param({MessageCorpus.INVITE_SDP, MessageCorpus.OK_RECORD_ROUTE, MessageCorpus.REGISTER_CONTACTS, 
+		MessageCorpus.IMS_INVITE, MessageCorpus.MALFORMED})
+	String message;
+
+	byte[] buffer;
+	SipStackImpl sipStack;
+	MessageParser charsMsgParser;
+	MessageParser selectiveCharParser;
+	MessageParser selectiveParser;
+	MessageParser stringMsgParser;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		buffer = MessageCorpus.get(message);
+		Properties properties = new Properties();
+		properties.setProperty("javax.sip.STACK_NAME", "benchmark");
+		properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+		sipStack = new SipStackImpl(properties);
+		charsMsgParser = new CharsMsgParser();
+		selectiveCharParser = new SelectiveCharParser(sipStack, properties);
+		selectiveParser = new SelectiveParser(sipStack, properties);
+		stringMsgParser = new StringMsgParser();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		sipStack.stop();
+	}
+
+	@Benchmark
+	public SIPMessage charsMsgParser() throws ParseException {
+		return parse(charsMsgParser);
+	}
+
+	@Benchmark
+	public SIPMessage selectiveCharParser() throws ParseException {
+		return parse(selectiveCharParser);
+	}
+
+	@Benchmark
+	public SIPMessage selectiveParser() throws ParseException {
+		return parse(selectiveParser);
+	}
+
+	@Benchmark
+	public SIPMessage stringMsgParser() throws ParseException {
+		return parse(stringMsgParser);
+	}
+
+	private SIPMessage parse(MessageParser parser) throws ParseException {
+		try {
+			return parser.parseSIPMessage(buffer, true, false, LENIENT);
+		} catch (ParseException e) {
+			// malformed messages may be rejected as a whole, that's part of what is measured
+			return null;
+		}
+	}
+}
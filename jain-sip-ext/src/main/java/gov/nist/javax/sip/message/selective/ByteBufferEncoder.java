@@ -0,0 +1,151 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package gov.nist.javax.sip.message.selective;
+
+import gov.nist.core.GenericObject;
+import gov.nist.core.InternalErrorHandler;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes the parts of a message straight into a {@link ByteBuffer}. The buffer is grown when 
+ * it is too small, so every method returns the buffer to keep on writing to. 
+ * 
+ * Parsed headers only know how to encode themselves to a StringBuilder, a per thread builder 
+ * is reused for them and its chars are written without going through a String. 
+ * ASCII chars, which is what SIP headers are made of almost always, are copied as is when the 
+ * charset is ASCII compatible, anything else goes through a {@link CharsetEncoder}.
+ */
+public final class ByteBufferEncoder {
+
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int MIN_CAPACITY = 512;
+	// room left for headers added or modified since the message was received
+	private static final int GROWTH_ALLOWANCE = 256;
+
+	private static final ThreadLocal<StringBuilder> HEADER_ENCODING = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
+
+	private ByteBufferEncoder() {
+	}
+
+	/**
+	 * Allocates a buffer big enough for a message received with the given size.
+	 */
+	public static ByteBuffer allocate(int messageSize) {
+		return ByteBuffer.allocate(Math.max(MIN_CAPACITY, messageSize + GROWTH_ALLOWANCE));
+	}
+
+	/**
+	 * @return the buffer if it has enough room left, otherwise a bigger buffer holding the 
+	 * bytes written so far
+	 */
+	public static ByteBuffer ensureRemaining(ByteBuffer buffer, int needed) {
+		if (buffer.remaining() >= needed) {
+			return buffer;
+		}
+		int capacity = Math.max(buffer.capacity() << 1, buffer.position() + needed);
+		ByteBuffer grown = buffer.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		buffer.flip();
+		grown.put(buffer);
+		return grown;
+	}
+
+	public static ByteBuffer put(ByteBuffer buffer, byte[] bytes) {
+		buffer = ensureRemaining(buffer, bytes.length);
+		return buffer.put(bytes);
+	}
+
+	/**
+	 * Puts a header, or a request or status line.
+	 */
+	public static ByteBuffer put(ByteBuffer buffer, GenericObject header, Charset charset) {
+		StringBuilder encoding = HEADER_ENCODING.get();
+		encoding.setLength(0);
+		header.encode(encoding);
+		return put(buffer, encoding, charset);
+	}
+
+	public static ByteBuffer put(ByteBuffer buffer, CharSequence chars, Charset charset) {
+		int length = chars.length();
+		buffer = ensureRemaining(buffer, length);
+		if (isAsciiCompatible(charset)) {
+			for (int i = 0; i < length; i++) {
+				char c = chars.charAt(i);
+				if (c >= 0x80) {
+					return putEncoded(buffer, chars, i, charset);
+				}
+				buffer.put((byte) c);
+			}
+			return buffer;
+		}
+		return putEncoded(buffer, chars, 0, charset);
+	}
+
+	private static ByteBuffer putEncoded(ByteBuffer buffer, CharSequence chars, int from, Charset charset) {
+		CharsetEncoder encoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer in = CharBuffer.wrap(chars, from, chars.length());
+		int needed = (int) Math.ceil(in.remaining() * encoder.maxBytesPerChar());
+		buffer = ensureRemaining(buffer, needed);
+		CoderResult result = encoder.encode(in, buffer, true);
+		while (result.isOverflow()) {
+			buffer = ensureRemaining(buffer, buffer.capacity());
+			result = encoder.encode(in, buffer, true);
+		}
+		result = encoder.flush(buffer);
+		while (result.isOverflow()) {
+			buffer = ensureRemaining(buffer, buffer.capacity());
+			result = encoder.flush(buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * @return the charset of the message, UTF-8 if it isn't supported
+	 */
+	public static Charset forName(String charsetName) {
+		try {
+			return Charset.forName(charsetName);
+		} catch (IllegalArgumentException ex) {
+			InternalErrorHandler.handleException(ex);
+			return UTF8;
+		}
+	}
+
+	private static boolean isAsciiCompatible(Charset charset) {
+		String name = charset.name();
+		return "UTF-8".equals(name) || "ISO-8859-1".equals(name) || "US-ASCII".equals(name);
+	}
+}
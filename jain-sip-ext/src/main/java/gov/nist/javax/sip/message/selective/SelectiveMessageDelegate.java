@@ -22,72 +22,500 @@
 
 package gov.nist.javax.sip.message.selective;
 
+import gov.nist.javax.sip.header.ContentLength;
 import gov.nist.javax.sip.header.SIPHeader;
+import gov.nist.javax.sip.header.SIPHeaderNamesCache;
+import gov.nist.javax.sip.parser.chars.HeaderIds;
 import gov.nist.javax.sip.parser.chars.HeaderParser;
+import gov.nist.javax.sip.parser.chars.MessageIndex;
 import gov.nist.javax.sip.parser.chars.ParserFactory;
+import gov.nist.javax.sip.parser.selective.HeaderAccessStatistics;
+import gov.nist.javax.sip.parser.selective.HeadersToParse;
 import gov.nist.javax.sip.parser.selective.SelectiveMessage;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
 
 /**
+ * Keeps the headers of a message that were not parsed, in the order they were received and 
+ * duplicates included. They are stored as parallel arrays, allocated on the first header and 
+ * grown as needed : the lower case name of the header, and either the header in the index of 
+ * the buffer the message was received in, or the header line. Lines referencing the received 
+ * buffer are only decoded when accessed, and are re-emitted as they were received.
+ * 
+ * The message is written by the thread parsing it and then mostly read, all accesses are 
+ * synchronized on the delegate which is uncontended in the common case. A copy shares the 
+ * arrays with the delegate it was copied from, the first of them to add or remove a header 
+ * copies them, so cloning a message doesn't depend on the number of its headers not parsed.
+ * 
  * @author jean.deruelle@gmail.com
  *
  */
 public class SelectiveMessageDelegate implements SelectiveMessage {
 	
-	private Map<String, String> headersNotParsed = new ConcurrentHashMap<String, String>(0);
+	private static final int INITIAL_CAPACITY = 8;
+	private static final int NO_SLICE = -1;
+	
+	private int headerCount;
+	// lower case names, compact forms being stored under their full name
+	private String[] headerNames;
+	// header in the received index or NO_SLICE
+	private int[] headerSlices;
+	// header line terminated by '\n', decoded lazily for slices
+	private String[] headerLines;
+	// index the slices point into
+	private MessageIndex sliceIndex;
+	// the arrays are shared with a copy of this delegate or the delegate this one was copied from
+	private boolean shared;
+	
+	// index of the buffer the message was received in, null for messages created locally
+	private volatile MessageIndex messageIndex;
+	// lower case names of the headers modified, or possibly modified, since the message was received
+	private Set<String> headersModified;
+	private volatile boolean allHeadersModified;
+	// headers parsed when the message was received, the profile selected for its method or status
+	private volatile HeadersToParse headersToParse;
+	// statistics of the profile the message was received with, not carried over to clones
+	private HeaderAccessStatistics statistics;
+	// ids of the headers already counted as accessed for this message
+	private long headersAccessed;
+	private BitSet moreHeadersAccessed;
+	
+	public SelectiveMessageDelegate() {
+	}
+	
+	public SelectiveMessageDelegate(HeadersToParse headersToParse) {
+		this.headersToParse = headersToParse;
+	}
+	
+	/**
+	 * Copy the headers not parsed of another delegate, the arrays are shared until one of 
+	 * the delegates adds or removes a header
+	 */
+	public SelectiveMessageDelegate(SelectiveMessageDelegate other) {
+		synchronized (other) {
+			headerCount = other.headerCount;
+			if(headerCount > 0) {
+				headerNames = other.headerNames;
+				headerSlices = other.headerSlices;
+				headerLines = other.headerLines;
+				shared = true;
+				other.shared = true;
+			}
+			sliceIndex = other.sliceIndex;
+			messageIndex = other.messageIndex;
+			if(other.headersModified != null) {
+				headersModified = new HashSet<String>(other.headersModified);
+			}
+			allHeadersModified = other.allHeadersModified;
+			headersToParse = other.headersToParse;
+		}
+	}
+	
+	/**
+	 * Take a private copy of the arrays if they are shared, before changing them
+	 */
+	private void unshare(int capacity) {
+		if(shared) {
+			headerNames = Arrays.copyOf(headerNames, capacity);
+			headerSlices = Arrays.copyOf(headerSlices, capacity);
+			headerLines = Arrays.copyOf(headerLines, capacity);
+			shared = false;
+		}
+	}
+	
+	private void append(String headerName, int slice, String line) {
+		if(shared) {
+			unshare(Math.max(headerCount + 1, INITIAL_CAPACITY));
+		}
+		if(headerNames == null) {
+			headerNames = new String[INITIAL_CAPACITY];
+			headerSlices = new int[INITIAL_CAPACITY];
+			headerLines = new String[INITIAL_CAPACITY];
+		} else if(headerCount == headerNames.length) {
+			int capacity = headerCount << 1;
+			headerNames = Arrays.copyOf(headerNames, capacity);
+			headerSlices = Arrays.copyOf(headerSlices, capacity);
+			headerLines = Arrays.copyOf(headerLines, capacity);
+		}
+		headerNames[headerCount] = headerName;
+		headerSlices[headerCount] = slice;
+		headerLines[headerCount] = line;
+		headerCount++;
+	}
+	
+	private void remove(int header) {
+		unshare(headerCount);
+		int moved = headerCount - header - 1;
+		if(moved > 0) {
+			System.arraycopy(headerNames, header + 1, headerNames, header, moved);
+			System.arraycopy(headerSlices, header + 1, headerSlices, header, moved);
+			System.arraycopy(headerLines, header + 1, headerLines, header, moved);
+		}
+		headerCount--;
+		headerNames[headerCount] = null;
+		headerLines[headerCount] = null;
+	}
+	
+	private int indexOf(String headerName, int from) {
+		for (int i = from; i < headerCount; i++) {
+			if(headerName.equals(headerNames[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	private String getLine(int header) {
+		String line = headerLines[header];
+		if(line == null) {
+			line = new String(sliceIndex.getHeaderLine(headerSlices[header]));
+			// caching the decoded line is fine on shared arrays, it is the same for all the copies
+			headerLines[header] = line;
+		}
+		return line;
+	}
+	
+	private char[] toCharArray(int header) {
+		String line = headerLines[header];
+		if(line == null) {
+			return sliceIndex.getHeaderLine(headerSlices[header]);
+		}
+		return line.toCharArray();
+	}
+	
+	private StringBuilder encode(int header, StringBuilder encoding) {
+		if(headerSlices[header] != NO_SLICE) {
+			return sliceIndex.encodeHeader(headerSlices[header], encoding);
+		}
+		// lines are stored terminated by '\n' and encoded terminated by CRLF as the slices
+		String line = headerLines[header];
+		return encoding.append(line, 0, line.length() - 1).append("\r\n");
+	}
+	
+	private ByteBuffer encode(int header, ByteBuffer buffer, Charset charset) {
+		int slice = headerSlices[header];
+		if(slice != NO_SLICE) {
+			buffer = ByteBufferEncoder.ensureRemaining(buffer, sliceIndex.getEncodedHeaderLength(slice));
+			return sliceIndex.copyHeader(slice, buffer);
+		}
+		String line = headerLines[header];
+		return ByteBufferEncoder.put(buffer, line.substring(0, line.length() - 1) + "\r\n", charset);
+	}
 	
 	/* (non-Javadoc)
 	 * @see gov.nist.javax.sip.parser.selective.SelectiveMessage#addHeaderNotParsed(java.lang.String, java.lang.String)
 	 */	
-	public void addHeaderNotParsed(String headerName, String header) {
+	public synchronized void addHeaderNotParsed(String headerName, String header) {
+		String lowerCaseHeaderName = headerName.toLowerCase();
+		headerModified(lowerCaseHeaderName);
 		if(header.endsWith("\n")) {
-			headersNotParsed.put(headerName.toLowerCase(), header);
+			append(lowerCaseHeaderName, NO_SLICE, header);
 		} else {
-			headersNotParsed.put(headerName.toLowerCase(), header + "\n");
+			append(lowerCaseHeaderName, NO_SLICE, header + "\n");
 		}
 	}	
+	
+	/* (non-Javadoc)
+	 * @see gov.nist.javax.sip.parser.selective.SelectiveMessage#hasHeaderNotParsed(java.lang.String)
+	 */	
+	public synchronized boolean hasHeaderNotParsed(String lowerCaseHeaderName) {
+		return indexOf(lowerCaseHeaderName, 0) != -1;
+	}
+	
+	/* (non-Javadoc)
+	 * @see gov.nist.javax.sip.parser.selective.SelectiveMessage#addHeaderNotParsed(gov.nist.javax.sip.parser.chars.MessageIndex, int)
+	 */	
+	public synchronized void addHeaderNotParsed(MessageIndex index, int header) {
+		sliceIndex = index;
+		append(getHeaderName(index, header), header, null);
+	}
+	/**
+	 * @return the lower case name of an indexed header, compact forms resolving to their 
+	 * full name, or null if the header has no name
+	 */
+	private static String getHeaderName(MessageIndex index, int header) {
+		int headerId = index.getHeaderId(header);
+		if(headerId != HeaderIds.UNKNOWN) {
+			return SIPHeaderNamesCache.toLowerCase(HeaderIds.getName(headerId));
+		}
+		String headerName = index.getHeaderName(header);
+		return headerName == null ? null : headerName.toLowerCase();
+	}
+	
+	/* (non-Javadoc)
+	 * @see gov.nist.javax.sip.parser.selective.SelectiveMessage#setMessageIndex(gov.nist.javax.sip.parser.chars.MessageIndex)
+	 */	
+	public synchronized void setMessageIndex(MessageIndex index) {
+		this.messageIndex = index;
+		headersModified = null;
+		allHeadersModified = false;
+	}
+	
+	/* (non-Javadoc)
+	 * @see gov.nist.javax.sip.parser.selective.SelectiveMessage#setHeadersToParse(gov.nist.javax.sip.parser.selective.HeadersToParse)
+	 */	
+	public synchronized void setHeadersToParse(HeadersToParse headersToParse) {
+		this.headersToParse = headersToParse;
+		statistics = headersToParse == null ? null : headersToParse.getStatistics();
+	}
+	
+	public HeadersToParse getHeadersToParse() {
+		return headersToParse;
+	}
+	
+	/**
+	 * Count the header as accessed by the application in the statistics of the profile 
+	 * the message was received with, once per message.
+	 */
+	public synchronized void headerAccessed(String lowerCaseHeaderName) {
+		if(statistics == null) {
+			return;
+		}
+		int headerId = HeaderIds.getId(lowerCaseHeaderName);
+		if(headerId == HeaderIds.UNKNOWN) {
+			return;
+		}
+		if(headerId < 64) {
+			long mask = 1L << headerId;
+			if((headersAccessed & mask) != 0) {
+				return;
+			}
+			headersAccessed |= mask;
+		} else {
+			if(moreHeadersAccessed == null) {
+				moreHeadersAccessed = new BitSet();
+			} else if(moreHeadersAccessed.get(headerId)) {
+				return;
+			}
+			moreHeadersAccessed.set(headerId);
+		}
+		statistics.headerAccessed(headerId);
+	}
+	
+	public MessageIndex getMessageIndex() {
+		return messageIndex;
+	}
+	
+	/**
+	 * Record that the headers with the given name were changed, or handed over to 
+	 * the application or the stack which may change them, so they can't be re-emitted 
+	 * as received anymore.
+	 */
+	public synchronized void headerModified(String lowerCaseHeaderName) {
+		if(messageIndex != null) {
+			// compact forms are tracked under their full name
+			int headerId = HeaderIds.getId(lowerCaseHeaderName);
+			if(headerId != HeaderIds.UNKNOWN) {
+				lowerCaseHeaderName = SIPHeaderNamesCache.toLowerCase(HeaderIds.getName(headerId));
+			}
+			if(headersModified == null) {
+				headersModified = new HashSet<String>();
+			}
+			headersModified.add(lowerCaseHeaderName);
+		}
+	}
+	
+	public void allHeadersModified() {
+		if(messageIndex != null) {
+			allHeadersModified = true;
+		}
+	}
+	
+	/**
+	 * @return true if the message was received and some of its headers are still as received
+	 */
+	public boolean isSpliceable() {
+		return messageIndex != null && !allHeadersModified;
+	}
+	
+	private boolean isReceivedAsIs(int headerId, String lowerCaseHeaderName) {
+		switch (headerId) {
+		// headers the stack reaches through the message fields and updates in place, 
+		// e.g. the Via received parameter, the To tag or the Max-Forwards decrement
+		case HeaderIds.VIA:
+		case HeaderIds.FROM:
+		case HeaderIds.TO:
+		case HeaderIds.CALL_ID:
+		case HeaderIds.CSEQ:
+		case HeaderIds.MAX_FORWARDS:
+		case HeaderIds.CONTENT_LENGTH:
+			return false;
+		default:
+			return headersModified == null || !headersModified.contains(lowerCaseHeaderName);
+		}
+	}
+	
+	/**
+	 * Encodes the headers of a received message in the order they were received : the ones that 
+	 * were not modified are spliced from the received buffer, the others are serialized where 
+	 * they were first received, and headers added since are serialized last. The Content-Length 
+	 * header is left to the caller.
+	 * 
+	 * @param headerTable the parsed headers of the message, by lower case name
+	 * @param headers the parsed headers of the message
+	 */
+	public synchronized ByteBuffer encodeHeadersSpliced(ByteBuffer buffer, Map<String, SIPHeader> headerTable, Collection<SIPHeader> headers, Charset charset) {
+		MessageIndex index = messageIndex;
+		Set<String> received = new HashSet<String>();
+		Set<String> encoded = new HashSet<String>();
+		for (int header = 0; header < index.getHeaderCount(); header++) {
+			String headerName = getHeaderName(index, header);
+			if(headerName == null || encoded.contains(headerName)) {
+				continue;
+			}
+			received.add(headerName);
+			int headerId = index.getHeaderId(header);
+			if(headerId == HeaderIds.CONTENT_LENGTH) {
+				continue;
+			}
+			if(isReceivedAsIs(headerId, headerName)) {
+				// headers dropped while parsing are not re-emitted
+				if(headerTable.containsKey(headerName) || indexOf(headerName, 0) != -1) {
+					buffer = ByteBufferEncoder.ensureRemaining(buffer, index.getEncodedHeaderLength(header));
+					buffer = index.copyHeader(header, buffer);
+				}
+			} else {
+				encoded.add(headerName);
+				SIPHeader sipHeader = headerTable.get(headerName);
+				if(sipHeader != null) {
+					buffer = ByteBufferEncoder.put(buffer, sipHeader, charset);
+				}
+				for (int i = indexOf(headerName, 0); i != -1; i = indexOf(headerName, i + 1)) {
+					buffer = encode(i, buffer, charset);
+				}
+			}
+		}
+		// headers added since the message was received
+		for (SIPHeader sipHeader : headers) {
+			if(!(sipHeader instanceof ContentLength) && !received.contains(SIPHeaderNamesCache.toLowerCase(sipHeader.getName()))) {
+				buffer = ByteBufferEncoder.put(buffer, sipHeader, charset);
+			}
+		}
+		for (int i = 0; i < headerCount; i++) {
+			if(!received.contains(headerNames[i])) {
+				buffer = encode(i, buffer, charset);
+			}
+		}
+		return buffer;
+	}
 		
-	public Iterator<String> getHeaderValuesNotParsed() {
-		return headersNotParsed.values().iterator();
+	/**
+	 * @return the header lines not parsed, in the order they were received
+	 */
+	public synchronized Iterator<String> getHeaderValuesNotParsed() {
+		List<String> values = new ArrayList<String>(headerCount);
+		for (int i = 0; i < headerCount; i++) {
+			values.add(getLine(i));
+		}
+		return values.iterator();
 	}
-	public Iterator<String> getHeaderNamesNotParsed() {
-		return headersNotParsed.keySet().iterator();
+	
+	/**
+	 * @return the distinct lower case names of the headers not parsed, in the order they were received
+	 */
+	public synchronized Iterator<String> getHeaderNamesNotParsed() {
+		Set<String> names = new LinkedHashSet<String>();
+		for (int i = 0; i < headerCount; i++) {
+			names.add(headerNames[i]);
+		}
+		return names.iterator();
 	}
 	
-	public Map<String, String> getHeadersNotParsed() {
-		return headersNotParsed;
+	public synchronized int getHeaderCountNotParsed() {
+		return headerCount;
 	}
 	
-	public SIPHeader parseHeader(String headerName, boolean remove) {
-		String header = null;
+	/**
+	 * Append the headers not parsed to the encoding, the ones still referencing 
+	 * the received buffer are copied as they were received.
+	 */
+	public synchronized StringBuilder encodeHeadersNotParsed(StringBuilder encoding) {
+		for (int i = 0; i < headerCount; i++) {
+			encode(i, encoding);
+		}
+		return encoding;
+	}
+	
+	public synchronized ByteBuffer encodeHeadersNotParsed(ByteBuffer buffer, Charset charset) {
+		for (int i = 0; i < headerCount; i++) {
+			buffer = encode(i, buffer, charset);
+		}
+		return buffer;
+	}
+	
+	/**
+	 * Parse all the headers not parsed with the given name, one header per line received.
+	 * 
+	 * @return the parsed headers, empty if there is none
+	 */
+	public synchronized List<SIPHeader> parseHeaders(String headerName, boolean remove) {
 		if(remove) {
-			header = headersNotParsed.remove(headerName);
-		} else {
-			header = headersNotParsed.get(headerName);
+			// the parsed header is handed over and may be modified
+			headerModified(headerName);
 		}
-		if(header != null) {
-			HeaderParser headerParser = null;
-	        try {
-	            headerParser = ParserFactory.createParser(header.toCharArray());
-	            return headerParser.parse();
-	        } catch (ParseException ex) {
-	            throw new IllegalArgumentException("Following header couldn't be parsed " + header + " for header name " + headerName, ex);
-	        }            
+		int i = indexOf(headerName, 0);
+		if(i == -1) {
+			return Collections.emptyList();
 		}
-		return null;
+		List<SIPHeader> sipHeaders = new ArrayList<SIPHeader>(1);
+		while (i != -1) {
+			char[] header = toCharArray(i);
+			try {
+				HeaderParser headerParser = ParserFactory.createParser(header);
+				sipHeaders.add(headerParser.parse());
+			} catch (ParseException ex) {
+				throw new IllegalArgumentException("Following header couldn't be parsed " + new String(header) + " for header name " + headerName, ex);
+			}
+			if(remove) {
+				remove(i);
+				i = indexOf(headerName, i);
+			} else {
+				i = indexOf(headerName, i + 1);
+			}
+		}
+		return sipHeaders;
 	}
 
-	public String getHeaderUnparsed(String headerName) {
-		String header = headersNotParsed.get(headerName);
-		return header;
+	/**
+	 * @return all the header lines not parsed with the given name or null if there is none
+	 */
+	public synchronized String getHeaderUnparsed(String headerName) {
+		int i = indexOf(headerName, 0);
+		if(i == -1) {
+			return null;
+		}
+		String line = getLine(i);
+		i = indexOf(headerName, i + 1);
+		if(i == -1) {
+			return line;
+		}
+		StringBuilder lines = new StringBuilder(line);
+		for (; i != -1; i = indexOf(headerName, i + 1)) {
+			lines.append(getLine(i));
+		}
+		return lines.toString();
 	}
 
-	public String removeHeaderNotParsed(String lowerCase) {
-		return headersNotParsed.remove(lowerCase);
+	public synchronized String removeHeaderNotParsed(String lowerCase) {
+		headerModified(lowerCase);
+		String lines = getHeaderUnparsed(lowerCase);
+		for (int i = indexOf(lowerCase, 0); i != -1; i = indexOf(lowerCase, i)) {
+			remove(i);
+		}
+		return lines;
 	}
 
 }
@@ -25,20 +25,29 @@ package gov.nist.javax.sip.message.selective;
 import gov.nist.core.InternalErrorHandler;
 import gov.nist.javax.sip.header.ContentLength;
 import gov.nist.javax.sip.header.SIPHeader;
+import gov.nist.javax.sip.header.SIPHeaderNamesCache;
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.header.ViaList;
+import gov.nist.javax.sip.message.SIPDuplicateHeaderException;
 import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.parser.chars.MessageIndex;
+import gov.nist.javax.sip.parser.selective.HeadersToParse;
 import gov.nist.javax.sip.parser.selective.SelectiveMessage;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.Map;
 import java.util.Set;
-import java.util.Map.Entry;
 
+import javax.sip.SipException;
 import javax.sip.header.Header;
 import javax.sip.header.ViaHeader;
 
@@ -49,42 +58,55 @@ import javax.sip.header.ViaHeader;
 public class SelectiveSIPResponse extends SIPResponse implements SelectiveMessage {
 
 	SelectiveMessageDelegate delegate;
-	private static Set<String> headersToParse;		
+
+	public SelectiveSIPResponse(HeadersToParse headersToParse) {
+		delegate = new SelectiveMessageDelegate(headersToParse);
+	}
 	
 	public SelectiveSIPResponse(Set<String> headersToParse) {
-		SelectiveSIPResponse.headersToParse = headersToParse;
-		delegate = new SelectiveMessageDelegate();
+		this(new HeadersToParse(headersToParse));
+	}
+	
+	public void setHeadersToParse(HeadersToParse headersToParse) {
+		delegate.setHeadersToParse(headersToParse);
+	}
+	
+	public HeadersToParse getHeadersToParse() {
+		return delegate.getHeadersToParse();
 	}
 		
 	public void addHeaderNotParsed(String headerName, String header) {
 		delegate.addHeaderNotParsed(headerName, header);
+	}
+	
+	public boolean hasHeaderNotParsed(String lowerCaseHeaderName) {
+		return delegate.hasHeaderNotParsed(lowerCaseHeaderName);
+	}
+	
+	public void addHeaderNotParsed(MessageIndex index, int header) {
+		delegate.addHeaderNotParsed(index, header);
 	}			
 	
 	@Override
 	protected Header getHeaderLowerCase(String lowerCaseHeaderName) {
-		if(!headersToParse.contains(lowerCaseHeaderName)) {
-			SIPHeader sipHeader = delegate.parseHeader(lowerCaseHeaderName, true);
+		delegate.headerModified(lowerCaseHeaderName);
+		delegate.headerAccessed(lowerCaseHeaderName);
+		if(!getHeadersToParse().contains(lowerCaseHeaderName)) {
 			// once the header is parsed we have to add it to the standard list of headers since
 			// the application can keep the ref to it and modify it, the only way to to get
 			// the modifications appear in encode is to add it
-			if(sipHeader != null) {
-				super.addHeader(sipHeader);
-			}
+			attachHeadersNotParsed(lowerCaseHeaderName);
 		}
 		return super.getHeaderLowerCase(lowerCaseHeaderName);
 	}		
 	
 	@Override
 	public SIPHeader getSIPHeaderListLowerCase(String lowerCaseHeaderName) {
-		if(!headersToParse.contains(lowerCaseHeaderName)) {
-			SIPHeader sipHeader = delegate.parseHeader(lowerCaseHeaderName, true);
-			// once the header is parsed we have to add it to the standard list of headers since
-			// the application can keep the ref to it and modify it, the only way to to get
-			// the modifications appear in encode is to add it
-			if(sipHeader != null) {
-				super.addHeader(sipHeader);
-			}
-		}
+		delegate.headerModified(lowerCaseHeaderName);
+		delegate.headerAccessed(lowerCaseHeaderName);
+		// the whole list is handed over, including the entries of a header parsed on receipt
+		// that were kept as received after its topmost one
+		attachHeadersNotParsed(lowerCaseHeaderName);
 		return super.getSIPHeaderListLowerCase(lowerCaseHeaderName);
 	}				
 	
@@ -107,6 +129,52 @@ public class SelectiveSIPResponse extends SIPResponse implements SelectiveMessag
         return retval ;		
 	}
 	
+	public void setMessageIndex(MessageIndex index) {
+		delegate.setMessageIndex(index);
+	}
+	
+	// The mutators below record the headers modified since the message was received,
+	// the others are re-emitted as received on encode
+	
+	@Override
+	public void addHeader(Header sipHeader) {
+		delegate.headerModified(SIPHeaderNamesCache.toLowerCase(sipHeader.getName()));
+		attachHeadersNotParsed(SIPHeaderNamesCache.toLowerCase(sipHeader.getName()));
+		super.addHeader(sipHeader);
+	}
+	
+	@Override
+	public void addHeader(String sipHeader) {
+		delegate.allHeadersModified();
+		super.addHeader(sipHeader);
+	}
+	
+	@Override
+	public void addFirst(Header header) throws SipException, NullPointerException {
+		delegate.headerModified(SIPHeaderNamesCache.toLowerCase(header.getName()));
+		super.addFirst(header);
+	}
+	
+	@Override
+	public void addLast(Header header) throws SipException, NullPointerException {
+		delegate.headerModified(SIPHeaderNamesCache.toLowerCase(header.getName()));
+		attachHeadersNotParsed(SIPHeaderNamesCache.toLowerCase(header.getName()));
+		super.addLast(header);
+	}
+	
+	@Override
+	public void setHeader(Header sipHeader) {
+		// the header replaces all the ones with the same name, parsed or not
+		delegate.removeHeaderNotParsed(SIPHeaderNamesCache.toLowerCase(sipHeader.getName()));
+		super.setHeader(sipHeader);
+	}
+	
+	@Override
+	public Collection<SIPHeader> getHeadersAsCollection() {
+		delegate.allHeadersModified();
+		return super.getHeadersAsCollection();
+	}
+	
 	public String encodeSelective() {
         StringBuilder encoding = new StringBuilder();
         Iterator<SIPHeader> it = this.headers.iterator();
@@ -117,13 +185,8 @@ public class SelectiveSIPResponse extends SIPResponse implements SelectiveMessag
                 siphdr.encode(encoding);
         }
         
-        //Append the unparsed headers
-        Iterator<String> nonParsedHeadersIt = this.delegate.getHeaderValuesNotParsed();
-
-        while (nonParsedHeadersIt.hasNext()) {
-            String nonParsedHeader = nonParsedHeadersIt.next();
-            encoding.append(nonParsedHeader);
-        }
+        // Append the unparsed headers
+        this.delegate.encodeHeadersNotParsed(encoding);
         
         // Append the unrecognized headers. Headers that are not
         // recognized are passed through unchanged.
@@ -159,6 +222,15 @@ public class SelectiveSIPResponse extends SIPResponse implements SelectiveMessag
 	}
 	
 	public byte[] encodeAsBytesSelective(String transport) {		
+        ByteBuffer buffer = encodeAsBytesSelective(transport, null);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+	}
+
+	/**
+	 * Encodes the headers and the body straight into the buffer, the headers kept unparsed 
+	 * being copied from the bytes the message was received in.
+	 */
+	private ByteBuffer encodeAsBytesSelective(String transport, ByteBuffer buffer) {
         // JvB: added to fix case where application provides the wrong transport
         // in the topmost Via header
         ViaHeader topVia = (ViaHeader) this.getHeader(ViaHeader.NAME);
@@ -168,71 +240,60 @@ public class SelectiveSIPResponse extends SIPResponse implements SelectiveMessag
             InternalErrorHandler.handleException(e);
         }
 
-        StringBuilder encoding = new StringBuilder();
+        byte[] content = this.getRawContent();
+        if (buffer == null) {
+            buffer = ByteBufferEncoder.allocate(getSize() + (content == null ? 0 : content.length));
+        }
+        Charset charset = ByteBufferEncoder.forName(getCharset());
         synchronized (this.headers) {
-            Iterator<SIPHeader> it = this.headers.iterator();
-
-            while (it.hasNext()) {
-                SIPHeader siphdr = (SIPHeader) it.next();
-                if (!(siphdr instanceof ContentLength))
-                    siphdr.encode(encoding);
+            if (delegate.isSpliceable()) {
+                // Headers not modified since the message was received are copied as received
+                buffer = delegate.encodeHeadersSpliced(buffer, headerTable, headers, charset);
+            } else {
+                Iterator<SIPHeader> it = this.headers.iterator();
 
+                while (it.hasNext()) {
+                    SIPHeader siphdr = (SIPHeader) it.next();
+                    if (!(siphdr instanceof ContentLength))
+                        buffer = ByteBufferEncoder.put(buffer, siphdr, charset);
+                }
+                // Append the unparsed headers
+                buffer = this.delegate.encodeHeadersNotParsed(buffer, charset);
             }
         }
-        // Append the unparsed headers
-        Iterator<String> nonParsedHeadersIt = this.delegate.getHeaderValuesNotParsed();
 
-        while (nonParsedHeadersIt.hasNext()) {
-            String nonParsedHeader = nonParsedHeadersIt.next();
-            encoding.append(nonParsedHeader);
-        }
-        
-        contentLengthHeader.encode(encoding);
-        encoding.append(NEWLINE);
+        buffer = ByteBufferEncoder.put(buffer, contentLengthHeader, charset);
+        buffer = ByteBufferEncoder.put(buffer, NEWLINE, charset);
 
-        byte[] retval = null;
-        byte[] content = this.getRawContent();
         if (content != null) {
             // Append the content
-
-            byte[] msgarray = null;
-            try {
-                msgarray = encoding.toString().getBytes( getCharset() );
-            } catch (UnsupportedEncodingException ex) {
-                InternalErrorHandler.handleException(ex);
-            }
-
-            retval = new byte[msgarray.length + content.length];
-            System.arraycopy(msgarray, 0, retval, 0, msgarray.length);
-            System.arraycopy(content, 0, retval, msgarray.length, content.length);
-        } else {
-            // Message content does not exist.
-
-            try {
-                retval = encoding.toString().getBytes( getCharset() );
-            } catch (UnsupportedEncodingException ex) {
-                InternalErrorHandler.handleException(ex);
-            }
+            buffer = ByteBufferEncoder.put(buffer, content);
         }
-        return retval;
+        return buffer;
 	}
 		
 	@Override
 	public byte[] encodeAsBytes(String transport) {
-		byte[] slbytes = null;
+        ByteBuffer buffer = encodeAsBytes(transport, null);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+	}
+
+	/**
+	 * Encodes the response without any intermediate String, into the given buffer or into one
+	 * sized from the received message.
+	 * 
+	 * @param buffer the buffer to encode into, or null to allocate one
+	 * @return the buffer holding the encoding, positioned after it, which is a new one if the 
+	 * given buffer was too small
+	 */
+	public ByteBuffer encodeAsBytes(String transport, ByteBuffer buffer) {
+        if (buffer == null) {
+            buffer = ByteBufferEncoder.allocate(getSize() + contentLengthHeader.getContentLength());
+        }
         if (statusLine != null) {
-            try {
-                slbytes = statusLine.encode().getBytes("UTF-8");
-            } catch (UnsupportedEncodingException ex) {
-                InternalErrorHandler.handleException(ex);
-            }
+            buffer = ByteBufferEncoder.put(buffer, statusLine, ByteBufferEncoder.UTF8);
         }
-        byte[] superbytes = encodeAsBytesSelective(transport );
-        byte[] retval = new byte[slbytes.length + superbytes.length];
-        System.arraycopy(slbytes, 0, retval, 0, slbytes.length);
-        System.arraycopy(superbytes, 0, retval, slbytes.length,
-                superbytes.length);
-        return retval;
+        return encodeAsBytesSelective(transport, buffer);
 	}
 	
 	@Override
@@ -258,12 +319,7 @@ public class SelectiveSIPResponse extends SIPResponse implements SelectiveMessag
 		}
 
 		// Append the unparsed headers
-        Iterator<String> nonParsedHeadersIt = this.delegate.getHeaderValuesNotParsed();
-
-        while (nonParsedHeadersIt.hasNext()) {
-            String nonParsedHeader = nonParsedHeadersIt.next();
-            encoding.append(nonParsedHeader);
-        }
+		this.delegate.encodeHeadersNotParsed(encoding);
         
 		return contentLengthHeader.encode(encoding).append(NEWLINE);
 	}
@@ -279,7 +335,7 @@ public class SelectiveSIPResponse extends SIPResponse implements SelectiveMessag
 			
 	@Override
 	public String getHeaderAsFormattedString(String name) {
-		if(!headersToParse.contains(name.toLowerCase())) {
+		if(!getHeadersToParse().contains(name.toLowerCase())) {
 			String unparsedHeader = delegate.getHeaderUnparsed(name.toLowerCase());
 			if(unparsedHeader != null) {
 				return unparsedHeader;
@@ -315,18 +371,13 @@ public class SelectiveSIPResponse extends SIPResponse implements SelectiveMessag
 	
 	@Override
 	public Iterator<SIPHeader> getHeaders() {
+		delegate.allHeadersModified();
 		// Append the unparsed headers
         Iterator<String> nonParsedHeadersIt = this.delegate.getHeaderNamesNotParsed();
 
         while (nonParsedHeadersIt.hasNext()) {
             String nonParsedHeaderName = nonParsedHeadersIt.next();
-            SIPHeader sipHeader = delegate.parseHeader(nonParsedHeaderName, true);
-            // once the header is parsed we have to add it to the standard list of headers since
-			// the application can keep the ref to it and modify it, the only way to to get
-			// the modifications appear in encode is to add it
-            if(sipHeader != null) {
-				super.addHeader(sipHeader);
-			}
+            attachHeadersNotParsed(nonParsedHeaderName);
         }        		      
         
         return super.getHeaders();
@@ -334,43 +385,72 @@ public class SelectiveSIPResponse extends SIPResponse implements SelectiveMessag
 	
 	@Override
 	public ListIterator<SIPHeader> getHeaders(String headerName) {
-		if(!headersToParse.contains(headerName.toLowerCase())) {
-			SIPHeader sipHeader = delegate.parseHeader(headerName.toLowerCase(), true);
-			// once the header is parsed we have to add it to the standard list of headers since
-			// the application can keep the ref to it and modify it, the only way to to get
-			// the modifications appear in encode is to add it			
-			if(sipHeader != null) {
-				super.addHeader(sipHeader);
-			}
-		}
-		
+		delegate.headerModified(headerName.toLowerCase());
+		delegate.headerAccessed(headerName.toLowerCase());
+		attachHeadersNotParsed(headerName.toLowerCase());
 		return super.getHeaders(headerName);
 	}
 		
 	@Override
 	public void removeHeader(String headerName) {
-		if(!headersToParse.contains(headerName.toLowerCase())) {			
-			delegate.removeHeaderNotParsed(headerName.toLowerCase());
-		}
+		delegate.headerModified(headerName.toLowerCase());
+		delegate.removeHeaderNotParsed(headerName.toLowerCase());
 		super.removeHeader(headerName);
 	}
 	
 	@Override
 	public void removeHeader(String headerName, boolean top) {
-		if(!headersToParse.contains(headerName.toLowerCase())) {
-			delegate.removeHeaderNotParsed(headerName.toLowerCase());
-		}
+		delegate.headerModified(headerName.toLowerCase());
+		// only the first or last entry goes, the entries kept as received come last in the list
+		attachHeadersNotParsed(headerName.toLowerCase());
 		super.removeHeader(headerName, top);
 	}
 	
+	@Override
+	public void removeFirst(String headerName) throws NullPointerException {
+		delegate.headerModified(headerName.toLowerCase());
+		attachHeadersNotParsed(headerName.toLowerCase());
+		super.removeFirst(headerName);
+	}
+	
+	@Override
+	public void removeLast(String headerName) {
+		delegate.headerModified(headerName.toLowerCase());
+		attachHeadersNotParsed(headerName.toLowerCase());
+		super.removeLast(headerName);
+	}
+	
+	@Override
+	public Via getTopmostVia() {
+		// the topmost Via is always parsed on receipt, the entries after it are left as received
+		SIPHeader via = headerTable.get(SIPHeaderNamesCache.toLowerCase(ViaHeader.NAME));
+		if(via instanceof ViaList) {
+			return (Via) ((ViaList) via).getFirst();
+		}
+		return super.getTopmostVia();
+	}
+	
+	/**
+	 * Parse the headers not parsed with the given name and add them after the ones already 
+	 * parsed, in the order they were received. Once parsed they have to be added to the standard 
+	 * list of headers since the application can keep the ref to them and modify them, the only 
+	 * way to get the modifications appear in encode is to add them.
+	 */
+	private void attachHeadersNotParsed(String lowerCaseHeaderName) {
+		for (SIPHeader sipHeader : delegate.parseHeaders(lowerCaseHeaderName, true)) {
+			try {
+				// unlike addHeader, Via and Record-Route entries are not pushed on top
+				attachHeader(sipHeader, false, false);
+			} catch (SIPDuplicateHeaderException ex) {
+				// as in addHeader, the header already parsed is kept
+			}
+		}
+	}
+	
 	@Override
 	public Object clone() {		
 		SelectiveSIPResponse retval = (SelectiveSIPResponse) super.clone();
-		retval.delegate = new SelectiveMessageDelegate();
-		Map<String, String> headersNotParsed = delegate.getHeadersNotParsed();
-		for(Entry<String, String> entry : headersNotParsed.entrySet()) {
-			retval.delegate.addHeaderNotParsed(entry.getKey(), entry.getValue());
-		}
+		retval.delegate = new SelectiveMessageDelegate(delegate);
 		return retval;
 	}
 	
@@ -0,0 +1,108 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package gov.nist.javax.sip.parser.chars;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds delimiters in a received buffer 8 bytes at a time (SWAR, SIMD within a register) : 
+ * each long read from the buffer is xor'ed with the delimiter repeated in every byte, 
+ * so that matching bytes become zero, and the zero bytes are detected with the classic 
+ * <code>(x - 0x01..01) &amp; ~x &amp; 0x80..80</code> trick. Words are read in little endian
+ * order so that the first match is given by the number of trailing zeros.
+ * 
+ * All the scans are bounded explicitly, the tail of the range being scanned byte per byte.
+ */
+public final class ByteScanner {
+
+	public static final int NOT_FOUND = -1;
+
+	private static final long ONES = 0x0101010101010101L;
+	private static final long HIGHS = 0x8080808080808080L;
+	private static final long CR = ONES * '\r';
+	private static final long LF = ONES * '\n';
+
+	private final byte[] buffer;
+	private final ByteBuffer words;
+
+	public ByteScanner(byte[] buffer) {
+		this.buffer = buffer;
+		this.words = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return the offset of the first CR or LF between from (inclusive) and to (exclusive) 
+	 * or {@link #NOT_FOUND}
+	 */
+	public int indexOfLineEnd(int from, int to) {
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long word = words.getLong(i);
+			long found = zeroBytes(word ^ CR) | zeroBytes(word ^ LF);
+			if (found != 0) {
+				return i + (Long.numberOfTrailingZeros(found) >>> 3);
+			}
+		}
+		for (; i < to; i++) {
+			byte b = buffer[i];
+			if (b == '\r' || b == '\n') {
+				return i;
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * @return the offset of the first occurence of the byte between from (inclusive) and to (exclusive) 
+	 * or {@link #NOT_FOUND}
+	 */
+	public int indexOf(byte value, int from, int to) {
+		long pattern = ONES * (value & 0xFF);
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long found = zeroBytes(words.getLong(i) ^ pattern);
+			if (found != 0) {
+				return i + (Long.numberOfTrailingZeros(found) >>> 3);
+			}
+		}
+		for (; i < to; i++) {
+			if (buffer[i] == value) {
+				return i;
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * @return a word with the high bit set for the zero bytes of the given word, 
+	 * exact for the lowest one which is all that is used here
+	 */
+	private static long zeroBytes(long word) {
+		return (word - ONES) & ~word & HIGHS;
+	}
+}
@@ -43,7 +43,6 @@ import gov.nist.javax.sip.message.SIPResponse;
 import gov.nist.javax.sip.parser.MessageParser;
 import gov.nist.javax.sip.parser.ParseExceptionListener;
 
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.util.Arrays;
@@ -79,6 +78,10 @@ public class CharsMsgParser implements MessageParser {
     protected static boolean computeContentLengthFromMessage = false;
     protected static final Charset charset = Charset.forName("UTF-8");
     protected static final char[] SIP_VERSION_CHAR = SIPConstants.SIP_VERSION_STRING.toCharArray();
+    // headers every message must have to be processed by the stack
+    protected static final int[] MANDATORY_HEADERS = {
+        HeaderIds.VIA, HeaderIds.FROM, HeaderIds.TO, HeaderIds.CALL_ID, HeaderIds.CSEQ
+    };
     /**
      * @since v0.9
      */
@@ -127,94 +130,208 @@ public class CharsMsgParser implements MessageParser {
      * @see ParseExceptionListener
      */
     public SIPMessage parseSIPMessage(byte[] msgBuffer, boolean readBody, boolean strict, ParseExceptionListener exhandler) throws ParseException {
+        return parseMessage(msgBuffer, readBody, strict, exhandler, null);
+    }
+
+    /**
+     * Parse a buffer containing a single SIP Message without throwing when
+     * it is rejected. The request or status line and the header lines are
+     * checked on the received bytes before being handed over to the
+     * parsers, so that junk is rejected without any exception nor any copy
+     * of the message. Headers that can't be parsed are dropped, as they are
+     * by parseSIPMessage without a ParseExceptionListener, unless they are
+     * mandatory.
+     *
+     * @param msgBuffer
+     *            a byte buffer containing the message to be parsed.
+     * @return the parsed message or the reason why and where it was rejected.
+     */
+    public ParseResult parse(byte[] msgBuffer, boolean readBody, boolean strict) {
+        ParseResult result = new ParseResult(msgBuffer);
+        SIPMessage message;
+        try {
+            message = parseMessage(msgBuffer, readBody, strict, null, result);
+        } catch (ParseException ex) {
+            // not expected, the framing reports its errors in the result
+            return result.reject(ParseResult.BAD_HEADER, HeaderIds.UNKNOWN, ex.getErrorOffset());
+        }
+        if (!result.isOk())
+            return result;
+        if (message == null)
+            return result.reject(ParseResult.EMPTY, HeaderIds.UNKNOWN, 0);
+
+        int missingHeader = getMissingHeader(message);
+        if (missingHeader != HeaderIds.UNKNOWN)
+            return result.reject(ParseResult.MISSING_HEADER, missingHeader, -1);
+        result.accept(message);
+        return result;
+    }
+
+    /**
+     * @return the id of the first header mandatory in all messages which is
+     *         missing or {@link HeaderIds#UNKNOWN} if none are missing
+     */
+    protected int getMissingHeader(SIPMessage message) {
+        for (int i = 0; i < MANDATORY_HEADERS.length; i++) {
+            if (message.getHeader(HeaderIds.getName(MANDATORY_HEADERS[i])) == null)
+                return MANDATORY_HEADERS[i];
+        }
+        return HeaderIds.UNKNOWN;
+    }
+
+    /**
+     * Frames and parses the message. When a result is given, rejections are
+     * recorded in it instead of being thrown and the listener isn't used.
+     */
+    private SIPMessage parseMessage(byte[] msgBuffer, boolean readBody, boolean strict, ParseExceptionListener exhandler, ParseResult result) throws ParseException {
         if (msgBuffer == null || msgBuffer.length == 0)
             return null;
 
+        int length = msgBuffer.length;
         int i = 0;
 
         // Squeeze out any leading control character.
-        try {
-            while (msgBuffer[i] < 0x20)
-                i++;
-        }
-        catch (ArrayIndexOutOfBoundsException e) {
+        while (i < length && msgBuffer[i] < 0x20)
+            i++;
+        if (i == length) {
             // Array contains only control char, return null.
             return null;
         }
 
-        // Iterate thru the request/status line and headers.
-        char[] currentLine = null;
-        char[] currentHeader = null;
+        // Iterate thru the request/status line and headers. The lines are
+        // framed directly on the received bytes, a header is only turned
+        // into a char[] once all its continuation lines have been seen.
+        int headerStart = -1;
+        int headerEnd = -1;
         boolean isFirstLine = true;
         SIPMessage message = null;
-        do
-        {
-        	currentLine = null;
+        MessageIndex index = new MessageIndex(msgBuffer);
+        ByteScanner scanner = index.getScanner();
+        while (true) {
             int lineStart = i;
 
-            // Find the length of the line.
-            try {
-                while (msgBuffer[i] != '\r' && msgBuffer[i] != '\n')
-                    i++;
-            }
-            catch (ArrayIndexOutOfBoundsException e) {
+            // Find the length of the line, a word at a time.
+            i = scanner.indexOfLineEnd(i, length);
+            if (i == ByteScanner.NOT_FOUND) {
                 // End of the message.
+                i = length;
                 break;
             }
-            int lineLength = i - lineStart;
-            
-            ByteBuffer bb = ByteBuffer.wrap(msgBuffer, lineStart, lineLength);
-            currentLine = charset.decode(bb).array();
-             
-            currentLine = trimEndOfLine(currentLine);
-
-            if (currentLine.length == 0) {
-                // Last header line, process the previous buffered header.
-                if (currentHeader != null && message != null) {
-                     processHeader(currentHeader, message, exhandler, msgBuffer);
-                 }
 
+            // Trim the end of the line.
+            int lineEnd = i;
+            while (lineEnd > lineStart && (msgBuffer[lineEnd - 1] & 0xFF) <= 0x20)
+                lineEnd--;
+
+            boolean emptyLine = lineEnd == lineStart;
+            if (emptyLine) {
+                // Last header line, process the previous buffered header.
+                if (headerStart != -1 && message != null) {
+                    if (!processHeader(index, index.addHeader(headerStart, headerEnd), message, exhandler, result))
+                        return null;
+                }
             }
             else {
                 if (isFirstLine) {
-                    message = processFirstLine(currentLine, exhandler, msgBuffer);
+                    index.setFirstLine(lineStart, lineEnd);
+                    if (result == null) {
+                        message = processFirstLine(decodeLine(msgBuffer, lineStart, lineEnd), exhandler, msgBuffer);
+                    } else {
+                        if (!isValidFirstLine(msgBuffer, lineStart, lineEnd)) {
+                            result.reject(ParseResult.BAD_FIRST_LINE, HeaderIds.UNKNOWN, lineStart);
+                            return null;
+                        }
+                        try {
+                            message = processFirstLine(decodeLine(msgBuffer, lineStart, lineEnd), null, msgBuffer);
+                        } catch (ParseException ex) {
+                            result.reject(ParseResult.BAD_FIRST_LINE, HeaderIds.UNKNOWN, lineStart);
+                            return null;
+                        }
+                    }
                 } else {
-                    char firstChar = currentLine[0];
-                    if (firstChar == '\t' || firstChar == ' ') {
-                        if (currentHeader == null)
-                            throw new ParseException("Bad header continuation.", 0);
-
-                        //This is a continuation, append it to the previous line.
-//                        currentHeader += currentLine.substring(1);
-                        char[] retval = new char[currentHeader.length + currentLine.length - 1];
-                        System.arraycopy(currentHeader, 0, retval, 0, currentHeader.length);
-                        System.arraycopy(currentHeader, currentHeader.length, currentLine, 1, currentLine.length);
+                    byte firstByte = msgBuffer[lineStart];
+                    if (firstByte == '\t' || firstByte == ' ') {
+                        if (headerStart == -1) {
+                            if (result == null)
+                                throw new ParseException("Bad header continuation.", 0);
+                            result.reject(ParseResult.BAD_CONTINUATION, HeaderIds.UNKNOWN, lineStart);
+                            return null;
+                        }
+
+                        // This is a continuation, extend the previous header
+                        // so that it gets unfolded when decoded.
+                        headerEnd = lineEnd;
                     }
                     else {
-                        if (currentHeader != null && message != null) {
-                             processHeader(currentHeader, message, exhandler, msgBuffer);
-                         }
-                        currentHeader = new char[currentLine.length + 1];
-                        System.arraycopy(currentLine, 0, currentHeader, 0, currentLine.length);
-                        currentHeader[currentLine.length] = '\n';
+                        if (headerStart != -1 && message != null) {
+                            if (!processHeader(index, index.addHeader(headerStart, headerEnd), message, exhandler, result))
+                                return null;
+                        }
+                        headerStart = lineStart;
+                        headerEnd = lineEnd;
                     }
                 }
             }
 
-            if (msgBuffer[i] == '\r' && msgBuffer.length > i+1 && msgBuffer[i+1] == '\n')
+            if (msgBuffer[i] == '\r' && length > i+1 && msgBuffer[i+1] == '\n')
                 i++;
 
             i++;
 
             isFirstLine = false;
-        } while (currentLine.length > 0); // End do - while
+            if (emptyLine)
+                break;
+        }
 
-        currentLine = null;
-        currentHeader = null;
-        
-        if (message == null) throw new ParseException("Bad message", 0);
+        if (message == null) {
+            if (result == null)
+                throw new ParseException("Bad message", 0);
+            result.reject(ParseResult.BAD_FIRST_LINE, HeaderIds.UNKNOWN, 0);
+            return null;
+        }
         message.setSize(i);
+        index.setBodyStart(i);
+
+        if (result == null) {
+            processBody(message, msgBuffer, i, readBody, strict);
+        } else {
+            try {
+                processBody(message, msgBuffer, i, readBody, strict);
+            } catch (ParseException ex) {
+                result.reject(ParseResult.BAD_CONTENT_LENGTH, HeaderIds.CONTENT_LENGTH, i);
+                return null;
+            }
+        }
+        processMessageIndex(message, index);
+
+        return message;
+    }
+
+    /**
+     * Processes a header while framing, recording the rejection in the
+     * result if there is one.
+     *
+     * @return false if the message was rejected
+     */
+    private boolean processHeader(MessageIndex index, int header, SIPMessage message, ParseExceptionListener exhandler, ParseResult result) throws ParseException {
+        if (result == null) {
+            processHeader(index, header, message, exhandler, index.getBuffer());
+            return true;
+        }
+        if (!isValidHeaderName(index, header)) {
+            result.reject(ParseResult.BAD_HEADER, HeaderIds.UNKNOWN, index.getHeaderStart(header));
+            return false;
+        }
+        try {
+            processHeader(index, header, message, null, index.getBuffer());
+        } catch (ParseException ex) {
+            result.reject(ParseResult.BAD_HEADER, index.getHeaderId(header), index.getHeaderStart(header));
+            return false;
+        }
+        return true;
+    }
 
+    private void processBody(SIPMessage message, byte[] msgBuffer, int i, boolean readBody, boolean strict) throws ParseException {
      // Check for content legth header
         if (readBody && message.getContentLength() != null ) {
           if ( message.getContentLength().getContentLength() != 0) {
@@ -231,8 +348,147 @@ public class CharsMsgParser implements MessageParser {
            } 
 
         }
+    }
 
-        return message;
+    /**
+     * Checks the shape of a request line (Method SP Request-URI SP SIP-Version)
+     * or of a status line (SIP-Version SP 3DIGIT [SP Reason-Phrase]) on the
+     * received bytes.
+     */
+    protected static boolean isValidFirstLine(byte[] buffer, int start, int end) {
+        if (isSipVersion(buffer, start, end)) {
+            // status line
+            int i = start + SIP_VERSION_CHAR.length;
+            if (end - i < 4 || buffer[i] != ' ')
+                return false;
+            for (int k = i + 1; k < i + 4; k++) {
+                if (buffer[k] < '0' || buffer[k] > '9')
+                    return false;
+            }
+            return end - i == 4 || buffer[i + 4] == ' ';
+        }
+        // request line
+        int i = start;
+        while (i < end && isTokenByte(buffer[i]))
+            i++;
+        if (i == start || i == end || buffer[i] != ' ')
+            return false;
+        int uriStart = ++i;
+        while (i < end && buffer[i] != ' ') {
+            if (buffer[i] >= 0 && buffer[i] < 0x20)
+                return false;
+            i++;
+        }
+        if (i == uriStart || i == end)
+            return false;
+        i++;
+        return end - i == SIP_VERSION_CHAR.length && isSipVersion(buffer, i, end);
+    }
+
+    private static boolean isSipVersion(byte[] buffer, int start, int end) {
+        if (end - start < SIP_VERSION_CHAR.length)
+            return false;
+        for (int k = 0; k < SIP_VERSION_CHAR.length; k++) {
+            byte b = buffer[start + k];
+            char c = SIP_VERSION_CHAR[k];
+            // the protocol name is case insensitive
+            if (b != c && !(c >= 'A' && c <= 'Z' && b == c + ('a' - 'A')))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks that the header has a name made of token characters followed by a colon.
+     */
+    protected static boolean isValidHeaderName(MessageIndex index, int header) {
+        if (!index.hasHeaderName(header))
+            return false;
+        byte[] buffer = index.getBuffer();
+        for (int i = index.getHeaderStart(header); i < index.getHeaderNameEnd(header); i++) {
+            if (!isTokenByte(buffer[i]))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isTokenByte(byte b) {
+        return b > 0 && LexerCore.isTokenChar((char) b);
+    }
+
+    /**
+     * Turns the bytes of a (possibly folded) line into the newline terminated
+     * char[] expected by the header parsers. Lines made only of ASCII bytes are
+     * widened directly, UTF-8 decoding is only done for the segments that
+     * really contain non-ASCII bytes. Folded continuation lines are joined
+     * with a single space.
+     *
+     * @param buffer the received message
+     * @param start offset of the first byte of the line
+     * @param end offset after the last (trimmed) byte of the line
+     * @return the decoded line terminated by '\n'
+     */
+    protected static char[] decodeLine(byte[] buffer, int start, int end) {
+        boolean ascii = true;
+        boolean folded = false;
+        for (int k = start; k < end; k++) {
+            byte b = buffer[k];
+            if (b < 0) {
+                ascii = false;
+            } else if (b == '\r' || b == '\n') {
+                folded = true;
+            }
+        }
+
+        if (ascii && !folded) {
+            char[] line = new char[end - start + 1];
+            for (int k = start, j = 0; k < end; k++, j++) {
+                line[j] = (char) buffer[k];
+            }
+            line[line.length - 1] = '\n';
+            return line;
+        }
+
+        // UTF-8 never decodes to more chars than bytes and unfolding only
+        // shrinks the line, so this is always big enough.
+        char[] line = new char[end - start + 1];
+        int length = 0;
+        int k = start;
+        while (k < end) {
+            int segmentEnd = k;
+            while (segmentEnd < end && buffer[segmentEnd] != '\r' && buffer[segmentEnd] != '\n')
+                segmentEnd++;
+            int next = segmentEnd;
+            while (segmentEnd > k && (buffer[segmentEnd - 1] == ' ' || buffer[segmentEnd - 1] == '\t'))
+                segmentEnd--;
+            length = decodeSegment(buffer, k, segmentEnd, line, length);
+            if (next < end) {
+                // skip the line terminator and the leading white space of the continuation
+                while (next < end && (buffer[next] == '\r' || buffer[next] == '\n'
+                        || buffer[next] == ' ' || buffer[next] == '\t'))
+                    next++;
+                line[length++] = ' ';
+            }
+            k = next;
+        }
+        line[length++] = '\n';
+        if (length == line.length)
+            return line;
+        return Arrays.copyOf(line, length);
+    }
+
+    private static int decodeSegment(byte[] buffer, int start, int end, char[] line, int length) {
+        for (int k = start; k < end; k++) {
+            if (buffer[k] < 0) {
+                String decoded = new String(buffer, start, end - start, charset);
+                decoded.getChars(0, decoded.length(), line, length);
+                return length + decoded.length();
+            }
+        }
+        for (int k = start; k < end; k++) {
+            line[length++] = (char) buffer[k];
+        }
+        return length;
     }
 
     protected static char[] trimEndOfLine(char[] line) {
@@ -254,26 +510,39 @@ public class CharsMsgParser implements MessageParser {
         return retval;
     }
 
+    /**
+     * Checks whether the first line of a message starts with the SIP version,
+     * ie. whether it is a status line rather than a request line.
+     */
+    protected static boolean isStatusLine(char[] firstLine) {
+        if (firstLine.length < SIP_VERSION_CHAR.length)
+            return false;
+        for (int i = 0; i < SIP_VERSION_CHAR.length; i++) {
+            if (firstLine[i] != SIP_VERSION_CHAR[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parse the request or status line of a message.
+     *
+     * @param firstLine
+     *            the first line of the message, terminated by '\n'
+     */
     protected SIPMessage processFirstLine(char[] firstLine, ParseExceptionListener parseExceptionListener, byte[] msgBuffer) throws ParseException {
         SIPMessage message;
         
-        char[] retval = new char[firstLine.length + 1];
-        System.arraycopy(firstLine, 0, retval, 0, firstLine.length);
-        retval[firstLine.length] = '\n';
-        
-        char[] sipVersionCompare = new char[7];
-        System.arraycopy(firstLine, 0, sipVersionCompare, 0, 7);        
-        
-        if (!Arrays.equals(sipVersionCompare, SIP_VERSION_CHAR)) {
+        if (!isStatusLine(firstLine)) {
             message = new SIPRequest();
             try {
-                RequestLine requestLine = new RequestLineParser(retval)
+                RequestLine requestLine = new RequestLineParser(firstLine)
                         .parse();
                 ((SIPRequest) message).setRequestLine(requestLine);
             } catch (ParseException ex) {
                 if (parseExceptionListener != null)
                     parseExceptionListener.handleException(ex, message,
-                            RequestLine.class, String.valueOf(firstLine), String.valueOf(msgBuffer));
+                            RequestLine.class, String.valueOf(firstLine), new String(msgBuffer, charset));
                 else
                     throw ex;
 
@@ -281,12 +550,12 @@ public class CharsMsgParser implements MessageParser {
         } else {
             message = new SIPResponse();
             try {
-                StatusLine sl = new StatusLineParser(retval).parse();
+                StatusLine sl = new StatusLineParser(firstLine).parse();
                 ((SIPResponse) message).setStatusLine(sl);
             } catch (ParseException ex) {
                 if (parseExceptionListener != null) {
                     parseExceptionListener.handleException(ex, message,
-                            StatusLine.class, String.valueOf(firstLine), String.valueOf(msgBuffer));
+                            StatusLine.class, String.valueOf(firstLine), new String(msgBuffer, charset));
                 } else
                     throw ex;
 
@@ -295,6 +564,28 @@ public class CharsMsgParser implements MessageParser {
         return message;
     }
 
+    /**
+     * Called once the message has been fully parsed, with the index of the
+     * buffer it was received in. Does nothing by default, subclasses may keep
+     * the index to re-emit the message as it was received.
+     */
+    protected void processMessageIndex(SIPMessage message, MessageIndex index) {
+    }
+
+    /**
+     * Process a header indexed in the received buffer. By default the header
+     * is decoded and parsed right away, subclasses may keep it as a slice of
+     * the buffer and only materialize it when it's accessed.
+     *
+     * @param index
+     *            the index of the message being parsed
+     * @param header
+     *            the index of the header in the message index
+     */
+    protected void processHeader(MessageIndex index, int header, SIPMessage message, ParseExceptionListener parseExceptionListener, byte[] msgBuffer) throws ParseException {
+        processHeader(index.getHeaderLine(header), message, parseExceptionListener, msgBuffer);
+    }
+
     protected void processHeader(char[] header, SIPMessage message, ParseExceptionListener parseExceptionListener, byte[] msgBuffer) throws ParseException {
         if (header == null || header.length == 0)
             return;
@@ -303,8 +594,10 @@ public class CharsMsgParser implements MessageParser {
         try {        	        	
             headerParser = ParserFactory.createParser(header);
         } catch (ParseException ex) {
+            if (parseExceptionListener == null)
+                throw ex;
             parseExceptionListener.handleException(ex, message, null,
-            		String.valueOf(header), String.valueOf(msgBuffer));
+            		String.valueOf(header), new String(msgBuffer, charset));
             return;
         }
 
@@ -320,7 +613,7 @@ public class CharsMsgParser implements MessageParser {
 
                 }
                 parseExceptionListener.handleException(ex, message,
-                        headerClass, String.valueOf(header), String.valueOf(msgBuffer));
+                        headerClass, String.valueOf(header), new String(msgBuffer, charset));
 
             }
         }
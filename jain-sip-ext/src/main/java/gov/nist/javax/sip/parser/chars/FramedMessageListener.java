@@ -0,0 +1,41 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package gov.nist.javax.sip.parser.chars;
+
+/**
+ * Receives the messages framed by a {@link StreamFramer}, on the thread feeding the framer.
+ */
+public interface FramedMessageListener {
+
+	/**
+	 * A complete message was framed and parsed, the result has to be checked 
+	 * before using the message.
+	 */
+	void messageFramed(ParseResult result);
+
+	/**
+	 * A double CRLF keep alive was received between messages, RFC 5626 expects 
+	 * a single CRLF to be sent back.
+	 */
+	void keepAliveReceived();
+}
@@ -0,0 +1,390 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package gov.nist.javax.sip.parser.chars;
+
+import gov.nist.javax.sip.header.extensions.JoinHeader;
+import gov.nist.javax.sip.header.extensions.MinSEHeader;
+import gov.nist.javax.sip.header.extensions.ReferencesHeader;
+import gov.nist.javax.sip.header.extensions.ReferredByHeader;
+import gov.nist.javax.sip.header.extensions.ReplacesHeader;
+import gov.nist.javax.sip.header.extensions.SessionExpiresHeader;
+import gov.nist.javax.sip.header.ims.PAccessNetworkInfoHeader;
+import gov.nist.javax.sip.header.ims.PAssertedIdentityHeader;
+import gov.nist.javax.sip.header.ims.PAssertedServiceHeader;
+import gov.nist.javax.sip.header.ims.PAssociatedURIHeader;
+import gov.nist.javax.sip.header.ims.PCalledPartyIDHeader;
+import gov.nist.javax.sip.header.ims.PChargingFunctionAddressesHeader;
+import gov.nist.javax.sip.header.ims.PChargingVectorHeader;
+import gov.nist.javax.sip.header.ims.PMediaAuthorizationHeader;
+import gov.nist.javax.sip.header.ims.PPreferredIdentityHeader;
+import gov.nist.javax.sip.header.ims.PPreferredServiceHeader;
+import gov.nist.javax.sip.header.ims.PProfileKeyHeader;
+import gov.nist.javax.sip.header.ims.PServedUserHeader;
+import gov.nist.javax.sip.header.ims.PUserDatabaseHeader;
+import gov.nist.javax.sip.header.ims.PVisitedNetworkIDHeader;
+import gov.nist.javax.sip.header.ims.PathHeader;
+import gov.nist.javax.sip.header.ims.PrivacyHeader;
+import gov.nist.javax.sip.header.ims.SecurityClientHeader;
+import gov.nist.javax.sip.header.ims.SecurityServerHeader;
+import gov.nist.javax.sip.header.ims.SecurityVerifyHeader;
+import gov.nist.javax.sip.header.ims.ServiceRouteHeader;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sip.header.AcceptEncodingHeader;
+import javax.sip.header.AcceptHeader;
+import javax.sip.header.AcceptLanguageHeader;
+import javax.sip.header.AlertInfoHeader;
+import javax.sip.header.AllowEventsHeader;
+import javax.sip.header.AllowHeader;
+import javax.sip.header.AuthenticationInfoHeader;
+import javax.sip.header.AuthorizationHeader;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.CallInfoHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.ContentDispositionHeader;
+import javax.sip.header.ContentEncodingHeader;
+import javax.sip.header.ContentLanguageHeader;
+import javax.sip.header.ContentLengthHeader;
+import javax.sip.header.ContentTypeHeader;
+import javax.sip.header.DateHeader;
+import javax.sip.header.ErrorInfoHeader;
+import javax.sip.header.EventHeader;
+import javax.sip.header.ExpiresHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.InReplyToHeader;
+import javax.sip.header.MaxForwardsHeader;
+import javax.sip.header.MimeVersionHeader;
+import javax.sip.header.MinExpiresHeader;
+import javax.sip.header.OrganizationHeader;
+import javax.sip.header.PriorityHeader;
+import javax.sip.header.ProxyAuthenticateHeader;
+import javax.sip.header.ProxyAuthorizationHeader;
+import javax.sip.header.ProxyRequireHeader;
+import javax.sip.header.RAckHeader;
+import javax.sip.header.RSeqHeader;
+import javax.sip.header.ReasonHeader;
+import javax.sip.header.RecordRouteHeader;
+import javax.sip.header.ReferToHeader;
+import javax.sip.header.ReplyToHeader;
+import javax.sip.header.RequireHeader;
+import javax.sip.header.RetryAfterHeader;
+import javax.sip.header.RouteHeader;
+import javax.sip.header.SIPETagHeader;
+import javax.sip.header.SIPIfMatchHeader;
+import javax.sip.header.ServerHeader;
+import javax.sip.header.SubjectHeader;
+import javax.sip.header.SubscriptionStateHeader;
+import javax.sip.header.SupportedHeader;
+import javax.sip.header.TimeStampHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.header.UnsupportedHeader;
+import javax.sip.header.UserAgentHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.header.WWWAuthenticateHeader;
+import javax.sip.header.WarningHeader;
+
+/**
+ * Numeric identifiers of the SIP header names known to the stack.
+ * 
+ * The ids are dense, starting at 0, the most frequent headers coming first, so that they can be used
+ * to index arrays or bit sets and to dispatch in a switch instead of hashing lower cased names.
+ * Compact forms map to the id of their long form. Lookups are case insensitive and can be done directly
+ * on the char[] or byte[] range holding the name, without allocating.
+ * 
+ * Header names unknown to the stack can be given an id at runtime through {@link #register(String)}.
+ */
+public final class HeaderIds {
+
+	public static final int UNKNOWN = KeywordTrie.NOT_FOUND;
+
+	public static final int VIA = 0;
+	public static final int FROM = 1;
+	public static final int TO = 2;
+	public static final int CALL_ID = 3;
+	public static final int CSEQ = 4;
+	public static final int MAX_FORWARDS = 5;
+	public static final int CONTACT = 6;
+	public static final int ROUTE = 7;
+	public static final int RECORD_ROUTE = 8;
+	public static final int CONTENT_LENGTH = 9;
+	public static final int CONTENT_TYPE = 10;
+	public static final int EXPIRES = 11;
+	public static final int ALLOW = 12;
+	public static final int SUPPORTED = 13;
+	public static final int REQUIRE = 14;
+	public static final int PROXY_REQUIRE = 15;
+	public static final int UNSUPPORTED = 16;
+	public static final int USER_AGENT = 17;
+	public static final int SERVER = 18;
+	public static final int AUTHORIZATION = 19;
+	public static final int PROXY_AUTHORIZATION = 20;
+	public static final int WWW_AUTHENTICATE = 21;
+	public static final int PROXY_AUTHENTICATE = 22;
+	public static final int AUTHENTICATION_INFO = 23;
+	public static final int ACCEPT = 24;
+	public static final int ACCEPT_ENCODING = 25;
+	public static final int ACCEPT_LANGUAGE = 26;
+	public static final int ALERT_INFO = 27;
+	public static final int ALLOW_EVENTS = 28;
+	public static final int CALL_INFO = 29;
+	public static final int CONTENT_DISPOSITION = 30;
+	public static final int CONTENT_ENCODING = 31;
+	public static final int CONTENT_LANGUAGE = 32;
+	public static final int DATE = 33;
+	public static final int ERROR_INFO = 34;
+	public static final int EVENT = 35;
+	public static final int IN_REPLY_TO = 36;
+	public static final int MIME_VERSION = 37;
+	public static final int MIN_EXPIRES = 38;
+	public static final int ORGANIZATION = 39;
+	public static final int PRIORITY = 40;
+	public static final int RACK = 41;
+	public static final int RSEQ = 42;
+	public static final int REASON = 43;
+	public static final int REFER_TO = 44;
+	public static final int REPLY_TO = 45;
+	public static final int RETRY_AFTER = 46;
+	public static final int SIP_ETAG = 47;
+	public static final int SIP_IF_MATCH = 48;
+	public static final int SUBJECT = 49;
+	public static final int SUBSCRIPTION_STATE = 50;
+	public static final int TIMESTAMP = 51;
+	public static final int WARNING = 52;
+
+	// RFC 3891, 3892, 3911, 4028 and draft-worley-references extensions
+	public static final int REFERRED_BY = 53;
+	public static final int SESSION_EXPIRES = 54;
+	public static final int MIN_SE = 55;
+	public static final int REPLACES = 56;
+	public static final int JOIN = 57;
+	public static final int REFERENCES = 58;
+
+	// IMS headers
+	public static final int P_ACCESS_NETWORK_INFO = 59;
+	public static final int P_ASSERTED_IDENTITY = 60;
+	public static final int P_ASSERTED_SERVICE = 61;
+	public static final int P_ASSOCIATED_URI = 62;
+	public static final int P_CALLED_PARTY_ID = 63;
+	public static final int P_CHARGING_FUNCTION_ADDRESSES = 64;
+	public static final int P_CHARGING_VECTOR = 65;
+	public static final int P_MEDIA_AUTHORIZATION = 66;
+	public static final int P_PREFERRED_IDENTITY = 67;
+	public static final int P_PREFERRED_SERVICE = 68;
+	public static final int P_PROFILE_KEY = 69;
+	public static final int P_SERVED_USER = 70;
+	public static final int P_USER_DATABASE = 71;
+	public static final int P_VISITED_NETWORK_ID = 72;
+	public static final int PATH = 73;
+	public static final int PRIVACY = 74;
+	public static final int SECURITY_CLIENT = 75;
+	public static final int SECURITY_SERVER = 76;
+	public static final int SECURITY_VERIFY = 77;
+	public static final int SERVICE_ROUTE = 78;
+
+	/**
+	 * Number of ids known out of the box, ids registered at runtime start from there
+	 */
+	public static final int BUILTIN_COUNT = 79;
+
+	private static final Map<String, Integer> keywords = new HashMap<String, Integer>();
+	private static volatile String[] names;
+	private static volatile KeywordTrie trie;
+
+	static {
+		String[] builtinNames = new String[BUILTIN_COUNT];
+		builtinNames[VIA] = ViaHeader.NAME;
+		builtinNames[FROM] = FromHeader.NAME;
+		builtinNames[TO] = ToHeader.NAME;
+		builtinNames[CALL_ID] = CallIdHeader.NAME;
+		builtinNames[CSEQ] = CSeqHeader.NAME;
+		builtinNames[MAX_FORWARDS] = MaxForwardsHeader.NAME;
+		builtinNames[CONTACT] = ContactHeader.NAME;
+		builtinNames[ROUTE] = RouteHeader.NAME;
+		builtinNames[RECORD_ROUTE] = RecordRouteHeader.NAME;
+		builtinNames[CONTENT_LENGTH] = ContentLengthHeader.NAME;
+		builtinNames[CONTENT_TYPE] = ContentTypeHeader.NAME;
+		builtinNames[EXPIRES] = ExpiresHeader.NAME;
+		builtinNames[ALLOW] = AllowHeader.NAME;
+		builtinNames[SUPPORTED] = SupportedHeader.NAME;
+		builtinNames[REQUIRE] = RequireHeader.NAME;
+		builtinNames[PROXY_REQUIRE] = ProxyRequireHeader.NAME;
+		builtinNames[UNSUPPORTED] = UnsupportedHeader.NAME;
+		builtinNames[USER_AGENT] = UserAgentHeader.NAME;
+		builtinNames[SERVER] = ServerHeader.NAME;
+		builtinNames[AUTHORIZATION] = AuthorizationHeader.NAME;
+		builtinNames[PROXY_AUTHORIZATION] = ProxyAuthorizationHeader.NAME;
+		builtinNames[WWW_AUTHENTICATE] = WWWAuthenticateHeader.NAME;
+		builtinNames[PROXY_AUTHENTICATE] = ProxyAuthenticateHeader.NAME;
+		builtinNames[AUTHENTICATION_INFO] = AuthenticationInfoHeader.NAME;
+		builtinNames[ACCEPT] = AcceptHeader.NAME;
+		builtinNames[ACCEPT_ENCODING] = AcceptEncodingHeader.NAME;
+		builtinNames[ACCEPT_LANGUAGE] = AcceptLanguageHeader.NAME;
+		builtinNames[ALERT_INFO] = AlertInfoHeader.NAME;
+		builtinNames[ALLOW_EVENTS] = AllowEventsHeader.NAME;
+		builtinNames[CALL_INFO] = CallInfoHeader.NAME;
+		builtinNames[CONTENT_DISPOSITION] = ContentDispositionHeader.NAME;
+		builtinNames[CONTENT_ENCODING] = ContentEncodingHeader.NAME;
+		builtinNames[CONTENT_LANGUAGE] = ContentLanguageHeader.NAME;
+		builtinNames[DATE] = DateHeader.NAME;
+		builtinNames[ERROR_INFO] = ErrorInfoHeader.NAME;
+		builtinNames[EVENT] = EventHeader.NAME;
+		builtinNames[IN_REPLY_TO] = InReplyToHeader.NAME;
+		builtinNames[MIME_VERSION] = MimeVersionHeader.NAME;
+		builtinNames[MIN_EXPIRES] = MinExpiresHeader.NAME;
+		builtinNames[ORGANIZATION] = OrganizationHeader.NAME;
+		builtinNames[PRIORITY] = PriorityHeader.NAME;
+		builtinNames[RACK] = RAckHeader.NAME;
+		builtinNames[RSEQ] = RSeqHeader.NAME;
+		builtinNames[REASON] = ReasonHeader.NAME;
+		builtinNames[REFER_TO] = ReferToHeader.NAME;
+		builtinNames[REPLY_TO] = ReplyToHeader.NAME;
+		builtinNames[RETRY_AFTER] = RetryAfterHeader.NAME;
+		builtinNames[SIP_ETAG] = SIPETagHeader.NAME;
+		builtinNames[SIP_IF_MATCH] = SIPIfMatchHeader.NAME;
+		builtinNames[SUBJECT] = SubjectHeader.NAME;
+		builtinNames[SUBSCRIPTION_STATE] = SubscriptionStateHeader.NAME;
+		builtinNames[TIMESTAMP] = TimeStampHeader.NAME;
+		builtinNames[WARNING] = WarningHeader.NAME;
+		builtinNames[REFERRED_BY] = ReferredByHeader.NAME;
+		builtinNames[SESSION_EXPIRES] = SessionExpiresHeader.NAME;
+		builtinNames[MIN_SE] = MinSEHeader.NAME;
+		builtinNames[REPLACES] = ReplacesHeader.NAME;
+		builtinNames[JOIN] = JoinHeader.NAME;
+		builtinNames[REFERENCES] = ReferencesHeader.NAME;
+		builtinNames[P_ACCESS_NETWORK_INFO] = PAccessNetworkInfoHeader.NAME;
+		builtinNames[P_ASSERTED_IDENTITY] = PAssertedIdentityHeader.NAME;
+		builtinNames[P_ASSERTED_SERVICE] = PAssertedServiceHeader.NAME;
+		builtinNames[P_ASSOCIATED_URI] = PAssociatedURIHeader.NAME;
+		builtinNames[P_CALLED_PARTY_ID] = PCalledPartyIDHeader.NAME;
+		builtinNames[P_CHARGING_FUNCTION_ADDRESSES] = PChargingFunctionAddressesHeader.NAME;
+		builtinNames[P_CHARGING_VECTOR] = PChargingVectorHeader.NAME;
+		builtinNames[P_MEDIA_AUTHORIZATION] = PMediaAuthorizationHeader.NAME;
+		builtinNames[P_PREFERRED_IDENTITY] = PPreferredIdentityHeader.NAME;
+		builtinNames[P_PREFERRED_SERVICE] = PPreferredServiceHeader.NAME;
+		builtinNames[P_PROFILE_KEY] = PProfileKeyHeader.NAME;
+		builtinNames[P_SERVED_USER] = PServedUserHeader.NAME;
+		builtinNames[P_USER_DATABASE] = PUserDatabaseHeader.NAME;
+		builtinNames[P_VISITED_NETWORK_ID] = PVisitedNetworkIDHeader.NAME;
+		builtinNames[PATH] = PathHeader.NAME;
+		builtinNames[PRIVACY] = PrivacyHeader.NAME;
+		builtinNames[SECURITY_CLIENT] = SecurityClientHeader.NAME;
+		builtinNames[SECURITY_SERVER] = SecurityServerHeader.NAME;
+		builtinNames[SECURITY_VERIFY] = SecurityVerifyHeader.NAME;
+		builtinNames[SERVICE_ROUTE] = ServiceRouteHeader.NAME;
+		for (int i = 0; i < builtinNames.length; i++) {
+			keywords.put(builtinNames[i].toLowerCase(), Integer.valueOf(i));
+		}
+		// And now the dreaded short forms....
+		keywords.put("v", Integer.valueOf(VIA));
+		keywords.put("i", Integer.valueOf(CALL_ID));
+		keywords.put("m", Integer.valueOf(CONTACT));
+		keywords.put("l", Integer.valueOf(CONTENT_LENGTH));
+		keywords.put("f", Integer.valueOf(FROM));
+		keywords.put("t", Integer.valueOf(TO));
+		keywords.put("c", Integer.valueOf(CONTENT_TYPE));
+		keywords.put("e", Integer.valueOf(CONTENT_ENCODING));
+		keywords.put("k", Integer.valueOf(SUPPORTED));
+		keywords.put("s", Integer.valueOf(SUBJECT));
+		keywords.put("o", Integer.valueOf(EVENT));
+		keywords.put("u", Integer.valueOf(ALLOW_EVENTS));
+		keywords.put("r", Integer.valueOf(REFER_TO));
+		keywords.put("b", Integer.valueOf(REFERRED_BY));
+		keywords.put("x", Integer.valueOf(SESSION_EXPIRES));
+		names = builtinNames;
+		trie = new KeywordTrie(keywords);
+	}
+
+	private HeaderIds() {
+	}
+
+	/**
+	 * @return the id of the header name found between start (inclusive) and end (exclusive)
+	 * or {@link #UNKNOWN}
+	 */
+	public static int getId(char[] buffer, int start, int end) {
+		return trie.lookup(buffer, start, end);
+	}
+
+	/**
+	 * @return the id of the header name found between start (inclusive) and end (exclusive)
+	 * or {@link #UNKNOWN}
+	 */
+	public static int getId(byte[] buffer, int start, int end) {
+		return trie.lookup(buffer, start, end);
+	}
+
+	/**
+	 * @return the id of the header name or {@link #UNKNOWN}
+	 */
+	public static int getId(String headerName) {
+		return trie.lookup(headerName);
+	}
+
+	/**
+	 * @return the full form of the header name for this id or null if the id is unknown
+	 */
+	public static String getName(int id) {
+		String[] names = HeaderIds.names;
+		if (id < 0 || id >= names.length) {
+			return null;
+		}
+		return names[id];
+	}
+
+	/**
+	 * @return the number of ids currently allocated, builtin and registered
+	 */
+	public static int size() {
+		return names.length;
+	}
+
+	/**
+	 * Allocates an id for a header name unknown to the stack, typically a custom header
+	 * for which a parser is plugged in. Registration is expected to happen at startup, 
+	 * the lookup table being recompiled on each new name.
+	 * 
+	 * @param headerName the name of the header
+	 * @return the id already allocated to this name or the newly allocated one
+	 */
+	public static synchronized int register(String headerName) {
+		if (headerName == null || headerName.length() == 0) {
+			throw new IllegalArgumentException("header name can't be null or empty");
+		}
+		int id = trie.lookup(headerName);
+		if (id != UNKNOWN) {
+			return id;
+		}
+		String[] oldNames = names;
+		id = oldNames.length;
+		String[] newNames = new String[id + 1];
+		System.arraycopy(oldNames, 0, newNames, 0, id);
+		newNames[id] = headerName;
+		names = newNames;
+		keywords.put(headerName.toLowerCase(), Integer.valueOf(id));
+		trie = new KeywordTrie(keywords);
+		return id;
+	}
+}
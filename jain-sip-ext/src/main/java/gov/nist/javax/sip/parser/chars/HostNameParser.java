@@ -196,7 +196,7 @@ public class HostNameParser extends ParserCore {
                 hostname = ipv6Reference();
             }
             //IPv6 address (i.e. missing square brackets)
-            else if( isIPv6Address(lexer.getRest()) )
+            else if( isIPv6Address(lexer.buffer, lexer.ptr, lexer.bufferLen) )
             {
                 int startPtr = lexer.getPtr();
                 lexer.consumeValidChars(
@@ -226,55 +226,31 @@ public class HostNameParser extends ParserCore {
     }
 
     /**
-     * Tries to determine whether the address in <tt>uriHeader</tt> could be
-     * an IPv6 address by counting the number of colons that appear in it.
+     * Tries to determine whether the address starting at <tt>start</tt> could
+     * be an IPv6 address by counting the number of colons that appear in it.
+     * The lexer buffer is scanned in place instead of copying the rest of it.
      *
-     * @param uriHeader the string (supposedly the value of a URI header) that
+     * @param buffer the chars (supposedly the value of a URI header) that
      * we have received for parsing.
      *
-     * @return true if the host part of <tt>uriHeader</tt> could be an IPv6
-     * address (i.e. contains at least two colons) and false otherwise.
+     * @return true if the host part could be an IPv6 address (i.e. contains
+     * at least two colons) and false otherwise.
      */
-    private boolean isIPv6Address(String uriHeader)
-    {    	
-    	// Issue 275 https://jain-sip.dev.java.net/issues/show_bug.cgi?id=275 
-    	// we check if the uriHeader includes a comma, if that's the case we are potentially parsing
-    	// a multi header so strip everything after it
-    	String hostName = uriHeader;
-    	int indexOfComma = uriHeader.indexOf(",");
-    	if(indexOfComma != -1) {
-    		hostName  = uriHeader.substring(0, indexOfComma);
-    	}
-        // approximately detect the end the host part.
-        //first check if we have an uri param
-        int hostEnd = hostName.indexOf(Lexer.QUESTION);
-
-        //if not or if it appears after a semi-colon then the end of the
-        //address would be a header param.
-        int semiColonIndex = hostName.indexOf(Lexer.SEMICOLON);
-        if ( hostEnd == -1
-            || (semiColonIndex!= -1 && hostEnd > semiColonIndex) )
-            hostEnd = semiColonIndex;
-
-        //if there was no header param either the address
-        //continues until the end of the string
-        if ( hostEnd == -1 )
-            hostEnd = hostName.length();
-
-        //extract the address
-        String host = hostName.substring(0, hostEnd);
-
-        int firstColonIndex = host.indexOf(Lexer.COLON);
-
-        if(firstColonIndex == -1)
-            return false;
-
-        int secondColonIndex = host.indexOf(Lexer.COLON, firstColonIndex + 1);
-
-        if(secondColonIndex == -1)
-            return false;
-
-        return true;
+    static boolean isIPv6Address(char[] buffer, int start, int end)
+    {
+        // Issue 275 https://jain-sip.dev.java.net/issues/show_bug.cgi?id=275
+        // a comma means we are potentially parsing a multi header, a
+        // semi-colon or a question mark ends the host part with uri or
+        // header params
+        int colons = 0;
+        for (int i = start; i < end; i++) {
+            char c = buffer[i];
+            if (c == ',' || c == Lexer.SEMICOLON || c == Lexer.QUESTION)
+                break;
+            if (c == Lexer.COLON && ++colons == 2)
+                return true;
+        }
+        return false;
     }
     /**
      * Parses a host:port string
@@ -0,0 +1,157 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package gov.nist.javax.sip.parser.chars;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Immutable, case insensitive keyword table used to recognize header names and
+ * lexer keywords directly inside the char[] or byte[] being parsed. Matching a
+ * range of the buffer doesn't create any String and doesn't go through the JVM
+ * string table, which makes it safe to use on every token of every message.
+ * 
+ * Only ASCII letters are folded, which is fine since all SIP keywords are ASCII.
+ */
+public final class KeywordTrie {
+
+	public static final int NOT_FOUND = -1;
+
+	private static final char[] NO_KEYS = new char[0];
+	private static final Node[] NO_CHILDREN = new Node[0];
+
+	private static final class Node {
+		private char[] keys = NO_KEYS;
+		private Node[] children = NO_CHILDREN;
+		private int value = NOT_FOUND;
+
+		private Node child(char c) {
+			char[] keys = this.keys;
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		private Node addChild(char c) {
+			int length = keys.length;
+			char[] newKeys = new char[length + 1];
+			Node[] newChildren = new Node[length + 1];
+			System.arraycopy(keys, 0, newKeys, 0, length);
+			System.arraycopy(children, 0, newChildren, 0, length);
+			Node child = new Node();
+			newKeys[length] = c;
+			newChildren[length] = child;
+			keys = newKeys;
+			children = newChildren;
+			return child;
+		}
+	}
+
+	private final Node root;
+	private final int size;
+
+	/**
+	 * Compiles the given keywords into a trie.
+	 * 
+	 * @param keywords the keywords, in any case, with their associated value (must be positive)
+	 */
+	public KeywordTrie(Map<String, Integer> keywords) {
+		Node root = new Node();
+		for (Entry<String, Integer> entry : keywords.entrySet()) {
+			String keyword = entry.getKey();
+			Node node = root;
+			for (int i = 0; i < keyword.length(); i++) {
+				char c = toLowerCase(keyword.charAt(i));
+				Node next = node.child(c);
+				if (next == null) {
+					next = node.addChild(c);
+				}
+				node = next;
+			}
+			node.value = entry.getValue().intValue();
+		}
+		this.root = root;
+		this.size = keywords.size();
+	}
+
+	private static char toLowerCase(char c) {
+		if (c >= 'A' && c <= 'Z') {
+			return (char) (c + ('a' - 'A'));
+		}
+		return c;
+	}
+
+	/**
+	 * @return the value of the keyword found between start (inclusive) and end (exclusive)
+	 * or {@link #NOT_FOUND} 
+	 */
+	public int lookup(char[] buffer, int start, int end) {
+		Node node = root;
+		for (int i = start; i < end; i++) {
+			node = node.child(toLowerCase(buffer[i]));
+			if (node == null) {
+				return NOT_FOUND;
+			}
+		}
+		return node.value;
+	}
+
+	/**
+	 * @return the value of the keyword found between start (inclusive) and end (exclusive)
+	 * or {@link #NOT_FOUND}, the bytes being considered as ASCII 
+	 */
+	public int lookup(byte[] buffer, int start, int end) {
+		Node node = root;
+		for (int i = start; i < end; i++) {
+			node = node.child(toLowerCase((char) (buffer[i] & 0xFF)));
+			if (node == null) {
+				return NOT_FOUND;
+			}
+		}
+		return node.value;
+	}
+
+	/**
+	 * @return the value of the keyword or {@link #NOT_FOUND} 
+	 */
+	public int lookup(CharSequence keyword) {
+		Node node = root;
+		for (int i = 0; i < keyword.length(); i++) {
+			node = node.child(toLowerCase(keyword.charAt(i)));
+			if (node == null) {
+				return NOT_FOUND;
+			}
+		}
+		return node.value;
+	}
+
+	/**
+	 * @return the number of keywords in this trie
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -50,6 +50,7 @@ package gov.nist.javax.sip.parser.chars;
 import gov.nist.core.Debug;
 
 import java.text.ParseException;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -109,21 +110,22 @@ public class LexerCore extends StringTokenizer {
 
     // jeand : using concurrent data structure to avoid excessive blocking
     protected static final ConcurrentHashMap<Integer, String> globalSymbolTable;
-    protected static final ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> lexerTables;
-    protected Map<String, Integer> currentLexer;
+    protected static final ConcurrentHashMap<String, KeywordTrie> lexerTables;
+    protected static final KeywordTrie EMPTY_LEXER = new KeywordTrie(Collections.<String, Integer>emptyMap());
+    protected KeywordTrie currentLexer;
     protected String currentLexerName;
     protected Token currentMatch;
 
     static {
         globalSymbolTable = new ConcurrentHashMap<Integer, String>();        
-        lexerTables = new ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>>();
+        lexerTables = new ConcurrentHashMap<String, KeywordTrie>();
     }
 
-    protected void addKeyword(String name, int value) {
+    protected static void addKeyword(Map<String, Integer> lexer, String name, int value) {
         // System.out.println("addKeyword " + name + " value = " + value);
         // new Exception().printStackTrace();
         Integer val = Integer.valueOf(value);
-        currentLexer.put(name, val);
+        lexer.put(name, val);
 //        if (!globalSymbolTable.containsKey(val))
         globalSymbolTable.putIfAbsent(val, name);
     }
@@ -153,7 +155,7 @@ public class LexerCore extends StringTokenizer {
     }
 
     protected LexerCore() {
-        this.currentLexer = new ConcurrentHashMap<String, Integer>();
+        this.currentLexer = EMPTY_LEXER;
         this.currentLexerName = "charLexer";
     }
 
@@ -201,10 +203,9 @@ public class LexerCore extends StringTokenizer {
             if (startsId()) {
                 char[] id = ttoken();
                 tok.tokenValue = id;
-                String idUppercase = String.valueOf(id).toUpperCase().intern();
-                if (currentLexer.containsKey(idUppercase)) {
-                    Integer type = (Integer) currentLexer.get(idUppercase);
-                    tok.tokenType = type.intValue();
+                int type = currentLexer.lookup(id, 0, id.length);
+                if (type != KeywordTrie.NOT_FOUND) {
+                    tok.tokenType = type;
                 } else
                     tok.tokenType = ID;
             } else {
@@ -249,9 +250,9 @@ public class LexerCore extends StringTokenizer {
                 this.currentMatch.tokenType = SAFE;
             } else {
             	char[] nexttok = getNextId();
-                Integer cur = (Integer) currentLexer.get(String.valueOf(nexttok).toUpperCase().intern());
+                int cur = currentLexer.lookup(nexttok, 0, nexttok.length);
 
-                if (cur == null || cur.intValue() != tok)
+                if (cur != tok)
                     throw new ParseException(
                         buffer + "\nUnexpected Token : " + nexttok,
                         ptr);
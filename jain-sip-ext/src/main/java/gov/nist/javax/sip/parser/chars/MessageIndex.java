@@ -0,0 +1,227 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package gov.nist.javax.sip.parser.chars;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Offsets of the different parts of a received message inside the buffer it was received in : 
+ * the request or status line, each header line (with its name id from {@link HeaderIds}) and the body.
+ * 
+ * It allows to keep headers as slices of the receive buffer until they are really needed, 
+ * to decode them only at that point and to re-emit the untouched ones byte for byte. 
+ * The buffer is referenced, not copied, so it must not be reused by the caller once indexed.
+ */
+public final class MessageIndex {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final byte[] buffer;
+	private final ByteScanner scanner;
+	private int firstLineStart = -1;
+	private int firstLineEnd = -1;
+	private int[] headerIds = new int[INITIAL_CAPACITY];
+	private int[] headerStarts = new int[INITIAL_CAPACITY];
+	private int[] headerEnds = new int[INITIAL_CAPACITY];
+	private int[] headerNameEnds = new int[INITIAL_CAPACITY];
+	private int headerCount;
+	private int bodyStart = -1;
+
+	public MessageIndex(byte[] buffer) {
+		this.buffer = buffer;
+		this.scanner = new ByteScanner(buffer);
+	}
+
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return the scanner over the indexed buffer
+	 */
+	public ByteScanner getScanner() {
+		return scanner;
+	}
+
+	public void setFirstLine(int start, int end) {
+		firstLineStart = start;
+		firstLineEnd = end;
+	}
+
+	public int getFirstLineStart() {
+		return firstLineStart;
+	}
+
+	public int getFirstLineEnd() {
+		return firstLineEnd;
+	}
+
+	/**
+	 * Index a header line, continuation lines included.
+	 * 
+	 * @param start offset of the first byte of the header name
+	 * @param end offset after the last (trimmed) byte of the header value
+	 * @return the index of the header in this message
+	 */
+	public int addHeader(int start, int end) {
+		if (headerCount == headerIds.length) {
+			int capacity = headerCount << 1;
+			headerIds = Arrays.copyOf(headerIds, capacity);
+			headerStarts = Arrays.copyOf(headerStarts, capacity);
+			headerEnds = Arrays.copyOf(headerEnds, capacity);
+			headerNameEnds = Arrays.copyOf(headerNameEnds, capacity);
+		}
+		int nameEnd = scanner.indexOf((byte) ':', start, end);
+		int id = HeaderIds.UNKNOWN;
+		if (nameEnd != ByteScanner.NOT_FOUND) {
+			while (nameEnd > start && (buffer[nameEnd - 1] == ' ' || buffer[nameEnd - 1] == '\t'))
+				nameEnd--;
+			id = HeaderIds.getId(buffer, start, nameEnd);
+		} else {
+			// no colon, there is no header name
+			nameEnd = start;
+		}
+		headerIds[headerCount] = id;
+		headerStarts[headerCount] = start;
+		headerEnds[headerCount] = end;
+		headerNameEnds[headerCount] = nameEnd;
+		return headerCount++;
+	}
+
+	public int getHeaderCount() {
+		return headerCount;
+	}
+
+	/**
+	 * @return the {@link HeaderIds} id of the header or {@link HeaderIds#UNKNOWN} 
+	 */
+	public int getHeaderId(int header) {
+		return headerIds[header];
+	}
+
+	public int getHeaderStart(int header) {
+		return headerStarts[header];
+	}
+
+	public int getHeaderEnd(int header) {
+		return headerEnds[header];
+	}
+
+	/**
+	 * @return false if the header line has no colon or an empty name
+	 */
+	public boolean hasHeaderName(int header) {
+		return headerNameEnds[header] > headerStarts[header];
+	}
+
+	/**
+	 * @return the offset after the last byte of the header name
+	 */
+	public int getHeaderNameEnd(int header) {
+		return headerNameEnds[header];
+	}
+
+	/**
+	 * @return the header name as it appears in the message (compact form or not) or null if it has no name
+	 */
+	public String getHeaderName(int header) {
+		int start = headerStarts[header];
+		if (headerNameEnds[header] == start) {
+			return null;
+		}
+		return new String(buffer, start, headerNameEnds[header] - start, UTF8);
+	}
+
+	/**
+	 * @return the header line unfolded, decoded and terminated by '\n' as expected by the header parsers
+	 */
+	public char[] getHeaderLine(int header) {
+		return CharsMsgParser.decodeLine(buffer, headerStarts[header], headerEnds[header]);
+	}
+
+	/**
+	 * Appends the header to the encoding exactly as it was received, folding included, 
+	 * followed by CRLF.
+	 */
+	public StringBuilder encodeHeader(int header, StringBuilder encoding) {
+		int start = headerStarts[header];
+		int end = headerEnds[header];
+		for (int i = start; i < end; i++) {
+			if (buffer[i] < 0) {
+				return encoding.append(new String(buffer, start, end - start, UTF8)).append("\r\n");
+			}
+		}
+		for (int i = start; i < end; i++) {
+			encoding.append((char) buffer[i]);
+		}
+		return encoding.append("\r\n");
+	}
+
+	/**
+	 * @return the number of bytes needed to re-emit the header as received, CRLF included
+	 */
+	public int getEncodedHeaderLength(int header) {
+		return headerEnds[header] - headerStarts[header] + 2;
+	}
+
+	/**
+	 * Copies the header exactly as it was received, folding included, followed by CRLF.
+	 * 
+	 * @return the offset in the destination after the copied bytes
+	 */
+	public int copyHeader(int header, byte[] destination, int offset) {
+		int length = headerEnds[header] - headerStarts[header];
+		System.arraycopy(buffer, headerStarts[header], destination, offset, length);
+		offset += length;
+		destination[offset++] = '\r';
+		destination[offset++] = '\n';
+		return offset;
+	}
+
+	/**
+	 * Puts the header exactly as it was received, folding included, followed by CRLF. 
+	 * The buffer must have {@link #getEncodedHeaderLength(int)} bytes remaining.
+	 */
+	public ByteBuffer copyHeader(int header, ByteBuffer destination) {
+		destination.put(buffer, headerStarts[header], headerEnds[header] - headerStarts[header]);
+		return destination.put((byte) '\r').put((byte) '\n');
+	}
+
+	public void setBodyStart(int bodyStart) {
+		this.bodyStart = bodyStart;
+	}
+
+	/**
+	 * @return the offset of the body or -1 until the headers have been indexed
+	 */
+	public int getBodyStart() {
+		return bodyStart;
+	}
+
+	public int getBodyLength() {
+		return bodyStart == -1 ? 0 : buffer.length - bodyStart;
+	}
+}
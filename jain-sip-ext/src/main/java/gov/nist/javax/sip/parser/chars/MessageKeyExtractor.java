@@ -0,0 +1,543 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package gov.nist.javax.sip.parser.chars;
+
+/**
+ * Pulls the routing keys out of a received message without building a SIPMessage : the Call-ID, 
+ * the sent-by and branch of the top Via, the CSeq number and method and the From and To tags. 
+ * They are exposed as offsets in the buffer and as 64 bits hashes, so that a worker or a cluster 
+ * node can be picked, or a retransmission recognized, before the message is fully parsed.
+ * 
+ * Headers are recognized through {@link HeaderIds} so compact forms are supported, and the scan 
+ * stops as soon as all the keys have been seen. An extractor is not thread safe but can be reused 
+ * for every message received on a thread.
+ */
+public final class MessageKeyExtractor {
+
+	public static final int NOT_FOUND = -1;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static final byte[] SIP_VERSION = { 'S', 'I', 'P', '/' };
+	private static final byte[] MAGIC_COOKIE = { 'z', '9', 'h', 'g', '4', 'b', 'k' };
+	private static final byte[] BRANCH = { 'b', 'r', 'a', 'n', 'c', 'h' };
+	private static final byte[] TAG = { 't', 'a', 'g' };
+	private static final byte[] ACK = { 'A', 'C', 'K' };
+	private static final long INVITE_HASH = hash(new byte[] { 'I', 'N', 'V', 'I', 'T', 'E' }, 0, 6);
+
+	private static final int CALL_ID_FOUND = 1;
+	private static final int CSEQ_FOUND = 1 << 1;
+	private static final int VIA_FOUND = 1 << 2;
+	private static final int FROM_FOUND = 1 << 3;
+	private static final int TO_FOUND = 1 << 4;
+	private static final int ALL_FOUND = (1 << 5) - 1;
+
+	private byte[] buffer;
+	private ByteScanner scanner;
+	private int found;
+	private boolean request;
+	private int methodStart;
+	private int methodEnd;
+	private int statusCode;
+	private int callIdStart;
+	private int callIdEnd;
+	private long cseqNumber;
+	private int cseqMethodStart;
+	private int cseqMethodEnd;
+	private int viaSentByStart;
+	private int viaSentByEnd;
+	private int viaBranchStart;
+	private int viaBranchEnd;
+	private int fromTagStart;
+	private int fromTagEnd;
+	private int toTagStart;
+	private int toTagEnd;
+	// end of the last parameter value found by findParameter
+	private int valueEnd;
+
+	public boolean extract(byte[] buffer) {
+		return extract(buffer, 0, buffer.length);
+	}
+
+	/**
+	 * Scans the first line and the headers of the message in the given range. 
+	 * 
+	 * @return true if a first line and a Call-ID were found, false if the range 
+	 * doesn't look like a SIP message (a keep alive for instance)
+	 */
+	public boolean extract(byte[] buffer, int offset, int length) {
+		reset(buffer);
+		int end = offset + length;
+		int i = offset;
+		// Skip leading control chars, as the parser does.
+		while (i < end && (buffer[i] & 0xFF) <= 0x20)
+			i++;
+		if (i == end)
+			return false;
+
+		int lineEnd = scanner.indexOfLineEnd(i, end);
+		if (lineEnd == ByteScanner.NOT_FOUND)
+			return false;
+		if (!extractFirstLine(i, lineEnd))
+			return false;
+		i = nextLine(lineEnd, end);
+
+		int headerStart = -1;
+		int headerEnd = -1;
+		while (i < end && found != ALL_FOUND) {
+			int lineStart = i;
+			lineEnd = scanner.indexOfLineEnd(i, end);
+			if (lineEnd == ByteScanner.NOT_FOUND)
+				lineEnd = end;
+			i = nextLine(lineEnd, end);
+			while (lineEnd > lineStart && (buffer[lineEnd - 1] & 0xFF) <= 0x20)
+				lineEnd--;
+
+			if (lineEnd == lineStart) {
+				// end of the headers
+				break;
+			}
+			byte firstByte = buffer[lineStart];
+			if (firstByte == ' ' || firstByte == '\t') {
+				// continuation, the folding is skipped as white space
+				if (headerStart != -1)
+					headerEnd = lineEnd;
+			} else {
+				if (headerStart != -1)
+					extractHeader(headerStart, headerEnd);
+				headerStart = lineStart;
+				headerEnd = lineEnd;
+			}
+		}
+		if (headerStart != -1 && found != ALL_FOUND)
+			extractHeader(headerStart, headerEnd);
+
+		return callIdStart != NOT_FOUND;
+	}
+
+	private void reset(byte[] buffer) {
+		if (this.buffer != buffer) {
+			this.buffer = buffer;
+			this.scanner = new ByteScanner(buffer);
+		}
+		found = 0;
+		request = false;
+		methodStart = methodEnd = NOT_FOUND;
+		statusCode = NOT_FOUND;
+		callIdStart = callIdEnd = NOT_FOUND;
+		cseqNumber = NOT_FOUND;
+		cseqMethodStart = cseqMethodEnd = NOT_FOUND;
+		viaSentByStart = viaSentByEnd = NOT_FOUND;
+		viaBranchStart = viaBranchEnd = NOT_FOUND;
+		fromTagStart = fromTagEnd = NOT_FOUND;
+		toTagStart = toTagEnd = NOT_FOUND;
+	}
+
+	private int nextLine(int lineEnd, int end) {
+		if (lineEnd < end - 1 && buffer[lineEnd] == '\r' && buffer[lineEnd + 1] == '\n')
+			return lineEnd + 2;
+		return lineEnd + 1;
+	}
+
+	private boolean extractFirstLine(int start, int end) {
+		int tokenEnd = skipToken(start, end);
+		if (tokenEnd == start || tokenEnd == end)
+			return false;
+		if (regionMatches(start, tokenEnd, SIP_VERSION, false)) {
+			// Status line
+			int i = skipWhiteSpace(tokenEnd, end);
+			int code = 0;
+			int digits = i;
+			while (i < end && i - digits < 3 && buffer[i] >= '0' && buffer[i] <= '9')
+				code = code * 10 + (buffer[i++] - '0');
+			if (i - digits != 3)
+				return false;
+			statusCode = code;
+		} else {
+			request = true;
+			methodStart = start;
+			methodEnd = tokenEnd;
+		}
+		return true;
+	}
+
+	private void extractHeader(int start, int end) {
+		int colon = scanner.indexOf((byte) ':', start, end);
+		if (colon == ByteScanner.NOT_FOUND)
+			return;
+		int nameEnd = colon;
+		while (nameEnd > start && (buffer[nameEnd - 1] == ' ' || buffer[nameEnd - 1] == '\t'))
+			nameEnd--;
+		int value = skipWhiteSpace(colon + 1, end);
+		switch (HeaderIds.getId(buffer, start, nameEnd)) {
+		case HeaderIds.CALL_ID:
+			if ((found & CALL_ID_FOUND) == 0) {
+				found |= CALL_ID_FOUND;
+				callIdStart = value;
+				callIdEnd = end;
+			}
+			break;
+		case HeaderIds.CSEQ:
+			if ((found & CSEQ_FOUND) == 0) {
+				found |= CSEQ_FOUND;
+				extractCSeq(value, end);
+			}
+			break;
+		case HeaderIds.VIA:
+			if ((found & VIA_FOUND) == 0) {
+				found |= VIA_FOUND;
+				extractVia(value, end);
+			}
+			break;
+		case HeaderIds.FROM:
+			if ((found & FROM_FOUND) == 0) {
+				found |= FROM_FOUND;
+				fromTagStart = findParameter(skipAddress(value, end), end, TAG);
+				fromTagEnd = valueEnd;
+			}
+			break;
+		case HeaderIds.TO:
+			if ((found & TO_FOUND) == 0) {
+				found |= TO_FOUND;
+				toTagStart = findParameter(skipAddress(value, end), end, TAG);
+				toTagEnd = valueEnd;
+			}
+			break;
+		}
+	}
+
+	private void extractCSeq(int i, int end) {
+		long number = 0;
+		int digits = i;
+		while (i < end && i - digits < 10 && buffer[i] >= '0' && buffer[i] <= '9')
+			number = number * 10 + (buffer[i++] - '0');
+		if (i == digits)
+			return;
+		int method = skipWhiteSpace(i, end);
+		int methodEnd = skipToken(method, end);
+		if (methodEnd == method)
+			return;
+		cseqNumber = number;
+		cseqMethodStart = method;
+		cseqMethodEnd = methodEnd;
+	}
+
+	private void extractVia(int i, int end) {
+		// sent-protocol is SIP / 2.0 / transport with optional white space around the slashes
+		for (int slashes = 0; slashes < 2; slashes++) {
+			while (i < end && buffer[i] != '/' && buffer[i] != ',')
+				i++;
+			if (i == end || buffer[i] != '/')
+				return;
+			i++;
+		}
+		i = skipToken(skipWhiteSpace(i, end), end);
+		int sentBy = skipWhiteSpace(i, end);
+		i = sentBy;
+		if (i < end && buffer[i] == '[') {
+			while (i < end && buffer[i] != ']')
+				i++;
+			if (i == end)
+				return;
+			i++;
+		} else {
+			while (i < end && buffer[i] != ':' && buffer[i] != ';' && buffer[i] != ','
+					&& !isWhiteSpace(buffer[i]))
+				i++;
+		}
+		if (i == sentBy)
+			return;
+		int sentByEnd = i;
+		i = skipWhiteSpace(i, end);
+		if (i < end && buffer[i] == ':') {
+			i = skipWhiteSpace(i + 1, end);
+			while (i < end && buffer[i] >= '0' && buffer[i] <= '9')
+				i++;
+			sentByEnd = i;
+		}
+		viaSentByStart = sentBy;
+		viaSentByEnd = sentByEnd;
+		viaBranchStart = findParameter(sentByEnd, end, BRANCH);
+		viaBranchEnd = valueEnd;
+	}
+
+	/**
+	 * @return the offset of the header parameters following a name-addr or addr-spec
+	 */
+	private int skipAddress(int i, int end) {
+		while (i < end) {
+			byte b = buffer[i];
+			if (b == '"') {
+				i = skipQuotedString(i, end);
+			} else if (b == '<') {
+				// parameters inside the brackets belong to the URI
+				while (i < end && buffer[i] != '>')
+					i++;
+				return i < end ? i + 1 : end;
+			} else if (b == ';') {
+				return i;
+			} else {
+				i++;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Looks for a parameter in the ;name=value list starting at i, up to the end of the 
+	 * header value or to the first comma separating header values.
+	 * 
+	 * @return the offset of the value, valueEnd being set to its end, or NOT_FOUND
+	 */
+	private int findParameter(int i, int end, byte[] name) {
+		valueEnd = NOT_FOUND;
+		while (true) {
+			i = skipWhiteSpace(i, end);
+			if (i == end || buffer[i] != ';')
+				return NOT_FOUND;
+			int nameStart = skipWhiteSpace(i + 1, end);
+			i = nameStart;
+			while (i < end && buffer[i] != '=' && buffer[i] != ';' && buffer[i] != ','
+					&& !isWhiteSpace(buffer[i]))
+				i++;
+			boolean matches = regionMatches(nameStart, i, name, true) && i - nameStart == name.length;
+			i = skipWhiteSpace(i, end);
+			int value = i;
+			int parameterEnd = i;
+			if (i < end && buffer[i] == '=') {
+				value = skipWhiteSpace(i + 1, end);
+				if (value < end && buffer[value] == '"') {
+					i = skipQuotedString(value, end);
+				} else {
+					i = value;
+					while (i < end && buffer[i] != ';' && buffer[i] != ','
+							&& !isWhiteSpace(buffer[i]))
+						i++;
+				}
+				parameterEnd = i;
+			}
+			if (matches) {
+				valueEnd = parameterEnd;
+				return value;
+			}
+		}
+	}
+
+	private int skipQuotedString(int i, int end) {
+		i++;
+		while (i < end && buffer[i] != '"') {
+			if (buffer[i] == '\\')
+				i++;
+			i++;
+		}
+		return i < end ? i + 1 : end;
+	}
+
+	private int skipToken(int i, int end) {
+		while (i < end && !isWhiteSpace(buffer[i]))
+			i++;
+		return i;
+	}
+
+	private int skipWhiteSpace(int i, int end) {
+		while (i < end && isWhiteSpace(buffer[i]))
+			i++;
+		return i;
+	}
+
+	private static boolean isWhiteSpace(byte b) {
+		// CR and LF are folding inside a header
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	/**
+	 * @return true if the range starts with the given prefix, ASCII letters of the buffer
+	 * being lower cased first when ignoring the case
+	 */
+	private boolean regionMatches(int start, int end, byte[] prefix, boolean ignoreCase) {
+		if (end - start < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; i++) {
+			byte b = buffer[start + i];
+			if (ignoreCase && b >= 'A' && b <= 'Z')
+				b += 'a' - 'A';
+			if (b != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 64 bits FNV-1a hash of a range of bytes.
+	 */
+	public static long hash(byte[] buffer, int start, int end) {
+		long hash = FNV_OFFSET;
+		for (int i = start; i < end; i++) {
+			hash ^= buffer[i] & 0xFF;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * 64 bits FNV-1a hash of a range of bytes, ASCII letters being lower cased.
+	 */
+	public static long hashIgnoreCase(byte[] buffer, int start, int end) {
+		long hash = FNV_OFFSET;
+		for (int i = start; i < end; i++) {
+			int b = buffer[i] & 0xFF;
+			if (b >= 'A' && b <= 'Z')
+				b += 'a' - 'A';
+			hash ^= b;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	public boolean isRequest() {
+		return request;
+	}
+
+	public int getMethodStart() {
+		return methodStart;
+	}
+
+	public int getMethodEnd() {
+		return methodEnd;
+	}
+
+	/**
+	 * @return the status code of a response or NOT_FOUND for a request
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	public int getCallIdStart() {
+		return callIdStart;
+	}
+
+	public int getCallIdEnd() {
+		return callIdEnd;
+	}
+
+	/**
+	 * Call-IDs are compared case sensitively so the hash is too. 
+	 * @return the hash of the Call-ID, or 0 if there is none
+	 */
+	public long getCallIdHash() {
+		return callIdStart == NOT_FOUND ? 0 : hash(buffer, callIdStart, callIdEnd);
+	}
+
+	/**
+	 * @return the CSeq number or NOT_FOUND
+	 */
+	public long getCSeqNumber() {
+		return cseqNumber;
+	}
+
+	public int getCSeqMethodStart() {
+		return cseqMethodStart;
+	}
+
+	public int getCSeqMethodEnd() {
+		return cseqMethodEnd;
+	}
+
+	public int getViaSentByStart() {
+		return viaSentByStart;
+	}
+
+	public int getViaSentByEnd() {
+		return viaSentByEnd;
+	}
+
+	public long getViaSentByHash() {
+		return viaSentByStart == NOT_FOUND ? 0 : hashIgnoreCase(buffer, viaSentByStart, viaSentByEnd);
+	}
+
+	public int getViaBranchStart() {
+		return viaBranchStart;
+	}
+
+	public int getViaBranchEnd() {
+		return viaBranchEnd;
+	}
+
+	public long getViaBranchHash() {
+		return viaBranchStart == NOT_FOUND ? 0 : hashIgnoreCase(buffer, viaBranchStart, viaBranchEnd);
+	}
+
+	public int getFromTagStart() {
+		return fromTagStart;
+	}
+
+	public int getFromTagEnd() {
+		return fromTagEnd;
+	}
+
+	public long getFromTagHash() {
+		return fromTagStart == NOT_FOUND ? 0 : hashIgnoreCase(buffer, fromTagStart, fromTagEnd);
+	}
+
+	public int getToTagStart() {
+		return toTagStart;
+	}
+
+	public int getToTagEnd() {
+		return toTagEnd;
+	}
+
+	public long getToTagHash() {
+		return toTagStart == NOT_FOUND ? 0 : hashIgnoreCase(buffer, toTagStart, toTagEnd);
+	}
+
+	/**
+	 * Hash of the keys matching a message to its transaction as per RFC 3261 17.1.3 and 17.2.3 : 
+	 * the top Via branch, the CSeq method (an ACK being matched to its INVITE) and, for requests, 
+	 * the top Via sent-by. Retransmissions of a message have the same transaction hash.
+	 * 
+	 * @return the hash or 0 if the top Via has no RFC 3261 branch
+	 */
+	public long getTransactionHash() {
+		if (viaBranchStart == NOT_FOUND || cseqMethodStart == NOT_FOUND
+				|| !regionMatches(viaBranchStart, viaBranchEnd, MAGIC_COOKIE, true))
+			return 0;
+		long methodHash;
+		if (cseqMethodEnd - cseqMethodStart == ACK.length
+				&& regionMatches(cseqMethodStart, cseqMethodEnd, ACK, false)) {
+			methodHash = INVITE_HASH;
+		} else {
+			methodHash = hash(buffer, cseqMethodStart, cseqMethodEnd);
+		}
+		long hash = (getViaBranchHash() ^ methodHash) * FNV_PRIME;
+		if (request)
+			hash = (hash ^ getViaSentByHash()) * FNV_PRIME;
+		return hash;
+	}
+}
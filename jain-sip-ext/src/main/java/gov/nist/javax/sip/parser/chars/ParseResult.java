@@ -0,0 +1,118 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package gov.nist.javax.sip.parser.chars;
+
+import gov.nist.javax.sip.message.SIPMessage;
+
+import java.nio.charset.Charset;
+
+/**
+ * Outcome of {@link CharsMsgParser#parse(byte[], boolean, boolean)} : either the parsed message, 
+ * or why and where the received buffer was rejected. Rejections are reported without throwing 
+ * and without copying the buffer, the text of the message is only decoded if asked for.
+ */
+public final class ParseResult {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final int OK = 0;
+	/** the buffer only contains control characters, typically a keep alive */
+	public static final int EMPTY = 1;
+	/** the request or status line is malformed */
+	public static final int BAD_FIRST_LINE = 2;
+	/** a header line is malformed */
+	public static final int BAD_HEADER = 3;
+	/** a continuation line doesn't follow any header */
+	public static final int BAD_CONTINUATION = 4;
+	/** a header mandatory in every message is missing or couldn't be parsed */
+	public static final int MISSING_HEADER = 5;
+	/** the body doesn't match the Content-Length */
+	public static final int BAD_CONTENT_LENGTH = 6;
+
+	private final byte[] buffer;
+	private int status = OK;
+	private int headerId = HeaderIds.UNKNOWN;
+	private int offset = -1;
+	private SIPMessage message;
+
+	ParseResult(byte[] buffer) {
+		this.buffer = buffer;
+	}
+
+	void accept(SIPMessage message) {
+		this.status = OK;
+		this.message = message;
+	}
+
+	ParseResult reject(int status, int headerId, int offset) {
+		this.status = status;
+		this.headerId = headerId;
+		this.offset = offset;
+		this.message = null;
+		return this;
+	}
+
+	public boolean isOk() {
+		return status == OK;
+	}
+
+	/**
+	 * @return {@link #OK} or the reason of the rejection
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return the {@link HeaderIds} id of the offending header or {@link HeaderIds#UNKNOWN}
+	 */
+	public int getHeaderId() {
+		return headerId;
+	}
+
+	/**
+	 * @return the offset in the buffer of the offending line or -1
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return the parsed message or null if it was rejected
+	 */
+	public SIPMessage getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the received message decoded, to be called only when it has to be logged or reported
+	 */
+	public String getMessageText() {
+		return new String(buffer, UTF8);
+	}
+
+	@Override
+	public String toString() {
+		return "ParseResult[status=" + status + ", headerId=" + headerId + ", offset=" + offset + "]";
+	}
+}
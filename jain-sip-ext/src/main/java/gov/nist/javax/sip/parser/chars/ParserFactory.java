@@ -46,114 +46,19 @@
 *
 */
 package gov.nist.javax.sip.parser.chars;
-import gov.nist.core.InternalErrorHandler;
-import gov.nist.javax.sip.header.SIPHeaderNamesCache;
-import gov.nist.javax.sip.header.extensions.Join;
-import gov.nist.javax.sip.header.extensions.MinSE;
-import gov.nist.javax.sip.header.extensions.References;
-import gov.nist.javax.sip.header.extensions.ReferredBy;
-import gov.nist.javax.sip.header.extensions.Replaces;
-import gov.nist.javax.sip.header.extensions.SessionExpires;
-import gov.nist.javax.sip.header.ims.PAccessNetworkInfoHeader;
-import gov.nist.javax.sip.header.ims.PAssertedIdentityHeader;
-import gov.nist.javax.sip.header.ims.PAssociatedURIHeader;
-import gov.nist.javax.sip.header.ims.PCalledPartyIDHeader;
-import gov.nist.javax.sip.header.ims.PChargingFunctionAddressesHeader;
-import gov.nist.javax.sip.header.ims.PChargingVectorHeader;
-import gov.nist.javax.sip.header.ims.PMediaAuthorizationHeader;
-import gov.nist.javax.sip.header.ims.PPreferredIdentityHeader;
-import gov.nist.javax.sip.header.ims.PVisitedNetworkIDHeader;
-import gov.nist.javax.sip.header.ims.PathHeader;
-import gov.nist.javax.sip.header.ims.PrivacyHeader;
-import gov.nist.javax.sip.header.ims.SecurityClientHeader;
-import gov.nist.javax.sip.header.ims.SecurityServerHeader;
-import gov.nist.javax.sip.header.ims.SecurityVerifyHeader;
-import gov.nist.javax.sip.header.ims.ServiceRouteHeader;
-import gov.nist.javax.sip.parser.extensions.JoinParser;
-import gov.nist.javax.sip.parser.extensions.MinSEParser;
-import gov.nist.javax.sip.parser.extensions.ReferencesParser;
-import gov.nist.javax.sip.parser.extensions.ReferredByParser;
-import gov.nist.javax.sip.parser.extensions.ReplacesParser;
-import gov.nist.javax.sip.parser.extensions.SessionExpiresParser;
-import gov.nist.javax.sip.parser.ims.PAccessNetworkInfoParser;
-import gov.nist.javax.sip.parser.ims.PAssertedIdentityParser;
-import gov.nist.javax.sip.parser.ims.PAssociatedURIParser;
-import gov.nist.javax.sip.parser.ims.PCalledPartyIDParser;
-import gov.nist.javax.sip.parser.ims.PChargingFunctionAddressesParser;
-import gov.nist.javax.sip.parser.ims.PChargingVectorParser;
-import gov.nist.javax.sip.parser.ims.PMediaAuthorizationParser;
-import gov.nist.javax.sip.parser.ims.PPreferredIdentityParser;
-import gov.nist.javax.sip.parser.ims.PVisitedNetworkIDParser;
-import gov.nist.javax.sip.parser.ims.PathParser;
-import gov.nist.javax.sip.parser.ims.PrivacyParser;
-import gov.nist.javax.sip.parser.ims.SecurityClientParser;
-import gov.nist.javax.sip.parser.ims.SecurityServerParser;
-import gov.nist.javax.sip.parser.ims.SecurityVerifyParser;
-import gov.nist.javax.sip.parser.ims.ServiceRouteParser;
 
-import java.lang.reflect.Constructor;
 import java.text.ParseException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
-import javax.sip.header.AcceptEncodingHeader;
-import javax.sip.header.AcceptHeader;
-import javax.sip.header.AcceptLanguageHeader;
-import javax.sip.header.AlertInfoHeader;
-import javax.sip.header.AllowEventsHeader;
-import javax.sip.header.AllowHeader;
-import javax.sip.header.AuthenticationInfoHeader;
-import javax.sip.header.AuthorizationHeader;
-import javax.sip.header.CSeqHeader;
-import javax.sip.header.CallIdHeader;
-import javax.sip.header.CallInfoHeader;
-import javax.sip.header.ContactHeader;
-import javax.sip.header.ContentDispositionHeader;
-import javax.sip.header.ContentEncodingHeader;
-import javax.sip.header.ContentLanguageHeader;
-import javax.sip.header.ContentLengthHeader;
-import javax.sip.header.ContentTypeHeader;
-import javax.sip.header.DateHeader;
-import javax.sip.header.ErrorInfoHeader;
-import javax.sip.header.EventHeader;
-import javax.sip.header.ExpiresHeader;
-import javax.sip.header.FromHeader;
-import javax.sip.header.InReplyToHeader;
-import javax.sip.header.MaxForwardsHeader;
-import javax.sip.header.MimeVersionHeader;
-import javax.sip.header.MinExpiresHeader;
-import javax.sip.header.OrganizationHeader;
-import javax.sip.header.PriorityHeader;
-import javax.sip.header.ProxyAuthenticateHeader;
-import javax.sip.header.ProxyAuthorizationHeader;
-import javax.sip.header.ProxyRequireHeader;
-import javax.sip.header.RAckHeader;
-import javax.sip.header.RSeqHeader;
-import javax.sip.header.ReasonHeader;
-import javax.sip.header.RecordRouteHeader;
-import javax.sip.header.ReferToHeader;
-import javax.sip.header.ReplyToHeader;
-import javax.sip.header.RequireHeader;
-import javax.sip.header.RetryAfterHeader;
-import javax.sip.header.RouteHeader;
-import javax.sip.header.SIPETagHeader;
-import javax.sip.header.SIPIfMatchHeader;
-import javax.sip.header.ServerHeader;
-import javax.sip.header.SubjectHeader;
-import javax.sip.header.SubscriptionStateHeader;
-import javax.sip.header.SupportedHeader;
-import javax.sip.header.TimeStampHeader;
-import javax.sip.header.ToHeader;
-import javax.sip.header.UnsupportedHeader;
-import javax.sip.header.UserAgentHeader;
-import javax.sip.header.ViaHeader;
-import javax.sip.header.WWWAuthenticateHeader;
-import javax.sip.header.WarningHeader;
 
 /**
  * A factory class that does a name lookup on a registered parser and
  * returns a header parser for the given name.
  *
+ * The header name is resolved to a {@link HeaderIds} id straight from the
+ * line, compact forms included, and the builtin parsers are constructed
+ * directly from a switch on that id, so no String is created and no
+ * reflection is involved. Parsers for other headers (custom or IMS headers)
+ * can be plugged in through {@link #registerParser(String, HeaderParserCreator)}.
+ *
  * @version 1.2 $Revision: 1.17 $ $Date: 2010/01/12 00:05:25 $
  *
  * @author M. Ranganathan   <br/>
@@ -163,234 +68,30 @@ import javax.sip.header.WarningHeader;
  */
 public class ParserFactory {
 
-    private static Map<String,Class<? extends HeaderParser>> parserTable;
-    private static Class[] constructorArgs;
-    private static ConcurrentHashMap<Class, Constructor> parserConstructorCache;
-
-    static {
-        parserTable = new ConcurrentHashMap<String,Class<? extends HeaderParser>>(90);
-        parserConstructorCache = new ConcurrentHashMap<Class, Constructor>();
-        constructorArgs = new Class[1];
-        constructorArgs[0] = char[].class;
-        parserTable.put(ReplyToHeader.NAME.toLowerCase(), ReplyToParser.class);
-
-        parserTable.put(
-            InReplyToHeader.NAME.toLowerCase(),
-            InReplyToParser.class);
-
-        parserTable.put(
-            AcceptEncodingHeader.NAME.toLowerCase(),
-            AcceptEncodingParser.class);
-
-        parserTable.put(
-            AcceptLanguageHeader.NAME.toLowerCase(),
-            AcceptLanguageParser.class);
-
-        parserTable.put("t", ToParser.class);
-        parserTable.put(ToHeader.NAME.toLowerCase(), ToParser.class);
-
-        parserTable.put(FromHeader.NAME.toLowerCase(), FromParser.class);
-        parserTable.put("f", FromParser.class);
-
-        parserTable.put(CSeqHeader.NAME.toLowerCase(), CSeqParser.class);
-
-        parserTable.put(ViaHeader.NAME.toLowerCase(), ViaParser.class);
-        parserTable.put("v", ViaParser.class);
-
-        parserTable.put(ContactHeader.NAME.toLowerCase(), ContactParser.class);
-        parserTable.put("m", ContactParser.class);
-
-        parserTable.put(
-            ContentTypeHeader.NAME.toLowerCase(),
-            ContentTypeParser.class);
-        parserTable.put("c", ContentTypeParser.class);
-
-        parserTable.put(
-            ContentLengthHeader.NAME.toLowerCase(),
-            ContentLengthParser.class);
-        parserTable.put("l", ContentLengthParser.class);
-
-        parserTable.put(
-            AuthorizationHeader.NAME.toLowerCase(),
-            AuthorizationParser.class);
-
-        parserTable.put(
-            WWWAuthenticateHeader.NAME.toLowerCase(),
-            WWWAuthenticateParser.class);
-
-        parserTable.put(CallIdHeader.NAME.toLowerCase(), CallIDParser.class);
-        parserTable.put("i", CallIDParser.class);
-
-        parserTable.put(RouteHeader.NAME.toLowerCase(), RouteParser.class);
-
-        parserTable.put(
-            RecordRouteHeader.NAME.toLowerCase(),
-            RecordRouteParser.class);
-
-        parserTable.put(DateHeader.NAME.toLowerCase(), DateParser.class);
-
-        parserTable.put(
-            ProxyAuthorizationHeader.NAME.toLowerCase(),
-            ProxyAuthorizationParser.class);
-
-        parserTable.put(
-            ProxyAuthenticateHeader.NAME.toLowerCase(),
-            ProxyAuthenticateParser.class);
-
-        parserTable.put(
-            RetryAfterHeader.NAME.toLowerCase(),
-            RetryAfterParser.class);
-
-        parserTable.put(RequireHeader.NAME.toLowerCase(), RequireParser.class);
-
-        parserTable.put(
-            ProxyRequireHeader.NAME.toLowerCase(),
-            ProxyRequireParser.class);
-
-        parserTable.put(
-            TimeStampHeader.NAME.toLowerCase(),
-            TimeStampParser.class);
-
-        parserTable.put(
-            UnsupportedHeader.NAME.toLowerCase(),
-            UnsupportedParser.class);
-
-        parserTable.put(
-            UserAgentHeader.NAME.toLowerCase(),
-            UserAgentParser.class);
-
-        parserTable.put(
-            SupportedHeader.NAME.toLowerCase(),
-            SupportedParser.class);
-        // bug fix by Steve Crosley
-        parserTable.put("k", SupportedParser.class);
-
-        parserTable.put(ServerHeader.NAME.toLowerCase(), ServerParser.class);
-
-        parserTable.put(SubjectHeader.NAME.toLowerCase(), SubjectParser.class);
-        parserTable.put( "s", SubjectParser.class); // JvB: added
-
-        parserTable.put(
-            SubscriptionStateHeader.NAME.toLowerCase(),
-            SubscriptionStateParser.class);
+    private static final HeaderParserCreator[] NO_CREATORS = new HeaderParserCreator[0];
 
-        parserTable.put(
-            MaxForwardsHeader.NAME.toLowerCase(),
-            MaxForwardsParser.class);
+    // indexed by header id, copied on write since registration only happens at startup
+    private static volatile HeaderParserCreator[] customParsers = NO_CREATORS;
 
-        parserTable.put(
-            MimeVersionHeader.NAME.toLowerCase(),
-            MimeVersionParser.class);
-
-        parserTable.put(
-            MinExpiresHeader.NAME.toLowerCase(),
-            MinExpiresParser.class);
-
-        parserTable.put(
-            OrganizationHeader.NAME.toLowerCase(),
-            OrganizationParser.class);
-
-        parserTable.put(
-            PriorityHeader.NAME.toLowerCase(),
-            PriorityParser.class);
-
-        parserTable.put(RAckHeader.NAME.toLowerCase(), RAckParser.class);
-
-        parserTable.put(RSeqHeader.NAME.toLowerCase(), RSeqParser.class);
-
-        parserTable.put(ReasonHeader.NAME.toLowerCase(), ReasonParser.class);
-
-        parserTable.put(WarningHeader.NAME.toLowerCase(), WarningParser.class);
-
-        parserTable.put(ExpiresHeader.NAME.toLowerCase(), ExpiresParser.class);
-
-        parserTable.put(EventHeader.NAME.toLowerCase(), EventParser.class);
-        parserTable.put("o", EventParser.class);
-
-        parserTable.put(
-            ErrorInfoHeader.NAME.toLowerCase(),
-            ErrorInfoParser.class);
-
-        parserTable.put(
-            ContentLanguageHeader.NAME.toLowerCase(),
-            ContentLanguageParser.class);
-
-        parserTable.put(
-            ContentEncodingHeader.NAME.toLowerCase(),
-            ContentEncodingParser.class);
-        parserTable.put("e", ContentEncodingParser.class);
-
-        parserTable.put(
-            ContentDispositionHeader.NAME.toLowerCase(),
-            ContentDispositionParser.class);
-
-        parserTable.put(
-            CallInfoHeader.NAME.toLowerCase(),
-            CallInfoParser.class);
-
-        parserTable.put(
-            AuthenticationInfoHeader.NAME.toLowerCase(),
-            AuthenticationInfoParser.class);
-
-        parserTable.put(AllowHeader.NAME.toLowerCase(), AllowParser.class);
-
-        parserTable.put(
-            AllowEventsHeader.NAME.toLowerCase(),
-            AllowEventsParser.class);
-        parserTable.put("u", AllowEventsParser.class);
-
-        parserTable.put(
-            AlertInfoHeader.NAME.toLowerCase(),
-            AlertInfoParser.class);
-
-        parserTable.put(AcceptHeader.NAME.toLowerCase(), AcceptParser.class);
-
-        parserTable.put(ReferToHeader.NAME.toLowerCase(), ReferToParser.class);
-        // Was missing (bug noticed by Steve Crossley)
-        parserTable.put("r", ReferToParser.class);
-
-        // JvB: added to support RFC3903 PUBLISH
-        parserTable.put(SIPETagHeader.NAME.toLowerCase(), SIPETagParser.class);
-        parserTable.put(SIPIfMatchHeader.NAME.toLowerCase(), SIPIfMatchParser.class);
-
-        //IMS headers
-//        parserTable.put(PAccessNetworkInfoHeader.NAME.toLowerCase(), PAccessNetworkInfoParser.class);
-//        parserTable.put(PAssertedIdentityHeader.NAME.toLowerCase(), PAssertedIdentityParser.class);
-//        parserTable.put(PPreferredIdentityHeader.NAME.toLowerCase(), PPreferredIdentityParser.class);
-//        parserTable.put(PChargingVectorHeader.NAME.toLowerCase(), PChargingVectorParser.class);
-//        parserTable.put(PChargingFunctionAddressesHeader.NAME.toLowerCase(), PChargingFunctionAddressesParser.class);
-//        parserTable.put(PMediaAuthorizationHeader.NAME.toLowerCase(), PMediaAuthorizationParser.class);
-//        parserTable.put(PathHeader.NAME.toLowerCase(), PathParser.class);
-//        parserTable.put(PrivacyHeader.NAME.toLowerCase(), PrivacyParser.class);
-//        parserTable.put(ServiceRouteHeader.NAME.toLowerCase(), ServiceRouteParser.class);
-//        parserTable.put(PVisitedNetworkIDHeader.NAME.toLowerCase(), PVisitedNetworkIDParser.class);
-//
-//        parserTable.put(PAssociatedURIHeader.NAME.toLowerCase(), PAssociatedURIParser.class);
-//        parserTable.put(PCalledPartyIDHeader.NAME.toLowerCase(), PCalledPartyIDParser.class);
-//
-//        parserTable.put(SecurityServerHeader.NAME.toLowerCase(), SecurityServerParser.class);
-//        parserTable.put(SecurityClientHeader.NAME.toLowerCase(), SecurityClientParser.class);
-//        parserTable.put(SecurityVerifyHeader.NAME.toLowerCase(), SecurityVerifyParser.class);
-//
-//
-//        // Per RFC 3892 (pmusgrave)
-//        parserTable.put(ReferredBy.NAME.toLowerCase(), ReferredByParser.class);
-//        parserTable.put("b", ReferToParser.class);
-//
-//        // Per RFC4028 Session Timers (pmusgrave)
-//        parserTable.put(SessionExpires.NAME.toLowerCase(), SessionExpiresParser.class);
-//        parserTable.put("x", SessionExpiresParser.class);
-//        parserTable.put(MinSE.NAME.toLowerCase(), MinSEParser.class);
-//        // (RFC4028 does not give a short form header for MinSE)
-//
-//        // Per RFC3891 (pmusgrave)
-//        parserTable.put(Replaces.NAME.toLowerCase(), ReplacesParser.class);
-//
-//        // Per RFC3911 (jean deruelle)
-//        parserTable.put(Join.NAME.toLowerCase(), JoinParser.class);
-//        
-//        //http://tools.ietf.org/html/draft-worley-references-05
-//        parserTable.put(References.NAME.toLowerCase(), ReferencesParser.class);
+    /**
+     * Plug a parser for a header, taking precedence over the builtin one if any.
+     * IMS headers, References, Join, Replaces and the RFC 4028 headers
+     * don't have a builtin parser and can be registered here.
+     *
+     * @param headerName the full form of the header name, the compact form if any
+     * is resolved to the same header
+     * @param parserCreator the creator of the parsers for this header
+     */
+    public static synchronized void registerParser(String headerName, HeaderParserCreator parserCreator) {
+        if (parserCreator == null) {
+            throw new IllegalArgumentException("parser creator can't be null");
+        }
+        int id = HeaderIds.register(headerName);
+        HeaderParserCreator[] oldParsers = customParsers;
+        HeaderParserCreator[] newParsers = new HeaderParserCreator[Math.max(oldParsers.length, id + 1)];
+        System.arraycopy(oldParsers, 0, newParsers, 0, oldParsers.length);
+        newParsers[id] = parserCreator;
+        customParsers = newParsers;
     }
 
     /**
@@ -398,34 +99,138 @@ public class ParserFactory {
      */
     public static HeaderParser createParser(char[] line)
         throws ParseException {
-        String headerName = Lexer.getHeaderName(line);
-        String headerValue = Lexer.getHeaderValue(line);
-        if (headerName == null || headerValue == null)
+        if (line == null)
             throw new ParseException("The header name or value is null", 0);
-
-        Class parserClass = (Class) parserTable.get(SIPHeaderNamesCache.toLowerCase(headerName));
-        if (parserClass != null) {
-            try {
-                Constructor cons = (Constructor) parserConstructorCache.get(parserClass);
-                if (cons == null) {
-                    cons = parserClass.getConstructor(constructorArgs);
-                    parserConstructorCache.putIfAbsent(parserClass, cons);
-                }
-                Object[] args = new Object[1];
-                args[0] = line;
-                HeaderParser retval = (HeaderParser) cons.newInstance(args);
-                return retval;
-
-            } catch (Exception ex) {
-                InternalErrorHandler.handleException(ex);
-                return null; // to placate the compiler.
-            }
-
-        } else {
+        int colon = Lexer.indexOf(line, ':');
+        if (colon < 1)
+            throw new ParseException("The header name or value is null", 0);
+        int start = 0;
+        int end = colon;
+        while (start < end && line[start] <= ' ')
+            start++;
+        while (end > start && line[end - 1] <= ' ')
+            end--;
+
+        int id = HeaderIds.getId(line, start, end);
+        if (id == HeaderIds.UNKNOWN) {
             // Just generate a generic SIPHeader. We define
-            // parsers only for the above.
+            // parsers only for the known headers.
             return new HeaderParser(line);
         }
+        HeaderParserCreator[] parsers = customParsers;
+        if (id < parsers.length && parsers[id] != null) {
+            return parsers[id].createParser(line);
+        }
+        switch (id) {
+            case HeaderIds.REPLY_TO:
+                return new ReplyToParser(line);
+            case HeaderIds.IN_REPLY_TO:
+                return new InReplyToParser(line);
+            case HeaderIds.ACCEPT_ENCODING:
+                return new AcceptEncodingParser(line);
+            case HeaderIds.ACCEPT_LANGUAGE:
+                return new AcceptLanguageParser(line);
+            case HeaderIds.TO:
+                return new ToParser(line);
+            case HeaderIds.FROM:
+                return new FromParser(line);
+            case HeaderIds.CSEQ:
+                return new CSeqParser(line);
+            case HeaderIds.VIA:
+                return new ViaParser(line);
+            case HeaderIds.CONTACT:
+                return new ContactParser(line);
+            case HeaderIds.CONTENT_TYPE:
+                return new ContentTypeParser(line);
+            case HeaderIds.CONTENT_LENGTH:
+                return new ContentLengthParser(line);
+            case HeaderIds.AUTHORIZATION:
+                return new AuthorizationParser(line);
+            case HeaderIds.WWW_AUTHENTICATE:
+                return new WWWAuthenticateParser(line);
+            case HeaderIds.CALL_ID:
+                return new CallIDParser(line);
+            case HeaderIds.ROUTE:
+                return new RouteParser(line);
+            case HeaderIds.RECORD_ROUTE:
+                return new RecordRouteParser(line);
+            case HeaderIds.DATE:
+                return new DateParser(line);
+            case HeaderIds.PROXY_AUTHORIZATION:
+                return new ProxyAuthorizationParser(line);
+            case HeaderIds.PROXY_AUTHENTICATE:
+                return new ProxyAuthenticateParser(line);
+            case HeaderIds.RETRY_AFTER:
+                return new RetryAfterParser(line);
+            case HeaderIds.REQUIRE:
+                return new RequireParser(line);
+            case HeaderIds.PROXY_REQUIRE:
+                return new ProxyRequireParser(line);
+            case HeaderIds.TIMESTAMP:
+                return new TimeStampParser(line);
+            case HeaderIds.UNSUPPORTED:
+                return new UnsupportedParser(line);
+            case HeaderIds.USER_AGENT:
+                return new UserAgentParser(line);
+            case HeaderIds.SUPPORTED:
+                return new SupportedParser(line);
+            case HeaderIds.SERVER:
+                return new ServerParser(line);
+            case HeaderIds.SUBJECT:
+                return new SubjectParser(line);
+            case HeaderIds.SUBSCRIPTION_STATE:
+                return new SubscriptionStateParser(line);
+            case HeaderIds.MAX_FORWARDS:
+                return new MaxForwardsParser(line);
+            case HeaderIds.MIME_VERSION:
+                return new MimeVersionParser(line);
+            case HeaderIds.MIN_EXPIRES:
+                return new MinExpiresParser(line);
+            case HeaderIds.ORGANIZATION:
+                return new OrganizationParser(line);
+            case HeaderIds.PRIORITY:
+                return new PriorityParser(line);
+            case HeaderIds.RACK:
+                return new RAckParser(line);
+            case HeaderIds.RSEQ:
+                return new RSeqParser(line);
+            case HeaderIds.REASON:
+                return new ReasonParser(line);
+            case HeaderIds.WARNING:
+                return new WarningParser(line);
+            case HeaderIds.EXPIRES:
+                return new ExpiresParser(line);
+            case HeaderIds.EVENT:
+                return new EventParser(line);
+            case HeaderIds.ERROR_INFO:
+                return new ErrorInfoParser(line);
+            case HeaderIds.CONTENT_LANGUAGE:
+                return new ContentLanguageParser(line);
+            case HeaderIds.CONTENT_ENCODING:
+                return new ContentEncodingParser(line);
+            case HeaderIds.CONTENT_DISPOSITION:
+                return new ContentDispositionParser(line);
+            case HeaderIds.CALL_INFO:
+                return new CallInfoParser(line);
+            case HeaderIds.AUTHENTICATION_INFO:
+                return new AuthenticationInfoParser(line);
+            case HeaderIds.ALLOW:
+                return new AllowParser(line);
+            case HeaderIds.ALLOW_EVENTS:
+                return new AllowEventsParser(line);
+            case HeaderIds.ALERT_INFO:
+                return new AlertInfoParser(line);
+            case HeaderIds.ACCEPT:
+                return new AcceptParser(line);
+            case HeaderIds.REFER_TO:
+                return new ReferToParser(line);
+            case HeaderIds.SIP_ETAG:
+                return new SIPETagParser(line);
+            case HeaderIds.SIP_IF_MATCH:
+                return new SIPIfMatchParser(line);
+            default:
+                return new HeaderParser(line);
+        }
     }
 }
 /*
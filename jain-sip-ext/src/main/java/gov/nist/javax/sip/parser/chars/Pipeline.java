@@ -27,23 +27,43 @@ import gov.nist.javax.sip.stack.SIPStackTimerTask;
 import gov.nist.javax.sip.stack.timers.SipTimer;
 
 import java.io.*;
-import java.util.*;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Input class for the pipelined parser. Buffer all bytes read from the socket
  * and make them available to the message parser.
  *
+ * The chunks written by the socket reading thread are handed over to the
+ * parsing thread through a single producer single consumer ring, without
+ * locking : each side only writes its own index and parks when the ring is
+ * empty, respectively full, until the other side unparks it.
+ *
  * @author M. Ranganathan (Contains a bug fix contributed by Rob Daugherty (
  *         Lucent Technologies) )
  *
  */
 
 public class Pipeline extends InputStream {
-    private LinkedList buffList;
+    // number of chunks the socket can be ahead of the parser before its reader waits
+    private static final int CHUNKS = 256;
+
+    private final Buffer[] chunks = new Buffer[CHUNKS];
+
+    // next chunk to read, only written by the parsing thread
+    private volatile long head;
+
+    // next chunk to write, only written by the socket reading thread
+    private volatile long tail;
+
+    // threads parked on an empty, respectively full, ring
+    private volatile Thread reader;
 
+    private volatile Thread writer;
+
+    // chunk being read, only accessed by the parsing thread
     private Buffer currentBuffer;
 
-    private boolean isClosed;
+    private volatile boolean isClosed;
 
     private SipTimer timer;
 
@@ -53,6 +73,15 @@ public class Pipeline extends InputStream {
 
     private SIPStackTimerTask myTimerTask;
 
+    // watches the read deadline and the activity instead of a timer task per read
+    private PipelineSweeper sweeper;
+
+    // time by which the message being read has to be complete, 0 when not reading one
+    private volatile long readDeadline;
+
+    // last time bytes were written
+    private volatile long lastActivity;
+
     class MyTimer extends SIPStackTimerTask {
         Pipeline pipeline;
 
@@ -109,6 +138,10 @@ public class Pipeline extends InputStream {
     public void startTimer() {
         if (this.readTimeout == -1)
             return;
+        if (this.sweeper != null) {
+            this.readDeadline = System.currentTimeMillis() + this.readTimeout;
+            return;
+        }
         // TODO make this a tunable number. For now 4 seconds
         // between reads seems reasonable upper limit.
         this.myTimerTask = new MyTimer(this);
@@ -118,82 +151,169 @@ public class Pipeline extends InputStream {
     public void stopTimer() {
         if (this.readTimeout == -1)
             return;
+        if (this.sweeper != null) {
+            this.readDeadline = 0;
+            return;
+        }
         if (this.myTimerTask != null)
         	this.timer.cancel(myTimerTask);
     }
 
+    /**
+     * The read timeout is enforced by a timer task scheduled for every message read,
+     * prefer {@link #Pipeline(InputStream, int, PipelineSweeper)} when there are many
+     * connections.
+     */
     public Pipeline(InputStream pipe, int readTimeout, SipTimer timer) {
         // pipe is the Socket stream
         // this is recorded here to implement a timeout.
         this.timer = timer;
         this.pipe = pipe;
-        buffList = new LinkedList();
         this.readTimeout = readTimeout;
     }
 
+    /**
+     * The read timeout and the idle timeout of the transport are enforced by the sweeper,
+     * reading only records a deadline.
+     */
+    public Pipeline(InputStream pipe, int readTimeout, PipelineSweeper sweeper) {
+        this.pipe = pipe;
+        this.readTimeout = readTimeout;
+        this.sweeper = sweeper;
+        this.lastActivity = System.currentTimeMillis();
+        sweeper.register(this);
+    }
+
+    /**
+     * @return true if the message being read is late or nothing was written for longer
+     *         than the idle timeout
+     */
+    boolean isExpired(long now, long idleTimeout) {
+        long deadline = this.readDeadline;
+        if (deadline != 0 && now > deadline)
+            return true;
+        return idleTimeout > 0 && now - this.lastActivity > idleTimeout;
+    }
+
     public void write(byte[] bytes, int start, int length) throws IOException {
-        if (this.isClosed)
-            throw new IOException("Closed!!");
         Buffer buff = new Buffer(bytes, length);
         buff.ptr = start;
-        synchronized (this.buffList) {
-            buffList.add(buff);
-            buffList.notifyAll();
-        }
+        put(buff);
     }
 
     public void write(byte[] bytes) throws IOException {
+        put(new Buffer(bytes, bytes.length));
+    }
+
+    private void put(Buffer buff) throws IOException {
         if (this.isClosed)
             throw new IOException("Closed!!");
-        Buffer buff = new Buffer(bytes, bytes.length);
-        synchronized (this.buffList) {
-            buffList.add(buff);
-            buffList.notifyAll();
+        // the reader relies on every chunk written having bytes
+        if (buff.ptr >= buff.length)
+            return;
+        long t = this.tail;
+        // wait for the parser to catch up
+        while (t - this.head == CHUNKS) {
+            this.writer = Thread.currentThread();
+            if (t - this.head == CHUNKS && !this.isClosed)
+                LockSupport.park(this);
+            this.writer = null;
+            if (this.isClosed)
+                throw new IOException("Closed!!");
+            if (Thread.interrupted())
+                throw new InterruptedIOException();
         }
+        if (this.sweeper != null)
+            this.lastActivity = System.currentTimeMillis();
+        this.chunks[(int) t & (CHUNKS - 1)] = buff;
+        // publishes the chunk to the reader
+        this.tail = t + 1;
+        Thread waiting = this.reader;
+        if (waiting != null)
+            LockSupport.unpark(waiting);
     }
 
     public void close() throws IOException {
         this.isClosed = true;
-        synchronized (this.buffList) {
-            this.buffList.notifyAll();
-        }
+        if (this.sweeper != null)
+            this.sweeper.unregister(this);
+        Thread waiting = this.reader;
+        if (waiting != null)
+            LockSupport.unpark(waiting);
+        waiting = this.writer;
+        if (waiting != null)
+            LockSupport.unpark(waiting);
 
         // JvB: added
         this.pipe.close();
     }
 
-    public int read() throws IOException {
-        // if (this.isClosed) return -1;
-        synchronized (this.buffList) {
-            if (currentBuffer != null
-                    && currentBuffer.ptr < currentBuffer.length) {
-                int retval = currentBuffer.getNextByte();
-                if (currentBuffer.ptr == currentBuffer.length)
-                    this.currentBuffer = null;
-                return retval;
-            }
+    /**
+     * Makes the next chunk with bytes left the current buffer, waiting until one is
+     * written.
+     *
+     * @return false if the pipeline was closed with no bytes left
+     */
+    private boolean nextBuffer() throws IOException {
+        while (currentBuffer == null || currentBuffer.ptr >= currentBuffer.length) {
+            long h = this.head;
             // Bug fix contributed by Rob Daugherty.
-            if (this.isClosed && this.buffList.isEmpty())
-                return -1;
-            try {
-                // wait till something is posted.
-                while (this.buffList.isEmpty()) {
-                    this.buffList.wait();
-                    if (this.isClosed)
-                        return -1;
-                }
-                currentBuffer = (Buffer) this.buffList.removeFirst();
-                int retval = currentBuffer.getNextByte();
-                if (currentBuffer.ptr == currentBuffer.length)
-                    this.currentBuffer = null;
-                return retval;
-            } catch (InterruptedException ex) {
-                throw new IOException(ex.getMessage());
-            } catch (NoSuchElementException ex) {
-                ex.printStackTrace();
-                throw new IOException(ex.getMessage());
+            while (h == this.tail) {
+                if (this.isClosed)
+                    return false;
+                this.reader = Thread.currentThread();
+                if (h == this.tail && !this.isClosed)
+                    LockSupport.park(this);
+                this.reader = null;
+                if (Thread.interrupted())
+                    throw new InterruptedIOException();
             }
+            int slot = (int) h & (CHUNKS - 1);
+            currentBuffer = this.chunks[slot];
+            this.chunks[slot] = null;
+            // frees the slot for the writer
+            this.head = h + 1;
+            Thread waiting = this.writer;
+            if (waiting != null)
+                LockSupport.unpark(waiting);
+        }
+        return true;
+    }
+
+    public int read() throws IOException {
+        if (!nextBuffer())
+            return -1;
+        return currentBuffer.getNextByte();
+    }
+
+    /**
+     * Reads the bytes available up to len, from as many chunks as have been written,
+     * and only waits if there is none.
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        if (!nextBuffer())
+            return -1;
+        int read = 0;
+        do {
+            int count = Math.min(len - read, currentBuffer.length - currentBuffer.ptr);
+            System.arraycopy(currentBuffer.bytes, currentBuffer.ptr, b, off + read, count);
+            currentBuffer.ptr += count;
+            read += count;
+        } while (read < len && (currentBuffer.ptr < currentBuffer.length || this.head != this.tail) && nextBuffer());
+        return read;
+    }
+
+    public int available() throws IOException {
+        int available = currentBuffer == null ? 0 : currentBuffer.length - currentBuffer.ptr;
+        for (long h = this.head, t = this.tail; h < t; h++) {
+            Buffer buff = this.chunks[(int) h & (CHUNKS - 1)];
+            available += buff.length - buff.ptr;
         }
+        return available;
     }
 
 }
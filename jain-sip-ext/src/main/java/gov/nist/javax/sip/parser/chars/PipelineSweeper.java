@@ -0,0 +1,119 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package gov.nist.javax.sip.parser.chars;
+
+import gov.nist.javax.sip.stack.SIPStackTimerTask;
+import gov.nist.javax.sip.stack.timers.SipTimer;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Closes the {@link Pipeline}s of a transport that take too long to deliver a message, 
+ * or that stay idle for too long, from a single task sweeping them periodically. Reading 
+ * only records a deadline in the pipeline, nothing is scheduled nor cancelled per read, 
+ * so slow connections cost the timer nothing until they are closed.
+ * 
+ * A sweeper is meant to be created per transport, with its own idle timeout, the read 
+ * timeout being given to each pipeline. Timeouts are detected within a sweep period.
+ */
+public class PipelineSweeper {
+
+	private final Set<Pipeline> pipelines = Collections.newSetFromMap(new ConcurrentHashMap<Pipeline, Boolean>());
+	private final SipTimer timer;
+	private final long period;
+	private final long idleTimeout;
+	private SweepTask sweepTask;
+
+	/**
+	 * @param period the time between two sweeps in milliseconds
+	 * @param idleTimeout the time in milliseconds after which a pipeline nothing was 
+	 * written to is closed, 0 or less to keep idle pipelines open
+	 */
+	public PipelineSweeper(SipTimer timer, long period, long idleTimeout) {
+		this.timer = timer;
+		this.period = period;
+		this.idleTimeout = idleTimeout;
+	}
+
+	public synchronized void start() {
+		if(sweepTask == null) {
+			sweepTask = new SweepTask();
+			timer.scheduleWithFixedDelay(sweepTask, period, period);
+		}
+	}
+
+	public synchronized void stop() {
+		if(sweepTask != null) {
+			timer.cancel(sweepTask);
+			sweepTask = null;
+		}
+	}
+
+	void register(Pipeline pipeline) {
+		pipelines.add(pipeline);
+	}
+
+	void unregister(Pipeline pipeline) {
+		pipelines.remove(pipeline);
+	}
+
+	/**
+	 * Closes the pipelines whose read deadline passed or that were idle for too long
+	 */
+	public void sweep() {
+		long now = System.currentTimeMillis();
+		for (Pipeline pipeline : pipelines) {
+			if(pipeline.isExpired(now, idleTimeout)) {
+				pipelines.remove(pipeline);
+				try {
+					pipeline.close();
+				} catch (IOException ex) {
+					// the connection is dropped anyway, carry on with the other pipelines
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of pipelines watched
+	 */
+	public int getPipelineCount() {
+		return pipelines.size();
+	}
+
+	private class SweepTask extends SIPStackTimerTask {
+
+		@Override
+		public void runTask() {
+			sweep();
+		}
+
+		@Override
+		public Object getThreadHash() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package gov.nist.javax.sip.parser.chars;
+
+import gov.nist.javax.sip.stack.timers.SipTimer;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Creates the {@link PipelineSweeper} of each transport of a stack, configured from its 
+ * properties :
+ * <ul>
+ * <li>gov.nist.javax.sip.parser.chars.PIPELINE_SWEEP_PERIOD : the time between two sweeps 
+ * in milliseconds, 1000 by default</li>
+ * <li>gov.nist.javax.sip.parser.chars.PIPELINE_IDLE_TIMEOUT : the time in milliseconds after 
+ * which a pipeline nothing was written to is closed, 0 by default to keep idle pipelines open</li>
+ * </ul>
+ * Both can be overridden for a transport by suffixing them with its name, 
+ * e.g. PIPELINE_IDLE_TIMEOUT.TLS=120000. A sweeper is created and started the first time 
+ * its transport asks for it, and all are stopped with the factory.
+ */
+public class PipelineSweeperFactory {
+
+	public static final String PIPELINE_SWEEP_PERIOD = "gov.nist.javax.sip.parser.chars.PIPELINE_SWEEP_PERIOD";
+	public static final String PIPELINE_IDLE_TIMEOUT = "gov.nist.javax.sip.parser.chars.PIPELINE_IDLE_TIMEOUT";
+
+	private final SipTimer timer;
+	private final Properties configurationProperties;
+	private final ConcurrentMap<String, PipelineSweeper> sweepers = new ConcurrentHashMap<String, PipelineSweeper>();
+	private volatile boolean stopped;
+
+	/**
+	 * @param configurationProperties the stack configuration, can be null for the defaults
+	 */
+	public PipelineSweeperFactory(SipTimer timer, Properties configurationProperties) {
+		this.timer = timer;
+		this.configurationProperties = configurationProperties == null ? new Properties() : configurationProperties;
+	}
+
+	/**
+	 * @return the started sweeper of the transport, created on the first call
+	 */
+	public PipelineSweeper getSweeper(String transport) {
+		if(stopped) {
+			throw new IllegalStateException("The pipeline sweepers have been stopped");
+		}
+		String key = transport.toUpperCase();
+		PipelineSweeper sweeper = sweepers.get(key);
+		if(sweeper == null) {
+			long period = getLong(PIPELINE_SWEEP_PERIOD, key, 1000L);
+			if(period <= 0) {
+				throw new IllegalArgumentException(PIPELINE_SWEEP_PERIOD + " should be positive for " + key + ", got " + period);
+			}
+			PipelineSweeper newSweeper = new PipelineSweeper(timer, period, getLong(PIPELINE_IDLE_TIMEOUT, key, 0L));
+			sweeper = sweepers.putIfAbsent(key, newSweeper);
+			if(sweeper == null) {
+				sweeper = newSweeper;
+				sweeper.start();
+			}
+		}
+		return sweeper;
+	}
+
+	/**
+	 * Stops the sweepers of all the transports, the pipelines they watch are left open
+	 */
+	public void stop() {
+		stopped = true;
+		for (PipelineSweeper sweeper : sweepers.values()) {
+			sweeper.stop();
+		}
+		sweepers.clear();
+	}
+
+	private long getLong(String propertyName, String transport, long defaultValue) {
+		String value = configurationProperties.getProperty(propertyName + "." + transport);
+		if(value == null) {
+			value = configurationProperties.getProperty(propertyName);
+		}
+		if(value == null) {
+			return defaultValue;
+		}
+		return Long.parseLong(value.trim());
+	}
+}
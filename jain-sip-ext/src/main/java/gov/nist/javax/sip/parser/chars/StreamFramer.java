@@ -0,0 +1,252 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package gov.nist.javax.sip.parser.chars;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * Frames the messages received on a stream transport from the buffers read off a 
+ * non blocking channel, so that a single selector thread can serve many connections 
+ * instead of a thread blocked on a {@link Pipeline} per connection.
+ * 
+ * The bytes read are accumulated until the empty line ending the headers, the Content-Length 
+ * header (or its compact form) is picked up while scanning the header lines, and once the body 
+ * is complete the message is copied out and handed to {@link CharsMsgParser#parse(byte[], boolean, boolean)}. 
+ * A buffer can carry several messages or part of one, CRLF keep alives between messages 
+ * are skipped. A framer is bound to a connection and is not thread safe.
+ */
+public class StreamFramer {
+
+	private static final int INITIAL_CAPACITY = 4096;
+	// some VMs reserve header words in an array
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+	private static final byte[] CONTENT_LENGTH = "content-length".getBytes();
+
+	private final CharsMsgParser parser;
+	private final FramedMessageListener listener;
+	private final int maxMessageSize;
+
+	// bytes received and not framed yet, from 0 to limit
+	private byte[] buffer = new byte[INITIAL_CAPACITY];
+	private ByteScanner scanner = new ByteScanner(buffer);
+	private int limit;
+	// start of the message being framed, -1 between messages
+	private int messageStart = -1;
+	// start of the next line to scan in the headers of the message being framed
+	private int lineStart;
+	// end of the message being framed, -1 until its headers are complete,
+	// a long since the announced Content-Length is only checked against the limit
+	private long messageEnd = -1;
+	private int contentLength = -1;
+	// line feeds of the keep alive being skipped
+	private int keepAliveLines;
+
+	/**
+	 * @param maxMessageSize the maximum size of a message, 0 for no limit
+	 */
+	public StreamFramer(CharsMsgParser parser, FramedMessageListener listener, int maxMessageSize) {
+		this.parser = parser;
+		this.listener = listener;
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Frames the bytes remaining in the buffer, handing the messages completed to the listener. 
+	 * The buffer is fully consumed, the bytes of an incomplete message are kept until the next call.
+	 * 
+	 * @throws ParseException if the stream can't be framed anymore, the connection has to be closed
+	 */
+	public void frame(ByteBuffer received) throws ParseException {
+		int length = received.remaining();
+		if (length == 0) {
+			return;
+		}
+		ensureCapacity((long) limit + length);
+		received.get(buffer, limit, length);
+		limit += length;
+		int start = 0;
+		while (true) {
+			if (messageStart == -1) {
+				start = skipKeepAlive(start);
+				if (start == limit) {
+					break;
+				}
+				messageStart = start;
+				lineStart = start;
+			}
+			if (messageEnd == -1 && !frameHeaders()) {
+				break;
+			}
+			if (limit < messageEnd) {
+				break;
+			}
+			byte[] message = Arrays.copyOfRange(buffer, messageStart, (int) messageEnd);
+			start = (int) messageEnd;
+			messageStart = -1;
+			messageEnd = -1;
+			contentLength = -1;
+			listener.messageFramed(parser.parse(message, true, false));
+		}
+		compact();
+	}
+
+	/**
+	 * @return the offset of the first byte that is not part of a keep alive
+	 */
+	private int skipKeepAlive(int start) {
+		int i = start;
+		for (; i < limit; i++) {
+			byte b = buffer[i];
+			if (b == '\n') {
+				if (++keepAliveLines == 2) {
+					keepAliveLines = 0;
+					listener.keepAliveReceived();
+				}
+			} else if (b != '\r') {
+				keepAliveLines = 0;
+				break;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Scans the header lines received since the last call.
+	 * 
+	 * @return true if the headers are complete, the end of the message being known
+	 */
+	private boolean frameHeaders() throws ParseException {
+		while (true) {
+			int lineEnd = scanner.indexOf((byte) '\n', lineStart, limit);
+			if (lineEnd == ByteScanner.NOT_FOUND) {
+				checkSize(limit - messageStart);
+				return false;
+			}
+			if (lineEnd == lineStart || (lineEnd == lineStart + 1 && buffer[lineStart] == '\r')) {
+				// empty line, the body follows
+				int bodyStart = lineEnd + 1;
+				// RFC 3261 18.3 the Content-Length is mandatory on stream transports, no body without it
+				long end = (long) bodyStart + (contentLength == -1 ? 0 : contentLength);
+				checkSize(end - messageStart);
+				// the buffer grows as the body is received, not up to the announced length
+				messageEnd = end;
+				return true;
+			}
+			if (lineStart != messageStart) {
+				processContentLength(lineStart, lineEnd);
+			}
+			lineStart = lineEnd + 1;
+		}
+	}
+
+	private void processContentLength(int start, int end) throws ParseException {
+		int i = start;
+		if (i < end && (buffer[i] | 0x20) == 'l') {
+			i++;
+		} else {
+			for (int j = 0; j < CONTENT_LENGTH.length; j++, i++) {
+				if (i == end || (buffer[i] | 0x20) != CONTENT_LENGTH[j]) {
+					return;
+				}
+			}
+		}
+		i = skipWhiteSpace(i, end);
+		if (i == end || buffer[i] != ':') {
+			return;
+		}
+		i = skipWhiteSpace(i + 1, end);
+		long value = 0;
+		int digits = 0;
+		for (; i < end && buffer[i] >= '0' && buffer[i] <= '9'; i++, digits++) {
+			value = value * 10 + buffer[i] - '0';
+			if (value > Integer.MAX_VALUE) {
+				throw new ParseException("Content-Length too large", i - messageStart);
+			}
+		}
+		if (digits == 0 || skipWhiteSpace(i, end) != end) {
+			throw new ParseException("Bad Content-Length", start - messageStart);
+		}
+		if (contentLength != -1 && contentLength != value) {
+			throw new ParseException("Conflicting Content-Length headers", start - messageStart);
+		}
+		contentLength = (int) value;
+	}
+
+	private int skipWhiteSpace(int i, int end) {
+		while (i < end && (buffer[i] == ' ' || buffer[i] == '\t' || buffer[i] == '\r')) {
+			i++;
+		}
+		return i;
+	}
+
+	private void checkSize(long size) throws ParseException {
+		if (maxMessageSize > 0 && size > maxMessageSize) {
+			throw new ParseException("Message larger than " + maxMessageSize + " bytes", 0);
+		}
+		if (size > MAX_CAPACITY) {
+			throw new ParseException("Message larger than " + MAX_CAPACITY + " bytes", 0);
+		}
+	}
+
+	private void ensureCapacity(long capacity) throws ParseException {
+		if (capacity > buffer.length) {
+			if (capacity > MAX_CAPACITY) {
+				throw new ParseException("More than " + MAX_CAPACITY + " bytes pending", 0);
+			}
+			int newCapacity = (int) Math.min(Math.max(capacity, (long) buffer.length << 1), MAX_CAPACITY);
+			buffer = Arrays.copyOf(buffer, newCapacity);
+			scanner = new ByteScanner(buffer);
+		}
+	}
+
+	/**
+	 * Moves the bytes not framed yet to the start of the buffer
+	 */
+	private void compact() {
+		int start = messageStart == -1 ? limit : messageStart;
+		if (start == 0) {
+			return;
+		}
+		int remaining = limit - start;
+		if (remaining > 0) {
+			System.arraycopy(buffer, start, buffer, 0, remaining);
+		}
+		limit = remaining;
+		if (messageStart != -1) {
+			lineStart -= messageStart;
+			if (messageEnd != -1) {
+				messageEnd -= messageStart;
+			}
+			messageStart = 0;
+		}
+	}
+
+	/**
+	 * @return the number of bytes received and not framed yet
+	 */
+	public int getPendingBytes() {
+		return messageStart == -1 ? 0 : limit - messageStart;
+	}
+}
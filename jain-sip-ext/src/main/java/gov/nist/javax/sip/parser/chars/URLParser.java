@@ -47,6 +47,7 @@
 */
 package gov.nist.javax.sip.parser.chars;
 
+import gov.nist.core.Host;
 import gov.nist.core.HostPort;
 import gov.nist.core.NameValue;
 import gov.nist.core.NameValueList;
@@ -625,6 +626,9 @@ public class URLParser extends Parser {
      * @throws ParseException if there was a problem parsing.
      */
     public SipUri sipURL( boolean inBrackets ) throws ParseException {
+        SipUri fast = fastSipURL( inBrackets );
+        if (fast != null)
+            return fast;
         if (debug)
             dbg_enter("sipURL");
         SipUri retval = new SipUri();
@@ -694,6 +698,161 @@ public class URLParser extends Parser {
         }
     }
 
+    /**
+     * Single pass scanner for the common <tt>sip:user@host:port;name=value</tt>
+     * shape. Works directly on the lexer buffer and only advances the lexer
+     * when the whole URI was recognized, so that anything unusual (escaped
+     * chars, user password, tel-style users, IPv6 references, headers part)
+     * can be handed over untouched to the grammar based parser.
+     *
+     * @return the parsed URI or null if the grammar based parser must be used.
+     */
+    protected SipUri fastSipURL( boolean inBrackets ) {
+        final char[] buf = lexer.buffer;
+        final int end = lexer.bufferLen;
+        int p = lexer.ptr;
+
+        // scheme
+        if (end - p < 4 || (buf[p] | 0x20) != 's' || (buf[p + 1] | 0x20) != 'i'
+                || (buf[p + 2] | 0x20) != 'p')
+            return null;
+        p += 3;
+        String scheme = TokenNames.SIP;
+        if ((buf[p] | 0x20) == 's') {
+            scheme = TokenNames.SIPS;
+            p++;
+        }
+        if (p >= end || buf[p] != ':')
+            return null;
+        p++;
+
+        // user, same character set as user() so that we stop at the same place
+        int start = p;
+        boolean plainUser = true;
+        while (p < end) {
+            char la = buf[p];
+            if (isUnreserved(la)) {
+                p++;
+            } else if (isUserUnreserved(la)) {
+                plainUser = false;
+                p++;
+            } else if (la == '%') {
+                return null;
+            } else
+                break;
+        }
+        String user = null;
+        if (p < end && buf[p] == '@') {
+            if (p == start || !plainUser)
+                return null;
+            user = String.valueOf(buf, start, p - start);
+            start = p + 1;
+        } else if (p < end && buf[p] == ':') {
+            // user:password@ is left to password()
+            p++;
+            while (p < end && (isUnreserved(buf[p]) || buf[p] == '&' || buf[p] == '='
+                    || buf[p] == '+' || buf[p] == '$' || buf[p] == ','))
+                p++;
+            if (p < end && (buf[p] == '@' || buf[p] == '%'))
+                return null;
+        }
+        p = start;
+
+        // host, IPv4 address or domain name only
+        while (p < end && (Lexer.isAlphaDigit(buf[p]) || buf[p] == '-' || buf[p] == '.'))
+            p++;
+        if (p == start || HostNameParser.isIPv6Address(buf, start, end))
+            return null;
+        String hostname = String.valueOf(buf, start, p - start);
+
+        int port = -1;
+        if (p < end && buf[p] == ':') {
+            int digits = ++p;
+            port = 0;
+            while (p < end && p - digits < 5 && buf[p] >= '0' && buf[p] <= '9')
+                port = port * 10 + (buf[p++] - '0');
+            if (p == digits)
+                return null;
+        }
+        if (p < end) {
+            switch (buf[p]) {
+                case ',':
+                case ';':
+                case '>':
+                case ' ':
+                case '\t':
+                case '\r':
+                case '\n':
+                    break;
+                default:
+                    return null;
+            }
+        }
+
+        SipUri retval = new SipUri();
+        retval.setScheme(scheme);
+        if (user != null)
+            retval.setUser(user);
+        HostPort hp = new HostPort();
+        hp.setHost(new Host(hostname));
+        if (port != -1)
+            hp.setPort(port);
+        retval.setHostPort(hp);
+
+        // If the URI is not enclosed in brackets, parameters belong to header
+        while (inBrackets && p < end && buf[p] == ';') {
+            int nameStart = ++p;
+            p = scanParamNameOrValue(buf, p, end);
+            if (p == -1)
+                return null;
+            String pname = String.valueOf(buf, nameStart, p - nameStart);
+            String pvalue = "";
+            boolean isFlagParam = true;
+            if (p < end && buf[p] == '=') {
+                int valueStart = ++p;
+                p = scanParamNameOrValue(buf, p, end);
+                if (p == -1)
+                    return null;
+                pvalue = String.valueOf(buf, valueStart, p - valueStart);
+                isFlagParam = false;
+            }
+            if (pname.length() != 0 || pvalue.length() != 0)
+                retval.setUriParameter(new NameValue(pname, pvalue, isFlagParam));
+        }
+        if (p < end && buf[p] == '?')
+            return null;
+
+        lexer.ptr = p;
+        lexer.selectLexer("charLexer");
+        return retval;
+    }
+
+    /**
+     * Same character set as paramNameOrValue(), returns -1 on escaped chars.
+     */
+    private static int scanParamNameOrValue(char[] buf, int p, int end) {
+        while (p < end) {
+            char next = buf[p];
+            switch (next) {
+                case '[':
+                case ']':
+                case '/':
+                case ':':
+                case '&':
+                case '+':
+                case '$':
+                    p++;
+                    continue;
+                case '%':
+                    return -1;
+            }
+            if (!isUnreserved(next))
+                break;
+            p++;
+        }
+        return p;
+    }
+
     public String peekScheme() throws ParseException {
         Token[] tokens = lexer.peekNextToken(1);
         if (tokens.length == 0)
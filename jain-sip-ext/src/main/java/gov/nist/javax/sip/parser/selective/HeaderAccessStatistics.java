@@ -0,0 +1,120 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package gov.nist.javax.sip.parser.selective;
+
+import gov.nist.javax.sip.parser.chars.HeaderIds;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts, for one selective parsing profile, the messages received and how many of them 
+ * had each header accessed, so that the profile can be tuned to what the application 
+ * actually reads. Headers are counted by {@link HeaderIds}, ids registered after the 
+ * statistics were created and headers unknown to the stack are not counted.
+ */
+public final class HeaderAccessStatistics {
+
+	// room for the custom headers registered after the statistics were created
+	private static final int SPARE_IDS = 32;
+	
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLongArray accesses;
+	
+	public HeaderAccessStatistics() {
+		accesses = new AtomicLongArray(HeaderIds.size() + SPARE_IDS);
+	}
+	
+	public void messageParsed() {
+		messages.incrementAndGet();
+	}
+	
+	/**
+	 * Record that a message had the header with this id accessed, expected once per message.
+	 */
+	public void headerAccessed(int headerId) {
+		if(headerId >= 0 && headerId < accesses.length()) {
+			accesses.incrementAndGet(headerId);
+		}
+	}
+	
+	public long getMessages() {
+		return messages.get();
+	}
+	
+	public long getAccesses(int headerId) {
+		if(headerId >= 0 && headerId < accesses.length()) {
+			return accesses.get(headerId);
+		}
+		return 0;
+	}
+	
+	/**
+	 * @return the ratio of messages that had the header with this id accessed
+	 */
+	public double getAccessRatio(int headerId) {
+		long messages = this.messages.get();
+		if(messages == 0) {
+			return 0;
+		}
+		return Math.min(1d, (double) getAccesses(headerId) / messages);
+	}
+	
+	/**
+	 * @return the number of header ids that can be counted
+	 */
+	public int getCapacity() {
+		return accesses.length();
+	}
+	
+	/**
+	 * Halve all the counters, so that older traffic weighs less on the next tuning
+	 */
+	public void decay() {
+		messages.set(messages.get() >> 1);
+		for (int i = 0; i < accesses.length(); i++) {
+			accesses.set(i, accesses.get(i) >> 1);
+		}
+	}
+	
+	public void reset() {
+		messages.set(0);
+		for (int i = 0; i < accesses.length(); i++) {
+			accesses.set(i, 0);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		long messages = this.messages.get();
+		StringBuilder statistics = new StringBuilder();
+		statistics.append("messages=").append(messages);
+		for (int i = 0; i < accesses.length(); i++) {
+			long count = accesses.get(i);
+			if(count > 0 && HeaderIds.getName(i) != null) {
+				statistics.append(", ").append(HeaderIds.getName(i).toLowerCase()).append('=').append(count);
+			}
+		}
+		return statistics.toString();
+	}
+}
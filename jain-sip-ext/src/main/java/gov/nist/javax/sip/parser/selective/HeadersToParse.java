@@ -0,0 +1,101 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package gov.nist.javax.sip.parser.selective;
+
+import gov.nist.javax.sip.parser.chars.HeaderIds;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * An immutable set of headers to parse when a message is received, compiled into 
+ * a bitset indexed by {@link HeaderIds} so that compact forms resolve to the same 
+ * entry as their full name. Header names unknown to the stack are registered.
+ * 
+ * When the profile is adaptive, the set carries the statistics of the messages it was 
+ * selected for, they are kept across the sets that replace it when the profile is tuned.
+ */
+public final class HeadersToParse {
+
+	private final Set<String> headerNames;
+	private final BitSet headerIds;
+	private final HeaderAccessStatistics statistics;
+	
+	public HeadersToParse(Collection<String> headerNames) {
+		this(headerNames, null);
+	}
+	
+	/**
+	 * @param statistics the statistics of the messages this set is selected for, null if not collected
+	 */
+	public HeadersToParse(Collection<String> headerNames, HeaderAccessStatistics statistics) {
+		Set<String> names = new LinkedHashSet<String>();
+		BitSet ids = new BitSet();
+		for (String headerName : headerNames) {
+			String lowerCaseHeaderName = headerName.trim().toLowerCase();
+			if(lowerCaseHeaderName.length() > 0) {
+				names.add(lowerCaseHeaderName);
+				ids.set(HeaderIds.register(lowerCaseHeaderName));
+			}
+		}
+		this.headerNames = Collections.unmodifiableSet(names);
+		this.headerIds = ids;
+		this.statistics = statistics;
+	}
+	
+	/**
+	 * @return true if the header with this id is parsed when the message is received
+	 */
+	public boolean contains(int headerId) {
+		return headerId != HeaderIds.UNKNOWN && headerIds.get(headerId);
+	}
+	
+	/**
+	 * @return true if the header with this name, full or compact, is parsed when the message is received
+	 */
+	public boolean contains(String headerName) {
+		return contains(HeaderIds.getId(headerName));
+	}
+	
+	/**
+	 * @return the lower case names of the headers to parse, as configured
+	 */
+	public Set<String> getHeaderNames() {
+		return headerNames;
+	}
+	
+	/**
+	 * @return the statistics of the messages this set is selected for, or null if they are not collected
+	 */
+	public HeaderAccessStatistics getStatistics() {
+		return statistics;
+	}
+	
+	@Override
+	public String toString() {
+		return headerNames.toString();
+	}
+}
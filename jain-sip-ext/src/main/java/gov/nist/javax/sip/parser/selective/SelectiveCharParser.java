@@ -23,7 +23,6 @@
 package gov.nist.javax.sip.parser.selective;
 
 import gov.nist.core.StackLogger;
-import gov.nist.javax.sip.SIPConstants;
 import gov.nist.javax.sip.header.RequestLine;
 import gov.nist.javax.sip.header.StatusLine;
 import gov.nist.javax.sip.message.SIPMessage;
@@ -33,30 +32,16 @@ import gov.nist.javax.sip.message.selective.SelectiveSIPRequest;
 import gov.nist.javax.sip.message.selective.SelectiveSIPResponse;
 import gov.nist.javax.sip.parser.ParseExceptionListener;
 import gov.nist.javax.sip.parser.chars.CharsMsgParser;
-import gov.nist.javax.sip.parser.chars.Lexer;
+import gov.nist.javax.sip.parser.chars.HeaderIds;
+import gov.nist.javax.sip.parser.chars.MessageIndex;
 import gov.nist.javax.sip.parser.chars.RequestLineParser;
 import gov.nist.javax.sip.parser.chars.StatusLineParser;
 import gov.nist.javax.sip.stack.SIPTransactionStack;
 
 import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.Properties;
-import java.util.Set;
-import java.util.StringTokenizer;
-
-import javax.sip.header.CSeqHeader;
-import javax.sip.header.CallIdHeader;
-import javax.sip.header.ContactHeader;
-import javax.sip.header.ContentLengthHeader;
-import javax.sip.header.EventHeader;
-import javax.sip.header.FromHeader;
-import javax.sip.header.MaxForwardsHeader;
-import javax.sip.header.RecordRouteHeader;
-import javax.sip.header.RouteHeader;
-import javax.sip.header.SubscriptionStateHeader;
-import javax.sip.header.ToHeader;
-import javax.sip.header.ViaHeader;
 
 /**
  * @author jean.deruelle@gmail.com
@@ -64,50 +49,29 @@ import javax.sip.header.ViaHeader;
  */
 public class SelectiveCharParser extends CharsMsgParser {
 
-	private static final String HEADERS_TO_PARSE = "gov.nist.java.sip.selective.parser.HEADERS_TO_PARSE"; 
-	private static Set<String> headersToParse = new HashSet<String>();		
+	private final SelectiveParsingProfile profile;
 	
 	StackLogger logger;
 	
+	/**
+	 * Compiles the profile from the configuration properties, parsers created for a stack 
+	 * should rather share the profile compiled by their factory.
+	 */
 	public SelectiveCharParser(SIPTransactionStack stack, Properties configurationProperties) {
+		this(stack, new SelectiveParsingProfile(configurationProperties));
+	}
+	
+	public SelectiveCharParser(SIPTransactionStack stack, SelectiveParsingProfile profile) {
 		logger = stack.getStackLogger();
-		if(headersToParse.size() < 1) {
-			boolean headersToParseFound = false;		
-			if(configurationProperties != null) {
-				String headersToParseString = configurationProperties.getProperty(HEADERS_TO_PARSE);
-				if(headersToParseString != null) {
-					headersToParse.clear();
-					StringTokenizer stringTokenizer = new StringTokenizer(headersToParseString, ",");
-					while (stringTokenizer.hasMoreTokens()) {
-						String headerToParse = stringTokenizer.nextToken();
-						headersToParse.add(headerToParse.trim().toLowerCase());					
-					}
-					headersToParseFound = true;
-				}
-			} 
-			if(!headersToParseFound) {
-				headersToParse.add(FromHeader.NAME.toLowerCase());
-				headersToParse.add(ToHeader.NAME.toLowerCase());
-				headersToParse.add(CSeqHeader.NAME.toLowerCase());
-				headersToParse.add(CallIdHeader.NAME.toLowerCase());
-				headersToParse.add(MaxForwardsHeader.NAME.toLowerCase());
-				headersToParse.add(ViaHeader.NAME.toLowerCase());
-				headersToParse.add(ContactHeader.NAME.toLowerCase());
-				headersToParse.add(RecordRouteHeader.NAME.toLowerCase());
-				headersToParse.add(RouteHeader.NAME.toLowerCase());
-				headersToParse.add(ContentLengthHeader.NAME.toLowerCase());
-				headersToParse.add(SubscriptionStateHeader.NAME.toLowerCase());
-				headersToParse.add(EventHeader.NAME.toLowerCase());
-			}
-			if(logger.isLoggingEnabled()) {
-				logger.logDebug("Headers to parse : ");
-				for (String headerToParse : headersToParse) {
-					logger.logDebug(headerToParse);
-				}
-			}
-		}		
+		this.profile = profile;
+		if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			logger.logDebug("Headers to parse : " + profile);
+		}
 	}
 
+	public SelectiveParsingProfile getProfile() {
+		return profile;
+	}
 	
 	@Override
 	public SIPMessage parseSIPMessage(byte[] msgBuffer, boolean readBody, boolean strict, ParseExceptionListener parseExceptionListener) throws ParseException {	
@@ -115,18 +79,98 @@ public class SelectiveCharParser extends CharsMsgParser {
 	}
 	
 	@Override
-	protected void processHeader(char[] header, SIPMessage message, ParseExceptionListener parseExceptionListener, byte[] msgBuffer)
+	protected void processHeader(MessageIndex index, int header, SIPMessage message, ParseExceptionListener parseExceptionListener, byte[] msgBuffer)
 			throws ParseException {
-		String headerName = Lexer.getHeaderName(header);        
-        if (headerName == null)
+		int headerId = index.getHeaderId(header);
+		if (!index.hasHeaderName(header))
             throw new ParseException("The header name or value is null", 0);
         
 		// logic to process headers only if they are present in the list of headers to parse from a given stack property
-		if(headersToParse.contains(headerName.toLowerCase())) {
-			super.processHeader(header, message, parseExceptionListener, msgBuffer);
-		} else {
-			((SelectiveMessage) message).addHeaderNotParsed(headerName, new String(header));
+		// the header stays a slice of the received buffer otherwise, until it is accessed
+		SelectiveMessage selectiveMessage = (SelectiveMessage) message;
+		if(!selectiveMessage.getHeadersToParse().contains(headerId)) {
+			selectiveMessage.addHeaderNotParsed(index, header);
+			return;
+		}
+		switch (headerId) {
+		case HeaderIds.VIA:
+		case HeaderIds.ROUTE:
+		case HeaderIds.RECORD_ROUTE:
+			processTopmostEntry(index, header, headerId, message, parseExceptionListener, msgBuffer);
+			break;
+		default:
+			super.processHeader(index, header, message, parseExceptionListener, msgBuffer);
+		}
+	}
+	
+	/**
+	 * The stack only looks at the topmost Via, Route and Record-Route entries of most messages 
+	 * so only the first one received is parsed, the entries after it are kept as received and 
+	 * parsed when the list is accessed or changed.
+	 */
+	private void processTopmostEntry(MessageIndex index, int header, int headerId, SIPMessage message, ParseExceptionListener parseExceptionListener, byte[] msgBuffer)
+			throws ParseException {
+		SelectiveMessage selectiveMessage = (SelectiveMessage) message;
+		String headerName = HeaderIds.getName(headerId);
+		if(message.hasHeader(headerName) || selectiveMessage.hasHeaderNotParsed(headerName.toLowerCase())) {
+			// the topmost entry was already received
+			selectiveMessage.addHeaderNotParsed(index, header);
+			return;
+		}
+		char[] line = index.getHeaderLine(header);
+		int colon = indexOf(line, ':', 0);
+		int comma = colon == -1 ? -1 : indexOf(line, ',', colon + 1);
+		int next = comma + 1;
+		while (comma != -1 && next < line.length && (line[next] == ' ' || line[next] == '\t')) {
+			next++;
+		}
+		if(comma == -1 || next >= line.length - 1) {
+			super.processHeader(index, header, message, parseExceptionListener, msgBuffer);
+			return;
 		}
+		int end = comma;
+		while (end > colon + 1 && (line[end - 1] == ' ' || line[end - 1] == '\t')) {
+			end--;
+		}
+		char[] topmost = Arrays.copyOf(line, end + 1);
+		topmost[end] = '\n';
+		processHeader(topmost, message, parseExceptionListener, msgBuffer);
+		// the name is kept as received, compact form included
+		selectiveMessage.addHeaderNotParsed(headerName, new String(line, 0, colon + 1) + ' ' + new String(line, next, line.length - next));
+	}
+	
+	/**
+	 * @return the position of the first occurrence of the character outside of quoted strings, 
+	 * angle brackets and comments, or -1
+	 */
+	private static int indexOf(char[] line, char c, int from) {
+		boolean quoted = false;
+		int nesting = 0;
+		for (int i = from; i < line.length; i++) {
+			char current = line[i];
+			if(quoted) {
+				if(current == '\\') {
+					i++;
+				} else if(current == '"') {
+					quoted = false;
+				}
+			} else if(current == '"') {
+				quoted = true;
+			} else if(current == '<' || current == '(') {
+				nesting++;
+			} else if(current == '>' || current == ')') {
+				nesting--;
+			} else if(current == c && nesting == 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	@Override
+	protected void processMessageIndex(SIPMessage message, MessageIndex index) {
+		// from now on the message tracks the headers modified, to splice the others on encode
+		((SelectiveMessage) message).setMessageIndex(index);
 	}
 	
 	@Override
@@ -137,18 +181,24 @@ public class SelectiveCharParser extends CharsMsgParser {
 	
 	protected SIPMessage reprocessFirstLine(char[] firstLine, SIPMessage sipMessage, ParseExceptionListener parseExceptionListener, byte[] msgBuffer) throws ParseException {
 		SIPMessage message = sipMessage;
-		char[] retval = new char[firstLine.length + 1];
-        System.arraycopy(firstLine, 0, retval, 0, firstLine.length);
-        retval[firstLine.length] = '\n';
+		// the first line handed over by the chars parser is already terminated by '\n'
+		char[] retval = firstLine;
         
-        if (!new String(firstLine).startsWith(SIPConstants.SIP_VERSION_STRING)) {
+        if (!isStatusLine(firstLine)) {
         	if(message == null) {
-        		message = new SelectiveSIPRequest(headersToParse);
+        		message = new SelectiveSIPRequest(profile.getHeadersToParse());
         	}
             try {
                 RequestLine requestLine = new RequestLineParser(retval)
                         .parse();
                 ((SIPRequest) message).setRequestLine(requestLine);
+                if(message instanceof SelectiveMessage) {
+                	HeadersToParse headersToParse = profile.getRequestHeadersToParse(requestLine.getMethod());
+                	((SelectiveMessage) message).setHeadersToParse(headersToParse);
+                	if(headersToParse.getStatistics() != null) {
+                		headersToParse.getStatistics().messageParsed();
+                	}
+                }
             } catch (ParseException ex) {
                 if (parseExceptionListener != null)
 					try {
@@ -163,11 +213,18 @@ public class SelectiveCharParser extends CharsMsgParser {
             }
         } else {
         	if(message == null) {
-        		message = new SelectiveSIPResponse(headersToParse);
+        		message = new SelectiveSIPResponse(profile.getHeadersToParse());
         	}
             try {
                 StatusLine sl = new StatusLineParser(retval).parse();
                 ((SIPResponse) message).setStatusLine(sl);
+                if(message instanceof SelectiveMessage) {
+                	HeadersToParse headersToParse = profile.getResponseHeadersToParse(sl.getStatusCode());
+                	((SelectiveMessage) message).setHeadersToParse(headersToParse);
+                	if(headersToParse.getStatistics() != null) {
+                		headersToParse.getStatistics().messageParsed();
+                	}
+                }
             } catch (ParseException ex) {
                 if (parseExceptionListener != null) {
                     try {
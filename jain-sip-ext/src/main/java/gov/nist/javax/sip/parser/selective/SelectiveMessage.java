@@ -22,6 +22,7 @@
 
 package gov.nist.javax.sip.parser.selective;
 
+import gov.nist.javax.sip.parser.chars.MessageIndex;
 
 /**
  * @author jean.deruelle@gmail.com
@@ -30,4 +31,29 @@ package gov.nist.javax.sip.parser.selective;
 public interface SelectiveMessage {
 
 	void addHeaderNotParsed(String headerName, String header);
+
+	/**
+	 * Keep a header as a slice of the buffer the message was received in, 
+	 * it will only be decoded and parsed if accessed.
+	 */
+	void addHeaderNotParsed(MessageIndex index, int header);
+
+	/**
+	 * @return true if some headers with the given name, or some entries of a header 
+	 * parsed on receipt, were kept as received
+	 */
+	boolean hasHeaderNotParsed(String lowerCaseHeaderName);
+
+	/**
+	 * Keep the index of the buffer the message was received in, headers that are not 
+	 * modified afterwards are re-emitted from it as they were received.
+	 */
+	void setMessageIndex(MessageIndex index);
+
+	/**
+	 * Select the headers parsed when the message is received, the others are only parsed if accessed.
+	 */
+	void setHeadersToParse(HeadersToParse headersToParse);
+
+	HeadersToParse getHeadersToParse();
 }
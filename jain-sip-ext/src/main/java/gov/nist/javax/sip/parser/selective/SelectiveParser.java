@@ -40,23 +40,7 @@ import gov.nist.javax.sip.stack.SIPTransactionStack;
 
 import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
-import java.util.HashSet;
 import java.util.Properties;
-import java.util.Set;
-import java.util.StringTokenizer;
-
-import javax.sip.header.CSeqHeader;
-import javax.sip.header.CallIdHeader;
-import javax.sip.header.ContactHeader;
-import javax.sip.header.ContentLengthHeader;
-import javax.sip.header.EventHeader;
-import javax.sip.header.FromHeader;
-import javax.sip.header.MaxForwardsHeader;
-import javax.sip.header.RecordRouteHeader;
-import javax.sip.header.RouteHeader;
-import javax.sip.header.SubscriptionStateHeader;
-import javax.sip.header.ToHeader;
-import javax.sip.header.ViaHeader;
 
 /**
  * @author jean.deruelle@gmail.com
@@ -64,50 +48,29 @@ import javax.sip.header.ViaHeader;
  */
 public class SelectiveParser extends StringMsgParser {
 
-	private static final String HEADERS_TO_PARSE = "gov.nist.java.sip.selective.parser.HEADERS_TO_PARSE"; 
-	private static Set<String> headersToParse = new HashSet<String>();		
+	private final SelectiveParsingProfile profile;
 	
 	StackLogger logger;
 	
+	/**
+	 * Compiles the profile from the configuration properties, parsers created for a stack 
+	 * should rather share the profile compiled by their factory.
+	 */
 	public SelectiveParser(SIPTransactionStack stack, Properties configurationProperties) {
+		this(stack, new SelectiveParsingProfile(configurationProperties));
+	}
+	
+	public SelectiveParser(SIPTransactionStack stack, SelectiveParsingProfile profile) {
 		logger = stack.getStackLogger();
-		if(headersToParse.size() < 1) {
-			boolean headersToParseFound = false;		
-			if(configurationProperties != null) {
-				String headersToParseString = configurationProperties.getProperty(HEADERS_TO_PARSE);
-				if(headersToParseString != null) {
-					headersToParse.clear();
-					StringTokenizer stringTokenizer = new StringTokenizer(headersToParseString, ",");
-					while (stringTokenizer.hasMoreTokens()) {
-						String headerToParse = stringTokenizer.nextToken();
-						headersToParse.add(headerToParse.trim().toLowerCase());					
-					}
-					headersToParseFound = true;
-				}
-			} 
-			if(!headersToParseFound) {
-				headersToParse.add(FromHeader.NAME.toLowerCase());
-				headersToParse.add(ToHeader.NAME.toLowerCase());
-				headersToParse.add(CSeqHeader.NAME.toLowerCase());
-				headersToParse.add(CallIdHeader.NAME.toLowerCase());
-				headersToParse.add(MaxForwardsHeader.NAME.toLowerCase());
-				headersToParse.add(ViaHeader.NAME.toLowerCase());
-				headersToParse.add(ContactHeader.NAME.toLowerCase());
-				headersToParse.add(RecordRouteHeader.NAME.toLowerCase());
-				headersToParse.add(RouteHeader.NAME.toLowerCase());
-				headersToParse.add(ContentLengthHeader.NAME.toLowerCase());
-				headersToParse.add(SubscriptionStateHeader.NAME.toLowerCase());
-				headersToParse.add(EventHeader.NAME.toLowerCase());
-			}
-			if(logger.isLoggingEnabled()) {
-				logger.logDebug("Headers to parse : ");
-				for (String headerToParse : headersToParse) {
-					logger.logDebug(headerToParse);
-				}
-			}
-		}		
+		this.profile = profile;
+		if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			logger.logDebug("Headers to parse : " + profile);
+		}
 	}
 
+	public SelectiveParsingProfile getProfile() {
+		return profile;
+	}
 	
 	@Override
 	public SIPMessage parseSIPMessage(byte[] msgBuffer, boolean readBody, boolean strict, ParseExceptionListener parseExceptionListener) throws ParseException {	
@@ -122,7 +85,7 @@ public class SelectiveParser extends StringMsgParser {
             throw new ParseException("The header name or value is null", 0);
         
 		// logic to process headers only if they are present in the list of headers to parse from a given stack property
-		if(headersToParse.contains(headerName.toLowerCase())) {
+		if(((SelectiveMessage) message).getHeadersToParse().contains(headerName)) {
 			super.processHeader(header, message, parseExceptionListener, msgBuffer);
 		} else {
 			((SelectiveMessage) message).addHeaderNotParsed(headerName, header);
@@ -139,12 +102,19 @@ public class SelectiveParser extends StringMsgParser {
 		SIPMessage message = sipMessage;
         if (!firstLine.startsWith(SIPConstants.SIP_VERSION_STRING)) {
         	if(message == null) {
-        		message = new SelectiveSIPRequest(headersToParse);
+        		message = new SelectiveSIPRequest(profile.getHeadersToParse());
         	}
             try {
                 RequestLine requestLine = new RequestLineParser(firstLine + "\n")
                         .parse();
                 ((SIPRequest) message).setRequestLine(requestLine);
+                if(message instanceof SelectiveMessage) {
+                	HeadersToParse headersToParse = profile.getRequestHeadersToParse(requestLine.getMethod());
+                	((SelectiveMessage) message).setHeadersToParse(headersToParse);
+                	if(headersToParse.getStatistics() != null) {
+                		headersToParse.getStatistics().messageParsed();
+                	}
+                }
             } catch (ParseException ex) {
                 if (parseExceptionListener != null)
 					try {
@@ -159,11 +129,18 @@ public class SelectiveParser extends StringMsgParser {
             }
         } else {
         	if(message == null) {
-        		message = new SelectiveSIPResponse(headersToParse);
+        		message = new SelectiveSIPResponse(profile.getHeadersToParse());
         	}
             try {
                 StatusLine sl = new StatusLineParser(firstLine + "\n").parse();
                 ((SIPResponse) message).setStatusLine(sl);
+                if(message instanceof SelectiveMessage) {
+                	HeadersToParse headersToParse = profile.getResponseHeadersToParse(sl.getStatusCode());
+                	((SelectiveMessage) message).setHeadersToParse(headersToParse);
+                	if(headersToParse.getStatistics() != null) {
+                		headersToParse.getStatistics().messageParsed();
+                	}
+                }
             } catch (ParseException ex) {
                 if (parseExceptionListener != null) {
                     try {
@@ -23,33 +23,60 @@
 package gov.nist.javax.sip.parser.selective;
 
 import gov.nist.javax.sip.parser.MessageParser;
-import gov.nist.javax.sip.parser.MessageParserFactory;
 import gov.nist.javax.sip.stack.SIPTransactionStack;
 
 import java.util.Properties;
 
+import org.mobicents.ext.javax.sip.SipStackExtension;
+
 /**
  * 
  * 
  * @author jean.deruelle@gmail.com
  *
  */
-public class SelectiveParserFactory implements MessageParserFactory {
+public class SelectiveParserFactory implements SelectiveMessageParserFactory {
 
 	private Properties configurationProperties;
+	// compiled once for the stack this factory belongs to and shared by all its parsers
+	private volatile SelectiveParsingProfile profile;
 	
 	/* (non-Javadoc)
 	 * @see gov.nist.javax.sip.parser.MessageParserFactory#createMessageParser(gov.nist.javax.sip.stack.SIPTransactionStack)
 	 */
 	public MessageParser createMessageParser(SIPTransactionStack stack) {		
-		return new SelectiveParser(stack, configurationProperties);
+		return new SelectiveParser(stack, getProfile(stack));
+	}
+	
+	/**
+	 * @return the profile compiled from the configuration properties set on this factory, 
+	 * or from the stack ones if none were set
+	 */
+	public SelectiveParsingProfile getProfile(SIPTransactionStack stack) {
+		SelectiveParsingProfile profile = this.profile;
+		if(profile == null) {
+			// compiled once, so that the stack and all the parsers share the profile it registers and tunes
+			synchronized (this) {
+				profile = this.profile;
+				if(profile == null) {
+					Properties properties = configurationProperties;
+					if(properties == null && stack instanceof SipStackExtension) {
+						properties = ((SipStackExtension) stack).getConfigurationProperties();
+					}
+					profile = new SelectiveParsingProfile(properties);
+					this.profile = profile;
+				}
+			}
+		}
+		return profile;
 	}
 
 	/**
 	 * @param configurationProperties the configurationProperties to set
 	 */
-	public void setConfigurationProperties(Properties configurationProperties) {
+	public synchronized void setConfigurationProperties(Properties configurationProperties) {
 		this.configurationProperties = configurationProperties;
+		this.profile = null;
 	}
 
 	/**
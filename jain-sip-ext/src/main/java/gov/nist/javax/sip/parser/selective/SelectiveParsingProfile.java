@@ -0,0 +1,380 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package gov.nist.javax.sip.parser.selective;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.parser.chars.HeaderIds;
+import gov.nist.javax.sip.stack.SIPStackTimerTask;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.ContentLengthHeader;
+import javax.sip.header.EventHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.MaxForwardsHeader;
+import javax.sip.header.RecordRouteHeader;
+import javax.sip.header.RouteHeader;
+import javax.sip.header.SubscriptionStateHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.header.ViaHeader;
+
+/**
+ * The headers the selective parsers parse when a message is received, per request 
+ * method and per response class. It is compiled once per stack from its configuration 
+ * properties :
+ * <ul>
+ * <li>gov.nist.java.sip.selective.parser.HEADERS_TO_PARSE : the headers parsed by default</li>
+ * <li>gov.nist.java.sip.selective.parser.HEADERS_TO_PARSE.&lt;METHOD&gt; : the headers parsed 
+ * for requests with that method, e.g. HEADERS_TO_PARSE.REGISTER=Contact,Expires,Authorization</li>
+ * <li>gov.nist.java.sip.selective.parser.HEADERS_TO_PARSE.&lt;N&gt;xx : the headers parsed 
+ * for responses of that class, e.g. HEADERS_TO_PARSE.1xx=Via,CSeq,To</li>
+ * </ul>
+ * Each value is a comma separated list of header names. The headers the stack reads through the 
+ * message fields rather than the header accessors (From, To, CSeq, Call-ID, Via, Max-Forwards 
+ * and Content-Length) are always added to the per method and per class profiles.
+ * <p>
+ * The profile is adaptive when gov.nist.java.sip.selective.parser.TUNING_INTERVAL is set to a 
+ * positive number of milliseconds. The messages received count which headers the application 
+ * accesses, per method and per response class, and every interval the headers accessed in at least 
+ * EAGER_THRESHOLD (0.9 by default) of the messages become parsed when received while the ones accessed 
+ * in at most DEFER_THRESHOLD (0.01 by default) of them are deferred until accessed. A profile is only 
+ * tuned once it has seen TUNING_MIN_MESSAGES (1000 by default) messages.
+ */
+public final class SelectiveParsingProfile implements SelectiveParsingProfileMBean {
+	private static StackLogger logger = CommonLogger.getLogger(SelectiveParsingProfile.class);
+
+	public static final String HEADERS_TO_PARSE = "gov.nist.java.sip.selective.parser.HEADERS_TO_PARSE";
+	public static final String TUNING_INTERVAL = "gov.nist.java.sip.selective.parser.TUNING_INTERVAL";
+	public static final String EAGER_THRESHOLD = "gov.nist.java.sip.selective.parser.EAGER_THRESHOLD";
+	public static final String DEFER_THRESHOLD = "gov.nist.java.sip.selective.parser.DEFER_THRESHOLD";
+	public static final String TUNING_MIN_MESSAGES = "gov.nist.java.sip.selective.parser.TUNING_MIN_MESSAGES";
+	
+	static final List<String> MANDATORY_HEADERS = Collections.unmodifiableList(Arrays.asList(
+			FromHeader.NAME, ToHeader.NAME, CSeqHeader.NAME, CallIdHeader.NAME, ViaHeader.NAME, 
+			MaxForwardsHeader.NAME, ContentLengthHeader.NAME));
+	
+	static final List<String> DEFAULT_HEADERS = Collections.unmodifiableList(Arrays.asList(
+			FromHeader.NAME, ToHeader.NAME, CSeqHeader.NAME, CallIdHeader.NAME, MaxForwardsHeader.NAME, 
+			ViaHeader.NAME, ContactHeader.NAME, RecordRouteHeader.NAME, RouteHeader.NAME, 
+			ContentLengthHeader.NAME, SubscriptionStateHeader.NAME, EventHeader.NAME));
+	
+	// bounds the profiles created for the methods received when adaptive, unknown methods 
+	// being under the control of the remote side
+	private static final int MAX_ADAPTIVE_METHODS = 32;
+	
+	private final HeadersToParse headersToParse;
+	private final ConcurrentMap<String, HeadersToParse> requestHeadersToParse = new ConcurrentHashMap<String, HeadersToParse>();
+	// indexed by status code / 100, null entries falling back to the default
+	private final AtomicReferenceArray<HeadersToParse> responseHeadersToParse = new AtomicReferenceArray<HeadersToParse>(7);
+	private final BitSet mandatoryHeaderIds = new BitSet();
+	
+	private final long tuningInterval;
+	private final double eagerThreshold;
+	private final double deferThreshold;
+	private final long tuningMinMessages;
+	
+	/**
+	 * @param configurationProperties the stack configuration, can be null for the default profile
+	 */
+	public SelectiveParsingProfile(Properties configurationProperties) {
+		if(configurationProperties == null) {
+			configurationProperties = new Properties();
+		}
+		String headersToParseString = configurationProperties.getProperty(HEADERS_TO_PARSE);
+		if(headersToParseString != null) {
+			headersToParse = new HeadersToParse(split(headersToParseString));
+		} else {
+			headersToParse = new HeadersToParse(DEFAULT_HEADERS);
+		}
+		for (String mandatoryHeader : MANDATORY_HEADERS) {
+			mandatoryHeaderIds.set(HeaderIds.register(mandatoryHeader));
+		}
+		tuningInterval = Long.parseLong(configurationProperties.getProperty(TUNING_INTERVAL, "0"));
+		eagerThreshold = Double.parseDouble(configurationProperties.getProperty(EAGER_THRESHOLD, "0.9"));
+		deferThreshold = Double.parseDouble(configurationProperties.getProperty(DEFER_THRESHOLD, "0.01"));
+		tuningMinMessages = Long.parseLong(configurationProperties.getProperty(TUNING_MIN_MESSAGES, "1000"));
+		
+		String prefix = HEADERS_TO_PARSE + ".";
+		for (String propertyName : configurationProperties.stringPropertyNames()) {
+			if(!propertyName.startsWith(prefix)) {
+				continue;
+			}
+			String key = propertyName.substring(prefix.length()).trim();
+			HeadersToParse profile = createHeadersToParse(split(configurationProperties.getProperty(propertyName)));
+			int responseClass = getResponseClass(key);
+			if(responseClass > 0) {
+				responseHeadersToParse.set(responseClass, profile);
+			} else if(key.length() > 0) {
+				requestHeadersToParse.put(key.toUpperCase(), profile);
+			}
+		}
+	}
+	
+	private HeadersToParse createHeadersToParse(Collection<String> headerNames) {
+		List<String> names = new ArrayList<String>(MANDATORY_HEADERS);
+		names.addAll(headerNames);
+		return new HeadersToParse(names, isAdaptive() ? new HeaderAccessStatistics() : null);
+	}
+	
+	private static List<String> split(String headerNames) {
+		List<String> list = new ArrayList<String>();
+		StringTokenizer stringTokenizer = new StringTokenizer(headerNames, ",");
+		while (stringTokenizer.hasMoreTokens()) {
+			list.add(stringTokenizer.nextToken());
+		}
+		return list;
+	}
+	
+	/**
+	 * @return the class of responses from 1 to 6 for keys such as 1xx, or -1
+	 */
+	private static int getResponseClass(String key) {
+		if(key.length() == 3 && key.charAt(0) >= '1' && key.charAt(0) <= '6' 
+				&& key.substring(1).equalsIgnoreCase("xx")) {
+			return key.charAt(0) - '0';
+		}
+		return -1;
+	}
+	
+	public boolean isAdaptive() {
+		return tuningInterval > 0;
+	}
+	
+	public long getTuningInterval() {
+		return tuningInterval;
+	}
+	
+	/**
+	 * @return the headers parsed when no profile is defined for the method or response class
+	 */
+	public HeadersToParse getHeadersToParse() {
+		return headersToParse;
+	}
+	
+	/**
+	 * @return the headers parsed for requests with this method
+	 */
+	public HeadersToParse getRequestHeadersToParse(String method) {
+		if(method == null) {
+			return headersToParse;
+		}
+		HeadersToParse profile = requestHeadersToParse.get(method);
+		if(profile == null && isAdaptive() && requestHeadersToParse.size() < MAX_ADAPTIVE_METHODS) {
+			// each method gets its own statistics, starting from the default profile
+			profile = createHeadersToParse(headersToParse.getHeaderNames());
+			HeadersToParse existing = requestHeadersToParse.putIfAbsent(method, profile);
+			if(existing != null) {
+				profile = existing;
+			}
+		}
+		return profile == null ? headersToParse : profile;
+	}
+	
+	/**
+	 * @return the headers parsed for responses with this status code
+	 */
+	public HeadersToParse getResponseHeadersToParse(int statusCode) {
+		int responseClass = statusCode / 100;
+		if(responseClass <= 0 || responseClass >= responseHeadersToParse.length()) {
+			return headersToParse;
+		}
+		HeadersToParse profile = responseHeadersToParse.get(responseClass);
+		if(profile == null && isAdaptive()) {
+			responseHeadersToParse.compareAndSet(responseClass, null, createHeadersToParse(headersToParse.getHeaderNames()));
+			profile = responseHeadersToParse.get(responseClass);
+		}
+		return profile == null ? headersToParse : profile;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.parser.selective.SelectiveParsingProfileMBean#tune()
+	 */
+	public boolean tune() {
+		boolean changed = false;
+		for (Entry<String, HeadersToParse> entry : requestHeadersToParse.entrySet()) {
+			HeadersToParse tuned = tune(entry.getKey(), entry.getValue());
+			if(tuned != entry.getValue()) {
+				requestHeadersToParse.replace(entry.getKey(), entry.getValue(), tuned);
+				changed = true;
+			}
+		}
+		for (int i = 1; i < responseHeadersToParse.length(); i++) {
+			HeadersToParse profile = responseHeadersToParse.get(i);
+			if(profile != null) {
+				HeadersToParse tuned = tune(i + "xx", profile);
+				if(tuned != profile) {
+					responseHeadersToParse.compareAndSet(i, profile, tuned);
+					changed = true;
+				}
+			}
+		}
+		return changed;
+	}
+	
+	/**
+	 * @return the profile tuned from its statistics, or the same profile if unchanged
+	 */
+	private HeadersToParse tune(String key, HeadersToParse profile) {
+		HeaderAccessStatistics statistics = profile.getStatistics();
+		if(statistics == null || statistics.getMessages() < tuningMinMessages) {
+			return profile;
+		}
+		Set<String> headerNames = new LinkedHashSet<String>(profile.getHeaderNames());
+		boolean changed = false;
+		for (int headerId = 0; headerId < statistics.getCapacity(); headerId++) {
+			String headerName = HeaderIds.getName(headerId);
+			if(headerName == null) {
+				break;
+			}
+			double accessRatio = statistics.getAccessRatio(headerId);
+			if(!profile.contains(headerId) && accessRatio >= eagerThreshold) {
+				headerNames.add(headerName.toLowerCase());
+				changed = true;
+			} else if(profile.contains(headerId) && accessRatio <= deferThreshold && !mandatoryHeaderIds.get(headerId)) {
+				// configured under a name which resolves to this id, compact form or different case
+				for (String profileHeaderName : profile.getHeaderNames()) {
+					if(HeaderIds.getId(profileHeaderName) == headerId) {
+						headerNames.remove(profileHeaderName);
+					}
+				}
+				changed = true;
+			}
+		}
+		statistics.decay();
+		if(!changed) {
+			return profile;
+		}
+		HeadersToParse tuned = new HeadersToParse(headerNames, statistics);
+		if(logger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			logger.logInfo("Selective parsing profile for " + key + " tuned from " + profile + " to " + tuned);
+		}
+		return tuned;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.parser.selective.SelectiveParsingProfileMBean#resetHeaderAccessStatistics()
+	 */
+	public void resetHeaderAccessStatistics() {
+		for (HeadersToParse profile : requestHeadersToParse.values()) {
+			if(profile.getStatistics() != null) {
+				profile.getStatistics().reset();
+			}
+		}
+		for (int i = 1; i < responseHeadersToParse.length(); i++) {
+			HeadersToParse profile = responseHeadersToParse.get(i);
+			if(profile != null && profile.getStatistics() != null) {
+				profile.getStatistics().reset();
+			}
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.parser.selective.SelectiveParsingProfileMBean#getProfiles()
+	 */
+	public String[] getProfiles() {
+		List<String> profiles = new ArrayList<String>();
+		profiles.add("default=" + headersToParse);
+		for (Entry<String, HeadersToParse> entry : requestHeadersToParse.entrySet()) {
+			profiles.add(entry.getKey() + "=" + entry.getValue());
+		}
+		for (int i = 1; i < responseHeadersToParse.length(); i++) {
+			HeadersToParse profile = responseHeadersToParse.get(i);
+			if(profile != null) {
+				profiles.add(i + "xx=" + profile);
+			}
+		}
+		return profiles.toArray(new String[profiles.size()]);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.parser.selective.SelectiveParsingProfileMBean#getHeaderAccessStatistics()
+	 */
+	public String[] getHeaderAccessStatistics() {
+		List<String> statistics = new ArrayList<String>();
+		for (Entry<String, HeadersToParse> entry : requestHeadersToParse.entrySet()) {
+			if(entry.getValue().getStatistics() != null) {
+				statistics.add(entry.getKey() + " : " + entry.getValue().getStatistics());
+			}
+		}
+		for (int i = 1; i < responseHeadersToParse.length(); i++) {
+			HeadersToParse profile = responseHeadersToParse.get(i);
+			if(profile != null && profile.getStatistics() != null) {
+				statistics.add(i + "xx : " + profile.getStatistics());
+			}
+		}
+		return statistics.toArray(new String[statistics.size()]);
+	}
+	
+	/**
+	 * @return a task tuning this profile, to be scheduled every tuning interval on the stack timer
+	 */
+	public SIPStackTimerTask createTuningTask() {
+		return new TuningTask();
+	}
+	
+	private class TuningTask extends SIPStackTimerTask {
+		
+		@Override
+		public void runTask() {
+			tune();
+		}
+		
+		@Override
+		public Object getThreadHash() {
+			return null;
+		}
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder profile = new StringBuilder();
+		for (String entry : getProfiles()) {
+			if(profile.length() > 0) {
+				profile.append(", ");
+			}
+			profile.append(entry);
+		}
+		return profile.toString();
+	}
+}
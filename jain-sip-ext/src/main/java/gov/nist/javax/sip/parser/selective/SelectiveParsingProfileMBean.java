@@ -0,0 +1,56 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package gov.nist.javax.sip.parser.selective;
+
+/**
+ * Management interface of the selective parsing profile of a stack, the statistics 
+ * and tuning are only available when the profile is adaptive.
+ */
+public interface SelectiveParsingProfileMBean {
+	
+	boolean isAdaptive();
+	
+	/**
+	 * @return the interval in milliseconds between two tunings of the profile
+	 */
+	long getTuningInterval();
+	
+	/**
+	 * @return the headers parsed per request method and response class, one entry per profile
+	 */
+	String[] getProfiles();
+	
+	/**
+	 * @return the messages received and header accesses counted per request method and response class
+	 */
+	String[] getHeaderAccessStatistics();
+	
+	/**
+	 * Re-tune the headers parsed from the current statistics
+	 * 
+	 * @return true if a profile was changed
+	 */
+	boolean tune();
+	
+	void resetHeaderAccessStatistics();
+}
@@ -25,10 +25,16 @@ import gov.nist.core.CommonLogger;
 import gov.nist.core.StackLogger;
 import gov.nist.javax.sip.SipProviderImpl;
 import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.parser.MessageParserFactory;
+import gov.nist.javax.sip.parser.chars.PipelineSweeper;
+import gov.nist.javax.sip.parser.chars.PipelineSweeperFactory;
+import gov.nist.javax.sip.parser.selective.SelectiveMessageParserFactory;
+import gov.nist.javax.sip.parser.selective.SelectiveParsingProfile;
 import gov.nist.javax.sip.stack.MessageChannel;
 import gov.nist.javax.sip.stack.SIPClientTransaction;
 import gov.nist.javax.sip.stack.SIPMessageValve;
 import gov.nist.javax.sip.stack.SIPServerTransaction;
+import gov.nist.javax.sip.stack.SIPStackTimerTask;
 
 import java.util.List;
 import java.util.Properties;
@@ -43,6 +49,8 @@ import javax.sip.PeerUnavailableException;
 import javax.sip.ProviderDoesNotExistException;
 import javax.sip.SipException;
 
+import org.mobicents.ext.javax.sip.timers.HashedWheelSipTimerMBean;
+
 /**
  * @author jean.deruelle@gmail.com
  *
@@ -50,6 +58,8 @@ import javax.sip.SipException;
 public class SipStackImpl extends gov.nist.javax.sip.SipStackImpl implements SipStackExtension, NotificationListener, SipStackImplMBean {
 	private static StackLogger logger = CommonLogger.getLogger(SipStackImpl.class);
 	public static String JAIN_SIP_MBEAN_NAME = "org.mobicents.jain.sip:type=sip-stack,name=";
+	public static String SELECTIVE_PARSING_MBEAN_NAME = "org.mobicents.jain.sip:type=selective-parsing-profile,name=";
+	public static String SIP_TIMER_MBEAN_NAME = "org.mobicents.jain.sip:type=sip-timer,name=";
 	
 	protected TransactionFactory transactionFactory = null;
 	protected SipProviderFactory sipProviderFactory = null;
@@ -57,6 +67,10 @@ public class SipStackImpl extends gov.nist.javax.sip.SipStackImpl implements Sip
 	ObjectName oname = null;
 	MBeanServer mbeanServer = null;
 	boolean isMBeanServerNotAvailable = false;
+	ObjectName selectiveParsingOName = null;
+	ObjectName sipTimerOName = null;
+	SIPStackTimerTask selectiveParsingTuningTask = null;
+	PipelineSweeperFactory pipelineSweeperFactory = null;
 	
 	public SipStackImpl(Properties configurationProperties) throws PeerUnavailableException {
 		super(configurationProperties);
@@ -113,6 +127,76 @@ public class SipStackImpl extends gov.nist.javax.sip.SipStackImpl implements Sip
 			logger.logError("Could not register the stack as an MBean under the following name", e);
 			throw new SipException("Could not register the stack as an MBean under the following name " + mBeanName + ", cause: " + e.getMessage(), e);
 		}		
+		startSelectiveParsingProfile();
+		registerSipTimerMBean();
+		pipelineSweeperFactory = new PipelineSweeperFactory(getTimer(), getConfigurationProperties());
+	}
+	
+	/**
+	 * @return the sweeper closing the timed out pipelines of the transport, 
+	 * for the transports reading messages through a chars Pipeline
+	 */
+	public PipelineSweeper getPipelineSweeper(String transport) {
+		if(pipelineSweeperFactory == null) {
+			throw new IllegalStateException("The SIP stack is not started");
+		}
+		return pipelineSweeperFactory.getSweeper(transport);
+	}
+	
+	/**
+	 * Expose the statistics of the SIP timer over JMX, when the stack uses a timer that keeps them
+	 */
+	protected void registerSipTimerMBean() {
+		if(!(getTimer() instanceof HashedWheelSipTimerMBean)) {
+			return;
+		}
+		String mBeanName = SIP_TIMER_MBEAN_NAME + stackName;
+		try {
+			sipTimerOName = new ObjectName(mBeanName);
+			if (getMBeanServer() != null && !getMBeanServer().isRegistered(sipTimerOName)) {
+				getMBeanServer().registerMBean(getTimer(), sipTimerOName);
+			}
+		} catch (Exception e) {
+			logger.logError("Could not register the SIP timer as an MBean under the following name " + mBeanName, e);
+		}
+	}
+	
+	/**
+	 * Expose the selective parsing profile over JMX and schedule its tuning if it is adaptive, 
+	 * when the stack is configured with a selective message parser factory
+	 */
+	protected void startSelectiveParsingProfile() {
+		SelectiveParsingProfile profile = getSelectiveParsingProfile();
+		if(profile == null) {
+			return;
+		}
+		String mBeanName = SELECTIVE_PARSING_MBEAN_NAME + stackName;
+		try {
+			selectiveParsingOName = new ObjectName(mBeanName);
+			if (getMBeanServer() != null && !getMBeanServer().isRegistered(selectiveParsingOName)) {
+				getMBeanServer().registerMBean(profile, selectiveParsingOName);
+			}
+		} catch (Exception e) {
+			logger.logError("Could not register the selective parsing profile as an MBean under the following name " + mBeanName, e);
+		}
+		if(profile.isAdaptive() && selectiveParsingTuningTask == null) {
+			selectiveParsingTuningTask = profile.createTuningTask();
+			getTimer().scheduleWithFixedDelay(selectiveParsingTuningTask, profile.getTuningInterval(), profile.getTuningInterval());
+			if(logger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				logger.logInfo("Selective parsing profile tuned every " + profile.getTuningInterval() + " milliseconds");
+			}
+		}
+	}
+	
+	/**
+	 * @return the selective parsing profile of this stack or null if the stack doesn't use a selective parser
+	 */
+	public SelectiveParsingProfile getSelectiveParsingProfile() {
+		MessageParserFactory messageParserFactory = getMessageParserFactory();
+		if(messageParserFactory instanceof SelectiveMessageParserFactory) {
+			return ((SelectiveMessageParserFactory) messageParserFactory).getProfile(this);
+		}
+		return null;
 	}
 	
 	@Override
@@ -125,6 +209,28 @@ public class SipStackImpl extends gov.nist.javax.sip.SipStackImpl implements Sip
 		} catch (Exception e) {
 			logger.logError("Could not unregister the stack as an MBean under the following name" + mBeanName);
 		}
+		if(selectiveParsingTuningTask != null) {
+			getTimer().cancel(selectiveParsingTuningTask);
+			selectiveParsingTuningTask = null;
+		}
+		if(pipelineSweeperFactory != null) {
+			pipelineSweeperFactory.stop();
+			pipelineSweeperFactory = null;
+		}
+		try {
+			if (selectiveParsingOName != null && getMBeanServer() != null && getMBeanServer().isRegistered(selectiveParsingOName)) {
+				getMBeanServer().unregisterMBean(selectiveParsingOName);
+			}
+		} catch (Exception e) {
+			logger.logError("Could not unregister the selective parsing profile MBean " + selectiveParsingOName);
+		}
+		try {
+			if (sipTimerOName != null && getMBeanServer() != null && getMBeanServer().isRegistered(sipTimerOName)) {
+				getMBeanServer().unregisterMBean(sipTimerOName);
+			}
+		} catch (Exception e) {
+			logger.logError("Could not unregister the SIP timer MBean " + sipTimerOName);
+		}
 		super.stop();
 	}
 	
@@ -36,45 +36,192 @@ import io.netty.util.Timeout;
 import io.netty.util.TimerTask;
 
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * https://github.com/Mobicents/jain-sip.ext/issues/4
  * Implementation of the SIP Timer based on io.netty.util.HashedWheelTimer
  * 
+ * The timer can be sharded over several wheels, each with its own thread. A task goes to 
+ * the wheel picked from its thread hash, so that all the timers of a call or dialog fire 
+ * in order on the same thread, tasks without thread hash being spread round robin.
+ * 
+ * The wheels only detect the expiry and hand the tasks over, so that a slow task does not 
+ * delay all the others expiring in the same tick. By default they run on a single threaded 
+ * executor per shard. With workers configured, they run on single threaded workers instead, 
+ * picked from the thread hash as well so that the tasks of a call still run in order.
+ * 
+ * Each shard is made of two wheels : a near one with a fine tick for the retransmission 
+ * timers, and a far one with a coarse tick for the long timers (Timer B/F/H, dialog and 
+ * session timers) which make up most of the pending tasks. A task due after the horizon of 
+ * the near wheel waits in the far wheel and cascades down to the near wheel for its last 
+ * stretch, so it fires with the accuracy of the fine tick without being ticked over all along.
+ * 
+ * Periodic tasks are scheduled on the executor of their shard, which re-queues the same entry 
+ * at every period instead of allocating a new wheel timeout, and cancels them reliably. They 
+ * run on that executor or are handed over to the workers like the other tasks, so the periodic 
+ * and one shot timers of a call keep running in order on the same thread.
+ * 
+ * The tasks are counted per class, with histograms of how late they fired and how long 
+ * they ran, see {@link SipTimerStatistics}.
+ * 
  * @author jean.deruelle@gmail.com
  *
  */
-public class HashedWheelSipTimer implements SipTimer {
+public class HashedWheelSipTimer implements SipTimer, HashedWheelSipTimerMBean {
 	private static StackLogger logger = CommonLogger.getLogger(HashedWheelSipTimer.class);
+	
+	public static final String SHARDS = "org.mobicents.ext.javax.sip.timers.SHARDS";
+	public static final String TICK_DURATION = "org.mobicents.ext.javax.sip.timers.TICK_DURATION";
+	public static final String WORKERS = "org.mobicents.ext.javax.sip.timers.WORKERS";
+	public static final String FAR_TICK_DURATION = "org.mobicents.ext.javax.sip.timers.FAR_TICK_DURATION";
+	// tasks due within that many far ticks go straight to the near wheel
+	private static final int NEAR_HORIZON_FAR_TICKS = 4;
+	private static final long STATISTICS_SAMPLING_INTERVAL = 1000L;
+	
 	protected SipStackImpl sipStackImpl;
-	HashedWheelTimer hashedWheelSipTimer;
+	// near wheels of the shards
+	HashedWheelTimer[] hashedWheelSipTimers;
+	// far wheels of the shards, null to only use the near wheels
+	HashedWheelTimer[] farWheels;
+	private long farTickDuration;
+	private long nearHorizon;
+	// null when the tasks run on the executors of the shards
+	ThreadPoolExecutor[] workers;
+	// single threaded executors of the shards, scheduling the periodic tasks and 
+	// running all the tasks of the shard when there are no workers
+	ScheduledThreadPoolExecutor[] shardExecutors;
+	private final AtomicInteger nextShard = new AtomicInteger();
+	// tasks run by the workers and the time between their expiry and their execution
+	private final AtomicLong executedTasks = new AtomicLong();
+	private final AtomicLong totalExecutionDelay = new AtomicLong();
+	private final AtomicLong maxExecutionDelay = new AtomicLong();
+	private final SipTimerStatistics statistics = new SipTimerStatistics();
 	protected AtomicBoolean started = new AtomicBoolean(false);
     
 	public HashedWheelSipTimer() {
-		hashedWheelSipTimer = new HashedWheelTimer(new NamingThreadFactory("hashed_wheel_sip_timer"), 50L, TimeUnit.MILLISECONDS);		
 	}
 	
-	private class HashedWheelSipTimerTask implements TimerTask {
-		private SIPStackTimerTask task;
-		private Timeout timeout;
-		private long period;
+	/**
+	 * What the timer keeps in the SIPStackTimerTask to cancel it
+	 */
+	private interface CancellableTask {
+		boolean cancel();
+	}
+	
+	/**
+	 * A task is settled once, either when it fires or when it is cancelled, 
+	 * so that it is counted exactly once whatever the race between the two
+	 */
+	private static abstract class SettledTask implements CancellableTask {
+		private static final AtomicIntegerFieldUpdater<SettledTask> SETTLED = AtomicIntegerFieldUpdater.newUpdater(SettledTask.class, "settled");
+		private volatile int settled;
+		
+		/**
+		 * @return true for the first caller only
+		 */
+		protected boolean settle() {
+			return SETTLED.compareAndSet(this, 0, 1);
+		}
+	}
+	
+	private class HashedWheelSipTimerTask extends SettledTask implements TimerTask {
+		private volatile SIPStackTimerTask task;
+		private volatile Timeout timeout;
+		// worker or shard executor running the task
+		private final ExecutorService executor;
+		// whether the executor is a worker, to measure the delay of the hand over
+		private final boolean onWorker;
+		// near wheel of the shard, the task cascades down to it from the far wheel
+		private HashedWheelTimer nearWheel;
+		// System.nanoTime() the task is due at while it waits in the far wheel, 0 otherwise
+		private volatile long deadline;
+		// System.nanoTime() the task is due at
+		private final long due;
+		private final SipTimerStatistics.TaskStatistics taskStatistics;
 
-		public HashedWheelSipTimerTask(SIPStackTimerTask task, long period) {
+		public HashedWheelSipTimerTask(SIPStackTimerTask task, ExecutorService executor, boolean onWorker, HashedWheelTimer nearWheel, long delay) {
 			this.task= task;
 			task.setSipTimerTask(this);
-			this.period = period;
+			this.executor = executor;
+			this.onWorker = onWorker;
+			this.nearWheel = nearWheel;
+			this.due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+			this.taskStatistics = statistics.getTaskStatistics(task);
+			taskStatistics.scheduled();
+		}
+		
+		public void run(final Timeout timeout) {
+			if(deadline != 0 && cascade()) {
+				return;
+			}
+			if(!settle()) {
+				// cancelled while expiring or cascading
+				return;
+			}
+			taskStatistics.fired(System.nanoTime() - due);
+			final long expiry = System.currentTimeMillis();
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						if(onWorker) {
+							executionDelayed(System.currentTimeMillis() - expiry);
+						}
+						execute(timeout);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// the timer is being stopped
+				if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					logger.logDebug("SIP stack timer task dropped, the timer is stopped");
+				}
+			}
+		}
+		
+		/**
+		 * Moves the task from the far wheel to the near wheel for the time left
+		 * 
+		 * @return false if the task is already due
+		 */
+		private boolean cascade() {
+			long remaining = deadline - System.nanoTime();
+			deadline = 0;
+			if(remaining <= 0) {
+				return false;
+			}
+			if(task != null) {
+				Timeout timeout = nearWheel.newTimeout(this, remaining, TimeUnit.NANOSECONDS);
+				this.timeout = timeout;
+				// cancelled while cascading
+				if(task == null) {
+					timeout.cancel();
+				}
+			}
+			return true;
+		}
+		
+		public void setDeadline() {
+			this.deadline = due;
 		}
 		
-		public void run(Timeout timeout) {
+		private void execute(Timeout timeout) {
 			 try {
-				 // task can be null if it has been cancelled
+				 // task can be null if it has been cancelled, possibly from another worker
+				 SIPStackTimerTask task = this.task;
 				 if(task != null) {
+					 long start = System.nanoTime();
 					 task.runTask();					 
-				 }
-				 if(period > 0) {
-					 timeout = hashedWheelSipTimer.newTimeout(this, period, TimeUnit.MILLISECONDS);
+					 taskStatistics.executed(System.nanoTime() - start);
 				 }
 	        } catch (Exception e) {
 	            logger.logError("SIP stack timer task failed due to exception:", e);
@@ -82,11 +229,23 @@ public class HashedWheelSipTimer implements SipTimer {
 		}
 		
 		public boolean cancel() {
+			SIPStackTimerTask task = this.task;
 			if(task != null) {
 				task.cleanUpBeforeCancel();
-				task = null;
+				this.task = null;
 			}
-			return timeout.cancel();
+			// the task may be cancelled from its own expiry, before the timeout was set
+			Timeout timeout = this.timeout;
+			if(timeout != null) {
+				timeout.cancel();
+			}
+			// the far timeout may have expired already while the task cascades, 
+			// it won't fire anyway since the near timeout is not set or cancelled
+			if(settle()) {
+				taskStatistics.cancelled();
+				return true;
+			}
+			return false;
 		}
 
 		/**
@@ -104,12 +263,131 @@ public class HashedWheelSipTimer implements SipTimer {
 		}
 	}
 	
+	private class PeriodicSipTimerTask extends SettledTask implements Runnable {
+		private volatile SIPStackTimerTask task;
+		private volatile ScheduledFuture<?> future;
+		private final SipTimerStatistics.TaskStatistics taskStatistics;
+		// worker running the task, null to run it on the shard executor scheduling it
+		private final ExecutorService worker;
+		// set while a run is queued on the worker or running, so that a slow worker 
+		// skips periods instead of piling runs up
+		private final AtomicBoolean dispatched;
+		private final Runnable execution;
+
+		public PeriodicSipTimerTask(SIPStackTimerTask task, ExecutorService worker) {
+			this.task = task;
+			task.setSipTimerTask(this);
+			this.worker = worker;
+			this.taskStatistics = statistics.getTaskStatistics(task);
+			taskStatistics.scheduledPeriodically();
+			if(worker == null) {
+				dispatched = null;
+				execution = null;
+			} else {
+				dispatched = new AtomicBoolean();
+				// allocated once and reused at every period
+				execution = new Runnable() {
+					public void run() {
+						try {
+							execute();
+						} finally {
+							dispatched.set(false);
+						}
+					}
+				};
+			}
+		}
+		
+		public void run() {
+			if(task == null) {
+				// cancelled before the future was known
+				ScheduledFuture<?> future = this.future;
+				if(future != null) {
+					future.cancel(false);
+				}
+				return;
+			}
+			if(worker == null) {
+				execute();
+				return;
+			}
+			if(!dispatched.compareAndSet(false, true)) {
+				// the previous run is still queued or running
+				return;
+			}
+			try {
+				worker.execute(execution);
+			} catch (RejectedExecutionException e) {
+				dispatched.set(false);
+				// the timer is being stopped
+				if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					logger.logDebug("SIP stack timer task dropped, the timer is stopped");
+				}
+			}
+		}
+		
+		private void execute() {
+			// task can be null if it has been cancelled, possibly from another worker
+			SIPStackTimerTask task = this.task;
+			if(task == null) {
+				return;
+			}
+			try {
+				long start = System.nanoTime();
+				task.runTask();
+				taskStatistics.executed(System.nanoTime() - start);
+			} catch (Exception e) {
+				// not rethrown, that would stop the next runs
+				logger.logError("SIP stack timer task failed due to exception:", e);
+			}
+		}
+		
+		public boolean cancel() {
+			SIPStackTimerTask task = this.task;
+			if(task != null) {
+				task.cleanUpBeforeCancel();
+				this.task = null;
+			}
+			if(settle()) {
+				taskStatistics.cancelled();
+			}
+			ScheduledFuture<?> future = this.future;
+			return future == null || future.cancel(false);
+		}
+		
+		public void setFuture(ScheduledFuture<?> future) {
+			this.future = future;
+		}
+	}
+	
 	/* (non-Javadoc)
 	 * @see gov.nist.javax.sip.stack.timers.SipTimer#stop()
 	 */
 	public void stop() {
 		started.set(false);
-		hashedWheelSipTimer.stop();
+		if(hashedWheelSipTimers != null) {
+			for (HashedWheelTimer hashedWheelSipTimer : hashedWheelSipTimers) {
+				hashedWheelSipTimer.stop();
+			}
+		}
+		if(farWheels != null) {
+			for (HashedWheelTimer farWheel : farWheels) {
+				farWheel.stop();
+			}
+			farWheels = null;
+		}
+		if(workers != null) {
+			for (ThreadPoolExecutor worker : workers) {
+				worker.shutdown();
+			}
+			workers = null;
+		}
+		if(shardExecutors != null) {
+			for (ScheduledThreadPoolExecutor shardExecutor : shardExecutors) {
+				shardExecutor.shutdownNow();
+			}
+			shardExecutors = null;
+		}
 		logger.logStackTrace(StackLogger.TRACE_DEBUG);
 		if(logger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
 			logger.logInfo("the sip stack timer " + this.getClass().getName() + " has been stopped");
@@ -123,8 +401,22 @@ public class HashedWheelSipTimer implements SipTimer {
 		if(!started.get()) {
 			throw new IllegalStateException("The SIP Stack Timer has been stopped, no new tasks can be scheduled !");
 		}
-		HashedWheelSipTimerTask timerTask = new HashedWheelSipTimerTask(task, -1);
-		Timeout timeout = hashedWheelSipTimer.newTimeout(timerTask, delay, TimeUnit.MILLISECONDS);
+		int hash = getHash(task);
+		int shard = hash % hashedWheelSipTimers.length;
+		HashedWheelTimer hashedWheelSipTimer = hashedWheelSipTimers[shard];
+		ExecutorService worker = getWorker(hash);
+		HashedWheelSipTimerTask timerTask = worker == null ? 
+				new HashedWheelSipTimerTask(task, shardExecutors[shard], false, hashedWheelSipTimer, delay) : 
+				new HashedWheelSipTimerTask(task, worker, true, hashedWheelSipTimer, delay);
+		HashedWheelTimer[] farWheels = this.farWheels;
+		Timeout timeout;
+		if(farWheels != null && delay > nearHorizon) {
+			// the far wheel fires up to a tick late, it is left a tick early
+			timerTask.setDeadline();
+			timeout = farWheels[shard].newTimeout(timerTask, delay - farTickDuration, TimeUnit.MILLISECONDS);
+		} else {
+			timeout = hashedWheelSipTimer.newTimeout(timerTask, delay, TimeUnit.MILLISECONDS);
+		}
 		timerTask.setTimeout(timeout);
 		return true;
 	}
@@ -138,9 +430,10 @@ public class HashedWheelSipTimer implements SipTimer {
 		if(!started.get()) {
 			throw new IllegalStateException("The SIP Stack Timer has been stopped, no new tasks can be scheduled !");
 		}
-		HashedWheelSipTimerTask timerTask = new HashedWheelSipTimerTask(task, period);
-		Timeout timeout = hashedWheelSipTimer.newTimeout(timerTask, delay, TimeUnit.MILLISECONDS);
-		timerTask.setTimeout(timeout);
+		int hash = getHash(task);
+		ScheduledThreadPoolExecutor shardExecutor = shardExecutors[hash % shardExecutors.length];
+		PeriodicSipTimerTask timerTask = new PeriodicSipTimerTask(task, getWorker(hash));
+		timerTask.setFuture(shardExecutor.scheduleWithFixedDelay(timerTask, delay, period, TimeUnit.MILLISECONDS));
 		return true;
 	}
 
@@ -150,19 +443,185 @@ public class HashedWheelSipTimer implements SipTimer {
 	 */
 	public void start(SipStackImpl sipStack, Properties configurationProperties) {
 		sipStackImpl= sipStack;
-		// TODO have a param in the stack properties to set the number of thread for the timer executor
-		hashedWheelSipTimer.start();
+		int shards = Integer.parseInt(configurationProperties.getProperty(SHARDS, "1"));
+		long tickDuration = Long.parseLong(configurationProperties.getProperty(TICK_DURATION, "10"));
+		farTickDuration = Long.parseLong(configurationProperties.getProperty(FAR_TICK_DURATION, "500"));
+		nearHorizon = farTickDuration * NEAR_HORIZON_FAR_TICKS;
+		if(shards < 1) {
+			throw new IllegalArgumentException(SHARDS + " should be at least 1, got " + shards);
+		}
+		int workerCount = Integer.parseInt(configurationProperties.getProperty(WORKERS, "0"));
+		if(workerCount > 0) {
+			workers = new ThreadPoolExecutor[workerCount];
+			for (int i = 0; i < workerCount; i++) {
+				workers[i] = (ThreadPoolExecutor) Executors.newFixedThreadPool(1, new NamingThreadFactory("sip_timer_worker_" + i));
+			}
+		}
+		shardExecutors = new ScheduledThreadPoolExecutor[shards];
+		for (int i = 0; i < shards; i++) {
+			String threadName = shards == 1 ? "sip_timer" : "sip_timer_" + i;
+			shardExecutors[i] = new ScheduledThreadPoolExecutor(1, new NamingThreadFactory(threadName));
+			shardExecutors[i].setRemoveOnCancelPolicy(true);
+		}
+		shardExecutors[0].scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				statistics.sample();
+			}
+		}, STATISTICS_SAMPLING_INTERVAL, STATISTICS_SAMPLING_INTERVAL, TimeUnit.MILLISECONDS);
+		hashedWheelSipTimers = new HashedWheelTimer[shards];
+		for (int i = 0; i < shards; i++) {
+			String threadName = shards == 1 ? "hashed_wheel_sip_timer" : "hashed_wheel_sip_timer_" + i;
+			hashedWheelSipTimers[i] = new HashedWheelTimer(new NamingThreadFactory(threadName), tickDuration, TimeUnit.MILLISECONDS);
+			hashedWheelSipTimers[i].start();
+		}
+		if(farTickDuration > 0) {
+			farWheels = new HashedWheelTimer[shards];
+			for (int i = 0; i < shards; i++) {
+				String threadName = shards == 1 ? "far_hashed_wheel_sip_timer" : "far_hashed_wheel_sip_timer_" + i;
+				farWheels[i] = new HashedWheelTimer(new NamingThreadFactory(threadName), farTickDuration, TimeUnit.MILLISECONDS);
+				farWheels[i].start();
+			}
+		}
 		started.set(true);
 		if(logger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
-			logger.logInfo("the sip stack timer " + this.getClass().getName() + " has been started");
+			logger.logInfo("the sip stack timer " + this.getClass().getName() + " has been started with " + shards + " shard(s) ticking every " + tickDuration + " ms" + 
+					(farTickDuration > 0 ? " (every " + farTickDuration + " ms beyond " + nearHorizon + " ms)" : "") + " and " + workerCount + " worker(s)");
+		}
+	}
+	
+	/**
+	 * @return the positive hash picking the wheel and the worker of the task, 
+	 * the same for all the tasks with the same thread hash
+	 */
+	private int getHash(SIPStackTimerTask task) {
+		if(hashedWheelSipTimers.length == 1 && workers == null) {
+			return 0;
+		}
+		Object threadHash = task.getThreadHash();
+		int hash;
+		if(threadHash == null) {
+			hash = nextShard.getAndIncrement();
+		} else {
+			hash = threadHash.hashCode();
+			// Call-IDs often share long prefixes, spread the high bits
+			hash ^= (hash >>> 16);
+		}
+		return hash & Integer.MAX_VALUE;
+	}
+	
+	/**
+	 * @return whether the task waits in a far wheel, false once it cascaded down to its near wheel
+	 */
+	boolean isInFarWheel(SIPStackTimerTask task) {
+		Object timerTask = task.getSipTimerTask();
+		return timerTask instanceof HashedWheelSipTimerTask && ((HashedWheelSipTimerTask) timerTask).deadline != 0;
+	}
+	
+	private ExecutorService getWorker(int hash) {
+		ThreadPoolExecutor[] workers = this.workers;
+		return workers == null ? null : workers[hash % workers.length];
+	}
+	
+	private void executionDelayed(long delay) {
+		executedTasks.incrementAndGet();
+		totalExecutionDelay.addAndGet(delay);
+		long max = maxExecutionDelay.get();
+		while (delay > max && !maxExecutionDelay.compareAndSet(max, delay)) {
+			max = maxExecutionDelay.get();
 		}
 	}
+	
+	/**
+	 * @return the counters and histograms of the tasks scheduled on this timer
+	 */
+	public SipTimerStatistics getStatistics() {
+		return statistics;
+	}
+	
+	public long getPendingTasks() {
+		return statistics.getPending();
+	}
+	
+	public long getScheduledTasks() {
+		return statistics.getScheduled();
+	}
+	
+	public long getCancelledTasks() {
+		return statistics.getCancelled();
+	}
+	
+	public long getFiredTasks() {
+		return statistics.getFired();
+	}
+	
+	public double getSchedulesPerSecond() {
+		return statistics.getSchedulesPerSecond();
+	}
+	
+	public double getCancelsPerSecond() {
+		return statistics.getCancelsPerSecond();
+	}
+	
+	public String[] getTaskCounters() {
+		return statistics.getTaskCounters();
+	}
+	
+	public String[] getLatenessHistograms() {
+		return statistics.getLatenessHistograms();
+	}
+	
+	public String[] getExecutionTimeHistograms() {
+		return statistics.getExecutionTimeHistograms();
+	}
+	
+	public void resetStatistics() {
+		statistics.reset();
+		executedTasks.set(0);
+		totalExecutionDelay.set(0);
+		maxExecutionDelay.set(0);
+	}
+	
+	/**
+	 * @return the number of expired tasks waiting for a worker, 0 when the tasks run on the executors of the shards
+	 */
+	public int getWorkerQueueSize() {
+		ThreadPoolExecutor[] workers = this.workers;
+		int queued = 0;
+		if(workers != null) {
+			for (ThreadPoolExecutor worker : workers) {
+				queued += worker.getQueue().size();
+			}
+		}
+		return queued;
+	}
+	
+	/**
+	 * @return the number of tasks run by the workers since the timer was started
+	 */
+	public long getWorkerExecutedTasks() {
+		return executedTasks.get();
+	}
+	
+	/**
+	 * @return the average time in milliseconds between the expiry of a task and its execution by a worker
+	 */
+	public long getAverageExecutionDelay() {
+		long executed = executedTasks.get();
+		return executed == 0 ? 0 : totalExecutionDelay.get() / executed;
+	}
+	
+	/**
+	 * @return the longest time in milliseconds between the expiry of a task and its execution by a worker
+	 */
+	public long getMaxExecutionDelay() {
+		return maxExecutionDelay.get();
+	}
 	/*
 	 * (non-Javadoc)
 	 * @see gov.nist.javax.sip.stack.timers.SipTimer#cancel(gov.nist.javax.sip.stack.SIPStackTimerTask)
 	 */
 	public boolean cancel(SIPStackTimerTask task) {
-		return ((HashedWheelSipTimerTask)task.getSipTimerTask()).cancel();
+		return ((CancellableTask)task.getSipTimerTask()).cancel();
 	}
 
 	/*
@@ -0,0 +1,81 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ext.javax.sip.timers;
+
+/**
+ * Management interface of the SIP timer of a stack, published next to the stack MBean.
+ */
+public interface HashedWheelSipTimerMBean {
+
+	/**
+	 * @return the one shot tasks waiting to fire, plus the periodic tasks not cancelled
+	 */
+	long getPendingTasks();
+
+	long getScheduledTasks();
+
+	long getCancelledTasks();
+
+	long getFiredTasks();
+
+	/**
+	 * @return the tasks scheduled per second over the last second
+	 */
+	double getSchedulesPerSecond();
+
+	/**
+	 * @return the tasks cancelled per second over the last second
+	 */
+	double getCancelsPerSecond();
+
+	/**
+	 * @return the number of expired tasks waiting for a worker, 0 when the tasks run on the executors of the shards
+	 */
+	int getWorkerQueueSize();
+
+	long getWorkerExecutedTasks();
+
+	long getAverageExecutionDelay();
+
+	long getMaxExecutionDelay();
+
+	/**
+	 * @return the tasks scheduled, cancelled, fired and pending, one entry per task class
+	 */
+	String[] getTaskCounters();
+
+	/**
+	 * @return how late the tasks fired compared to when they were due, one histogram per task class
+	 */
+	String[] getLatenessHistograms();
+
+	/**
+	 * @return how long the tasks took to run, one histogram per task class
+	 */
+	String[] getExecutionTimeHistograms();
+
+	/**
+	 * Clears the histograms, the rates and the worker delays
+	 */
+	void resetStatistics();
+}
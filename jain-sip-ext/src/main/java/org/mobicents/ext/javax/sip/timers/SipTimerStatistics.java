@@ -0,0 +1,312 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ext.javax.sip.timers;
+
+import gov.nist.javax.sip.stack.SIPStackTimerTask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the tasks scheduled, cancelled, fired and executed by a SIP timer, per class of 
+ * {@link SIPStackTimerTask}, with histograms of how late they fired compared to when they 
+ * were due and of how long they took to run. Late retransmission timers are one of the 
+ * first symptoms of an overloaded stack.
+ */
+public final class SipTimerStatistics {
+
+	// task classes counted separately, the others are counted together
+	private static final int MAX_TASK_CLASSES = 64;
+	private static final String OTHER_TASKS = "other";
+
+	private final ConcurrentHashMap<String, TaskStatistics> taskStatistics = new ConcurrentHashMap<String, TaskStatistics>();
+	private final TaskStatistics otherTasks = new TaskStatistics(OTHER_TASKS);
+
+	// rates over the last sampling interval
+	private long lastSample = System.nanoTime();
+	private long lastScheduled;
+	private long lastCancelled;
+	private volatile double schedulesPerSecond;
+	private volatile double cancelsPerSecond;
+
+	/**
+	 * @return the statistics of the class of the task, to be kept with the task
+	 */
+	public TaskStatistics getTaskStatistics(SIPStackTimerTask task) {
+		String taskClass = task.getClass().getName();
+		TaskStatistics statistics = taskStatistics.get(taskClass);
+		if(statistics == null) {
+			if(taskStatistics.size() >= MAX_TASK_CLASSES) {
+				return otherTasks;
+			}
+			statistics = new TaskStatistics(taskClass);
+			TaskStatistics existing = taskStatistics.putIfAbsent(taskClass, statistics);
+			if(existing != null) {
+				statistics = existing;
+			}
+		}
+		return statistics;
+	}
+
+	private List<TaskStatistics> getAllTaskStatistics() {
+		List<TaskStatistics> all = new ArrayList<TaskStatistics>(taskStatistics.values());
+		if(otherTasks.scheduled.get() > 0) {
+			all.add(otherTasks);
+		}
+		return all;
+	}
+
+	public long getScheduled() {
+		long scheduled = otherTasks.scheduled.get();
+		for (TaskStatistics statistics : taskStatistics.values()) {
+			scheduled += statistics.scheduled.get();
+		}
+		return scheduled;
+	}
+
+	public long getCancelled() {
+		long cancelled = otherTasks.cancelled.get();
+		for (TaskStatistics statistics : taskStatistics.values()) {
+			cancelled += statistics.cancelled.get();
+		}
+		return cancelled;
+	}
+
+	public long getFired() {
+		long fired = otherTasks.lateness.getTotalCount();
+		for (TaskStatistics statistics : taskStatistics.values()) {
+			fired += statistics.lateness.getTotalCount();
+		}
+		return fired;
+	}
+
+	/**
+	 * @return the one shot tasks scheduled that neither fired nor were cancelled yet
+	 */
+	public long getPending() {
+		long pending = otherTasks.getPending();
+		for (TaskStatistics statistics : taskStatistics.values()) {
+			pending += statistics.getPending();
+		}
+		return pending;
+	}
+
+	/**
+	 * Computes the rates since the previous sample, called periodically by the timer
+	 */
+	public synchronized void sample() {
+		long now = System.nanoTime();
+		long scheduled = getScheduled();
+		long cancelled = getCancelled();
+		double seconds = (now - lastSample) / (double) TimeUnit.SECONDS.toNanos(1);
+		if(seconds > 0) {
+			schedulesPerSecond = (scheduled - lastScheduled) / seconds;
+			cancelsPerSecond = (cancelled - lastCancelled) / seconds;
+		}
+		lastSample = now;
+		lastScheduled = scheduled;
+		lastCancelled = cancelled;
+	}
+
+	public double getSchedulesPerSecond() {
+		return schedulesPerSecond;
+	}
+
+	public double getCancelsPerSecond() {
+		return cancelsPerSecond;
+	}
+
+	/**
+	 * @return the counters of each task class, one entry per class
+	 */
+	public String[] getTaskCounters() {
+		List<String> counters = new ArrayList<String>();
+		for (TaskStatistics statistics : getAllTaskStatistics()) {
+			counters.add(statistics.toString());
+		}
+		return counters.toArray(new String[counters.size()]);
+	}
+
+	/**
+	 * @return the histogram of the time between the expected and actual firing of the tasks, one entry per task class
+	 */
+	public String[] getLatenessHistograms() {
+		List<String> histograms = new ArrayList<String>();
+		for (TaskStatistics statistics : getAllTaskStatistics()) {
+			histograms.add(statistics.taskClass + " " + statistics.lateness);
+		}
+		return histograms.toArray(new String[histograms.size()]);
+	}
+
+	/**
+	 * @return the histogram of the time taken by the tasks to run, one entry per task class
+	 */
+	public String[] getExecutionTimeHistograms() {
+		List<String> histograms = new ArrayList<String>();
+		for (TaskStatistics statistics : getAllTaskStatistics()) {
+			histograms.add(statistics.taskClass + " " + statistics.executionTime);
+		}
+		return histograms.toArray(new String[histograms.size()]);
+	}
+
+	/**
+	 * Clears the histograms and the rates, the counters of scheduled, fired and cancelled 
+	 * tasks are kept so that the number of pending tasks stays right.
+	 */
+	public synchronized void reset() {
+		otherTasks.reset();
+		for (TaskStatistics statistics : taskStatistics.values()) {
+			statistics.reset();
+		}
+		schedulesPerSecond = 0;
+		cancelsPerSecond = 0;
+	}
+
+	/**
+	 * Statistics of the tasks of one class
+	 */
+	public static final class TaskStatistics {
+		private final String taskClass;
+		private final AtomicLong scheduled = new AtomicLong();
+		private final AtomicLong cancelled = new AtomicLong();
+		private final AtomicLong periodic = new AtomicLong();
+		private final Histogram lateness = new Histogram();
+		private final Histogram executionTime = new Histogram();
+
+		TaskStatistics(String taskClass) {
+			this.taskClass = taskClass;
+		}
+
+		public void scheduled() {
+			scheduled.incrementAndGet();
+		}
+
+		public void scheduledPeriodically() {
+			scheduled.incrementAndGet();
+			periodic.incrementAndGet();
+		}
+
+		public void cancelled() {
+			cancelled.incrementAndGet();
+		}
+
+		/**
+		 * @param lateness the time in nanoseconds between when the task was due and when it fired
+		 */
+		public void fired(long lateness) {
+			this.lateness.record(lateness);
+		}
+
+		/**
+		 * @param executionTime the time in nanoseconds the task took to run
+		 */
+		public void executed(long executionTime) {
+			this.executionTime.record(executionTime);
+		}
+
+		long getPending() {
+			// periodic tasks never fire for good, they are pending until cancelled
+			return scheduled.get() - lateness.getTotalCount() - cancelled.get();
+		}
+
+		void reset() {
+			lateness.reset();
+			executionTime.reset();
+		}
+
+		@Override
+		public String toString() {
+			return taskClass + " scheduled=" + scheduled.get() + ", periodic=" + periodic.get() + ", cancelled=" + cancelled.get() 
+					+ ", fired=" + lateness.getTotalCount() + ", pending=" + getPending();
+		}
+	}
+
+	/**
+	 * Histogram of durations in buckets of increasing width, with the count, mean and max
+	 */
+	static final class Histogram {
+		// upper bounds in milliseconds of the buckets, the last bucket is unbounded
+		private static final long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+		private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+		private final AtomicLong count = new AtomicLong();
+		// not cleared on reset, it keeps the pending count right
+		private final AtomicLong totalCount = new AtomicLong();
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long nanos) {
+			if(nanos < 0) {
+				nanos = 0;
+			}
+			long millis = nanos / NANOS_PER_MILLI;
+			int bucket = 0;
+			while (bucket < BOUNDS.length && millis >= BOUNDS[bucket]) {
+				bucket++;
+			}
+			buckets.incrementAndGet(bucket);
+			count.incrementAndGet();
+			totalCount.incrementAndGet();
+			total.addAndGet(nanos);
+			long current = max.get();
+			while (nanos > current && !max.compareAndSet(current, nanos)) {
+				current = max.get();
+			}
+		}
+
+		/**
+		 * @return the durations recorded since the histogram was created, reset included
+		 */
+		long getTotalCount() {
+			return totalCount.get();
+		}
+
+		void reset() {
+			for (int i = 0; i < buckets.length(); i++) {
+				buckets.set(i, 0);
+			}
+			count.set(0);
+			total.set(0);
+			max.set(0);
+		}
+
+		@Override
+		public String toString() {
+			long count = this.count.get();
+			StringBuilder histogram = new StringBuilder();
+			histogram.append("count=").append(count);
+			histogram.append(", mean=").append(count == 0 ? 0 : total.get() / count / NANOS_PER_MILLI).append("ms");
+			histogram.append(", max=").append(max.get() / NANOS_PER_MILLI).append("ms");
+			for (int i = 0; i < BOUNDS.length; i++) {
+				histogram.append(", <").append(BOUNDS[i]).append("ms=").append(buckets.get(i));
+			}
+			histogram.append(", >=").append(BOUNDS[BOUNDS.length - 1]).append("ms=").append(buckets.get(BOUNDS.length));
+			return histogram.toString();
+		}
+	}
+}
@@ -38,7 +38,10 @@ public class Inet6Util {
         int numberOfColons = 0;
         int numberOfPeriods = 0;
         int numberOfPercent = 0;
-        String word = "";
+        // the current word is tracked as counters rather than a String
+        int wordLength = 0;
+        int wordValue = 0;
+        boolean wordDigits = true;
         char c = 0;
         char prevChar = 0;
         int offset = 0; // offset for [] ip addresses
@@ -75,7 +78,7 @@ public class Inet6Util {
                 numberOfPeriods++;
                 if (numberOfPeriods > 3)
                     return false;
-                if (!isValidIP4Word(word))
+                if (!isValidIP4Word(wordLength, wordDigits, wordValue))
                     return false;
                 if (numberOfColons != 6 && !doubleColon)
                     return false;
@@ -84,7 +87,9 @@ public class Inet6Util {
                 if (numberOfColons == 7 && ipAddress.charAt(0 + offset) != ':'
                         && ipAddress.charAt(1 + offset) != ':')
                     return false;
-                word = "";
+                wordLength = 0;
+                wordValue = 0;
+                wordDigits = true;
                 break;
 
             case ':':
@@ -105,7 +110,9 @@ public class Inet6Util {
                         return false;
                     doubleColon = true;
                 }
-                word = "";
+                wordLength = 0;
+                wordValue = 0;
+                wordDigits = true;
                 break;
             case '%':
                 if (numberOfColons == 0)
@@ -130,18 +137,24 @@ public class Inet6Util {
 
             default:
                 if (numberOfPercent == 0) {
-                    if (word.length() > 3)
+                    if (wordLength > 3)
                         return false;
                     if (!isValidHexChar(c))
                         return false;
                 }
-                word += c;
+                wordLength++;
+                if (c >= '0' && c <= '9') {
+                    if (wordValue <= 255)
+                        wordValue = wordValue * 10 + (c - '0');
+                } else {
+                    wordDigits = false;
+                }
             }
         }
 
         // Check if we have an IPv4 ending
         if (numberOfPeriods > 0) {
-            if (numberOfPeriods != 3 || !isValidIP4Word(word))
+            if (numberOfPeriods != 3 || !isValidIP4Word(wordLength, wordDigits, wordValue))
                 return false;
         } else {
             // If we're at then end and we haven't had 7 colons then there is a
@@ -154,7 +167,7 @@ public class Inet6Util {
             // a : or a .
             // If we did not end in :: then this is invalid
             if (numberOfPercent == 0) {
-                if (word == "" && ipAddress.charAt(length - 1 - offset) == ':'
+                if (wordLength == 0 && ipAddress.charAt(length - 1 - offset) == ':'
                         && ipAddress.charAt(length - 2 - offset) != ':') {
                     return false;
                 }
@@ -178,6 +191,10 @@ public class Inet6Util {
         return true;
     }
 
+    private static boolean isValidIP4Word(int length, boolean digits, int value) {
+        return length >= 1 && length <= 3 && digits && value <= 255;
+    }
+
     static boolean isValidHexChar(char c) {
 
         return (c >= '0' && c <= '9') || (c >= 'A' && c <= 'F')
@@ -191,40 +208,46 @@ public class Inet6Util {
      *         notation, false otherwise
      */
     public static boolean isValidIPV4Address(String value) {
+        return parseIPv4(value, 0, value.length()) != NOT_AN_ADDRESS;
+    }
 
+    /**
+     * Parses an IPV4 address in dotted notation without allocating.
+     *
+     * @return the address as an unsigned 32 bit value in network order, or
+     *         {@link #NOT_AN_ADDRESS} if the range is not an IPV4 address
+     */
+    public static long parseIPv4(CharSequence value, int start, int end) {
+        if (end - start > 15)
+            return NOT_AN_ADDRESS;
+        long address = 0;
+        int word = 0;
+        int digits = 0;
         int periods = 0;
-        int i = 0;
-        int length = value.length();
-
-        if (length > 15)
-            return false;
-        char c = 0;
-        String word = "";
-        for (i = 0; i < length; i++) {
-            c = value.charAt(i);
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
             if (c == '.') {
-                periods++;
-                if (periods > 3)
-                    return false;
-                if (word == "")
-                    return false;
-                if (Integer.parseInt(word) > 255)
-                    return false;
-                word = "";
-            } else if (!(Character.isDigit(c)))
-                return false;
-            else {
-                if (word.length() > 2)
-                    return false;
-                word += c;
+                if (digits == 0 || ++periods > 3)
+                    return NOT_AN_ADDRESS;
+                address = (address << 8) | word;
+                word = 0;
+                digits = 0;
+            } else if (c >= '0' && c <= '9') {
+                if (++digits > 3)
+                    return NOT_AN_ADDRESS;
+                word = word * 10 + (c - '0');
+                if (word > 255)
+                    return NOT_AN_ADDRESS;
+            } else {
+                return NOT_AN_ADDRESS;
             }
         }
-
-        if (word == "" || Integer.parseInt(word) > 255)
-            return false;
-        if (periods != 3)
-            return false;
-        return true;
+        if (digits == 0 || periods != 3)
+            return NOT_AN_ADDRESS;
+        return (address << 8) | word;
     }
 
+    /** Returned by {@link #parseIPv4} when the value is not an IPV4 address. */
+    public static final long NOT_AN_ADDRESS = -1L;
+
 }
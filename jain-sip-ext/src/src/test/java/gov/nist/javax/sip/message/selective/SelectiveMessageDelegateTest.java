@@ -0,0 +1,138 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2013, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package gov.nist.javax.sip.message.selective;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a copy of a {@link SelectiveMessageDelegate} shares the headers not parsed 
+ * with its original until one of them adds or removes a header, and that neither sees 
+ * the changes of the other afterwards.
+ */
+public class SelectiveMessageDelegateTest {
+
+	private SelectiveMessageDelegate original;
+
+	@Before
+	public void setUp() throws Exception {
+		original = new SelectiveMessageDelegate();
+		original.addHeaderNotParsed("Subject", "Subject: first\n");
+		original.addHeaderNotParsed("X-Custom", "X-Custom: 1");
+		original.addHeaderNotParsed("Subject", "Subject: second\n");
+	}
+
+	@Test
+	public void testCopySeesHeaders() {
+		SelectiveMessageDelegate copy = new SelectiveMessageDelegate(original);
+		assertEquals(lines(original), lines(copy));
+		assertEquals("Subject: first\nSubject: second\n", copy.getHeaderUnparsed("subject"));
+		assertEquals("Subject: first\r\nX-Custom: 1\r\nSubject: second\r\n", 
+				copy.encodeHeadersNotParsed(new StringBuilder()).toString());
+	}
+
+	@Test
+	public void testAddToCopy() {
+		SelectiveMessageDelegate copy = new SelectiveMessageDelegate(original);
+		copy.addHeaderNotParsed("X-Added", "X-Added: copy\n");
+		assertEquals(4, copy.getHeaderCountNotParsed());
+		assertEquals(3, original.getHeaderCountNotParsed());
+		assertFalse(original.hasHeaderNotParsed("x-added"));
+		// the original then writes in the arrays it kept
+		original.addHeaderNotParsed("X-Added", "X-Added: original\n");
+		assertEquals("X-Added: copy\n", copy.getHeaderUnparsed("x-added"));
+		assertEquals("X-Added: original\n", original.getHeaderUnparsed("x-added"));
+	}
+
+	@Test
+	public void testAddToOriginal() {
+		SelectiveMessageDelegate copy = new SelectiveMessageDelegate(original);
+		original.addHeaderNotParsed("X-Added", "X-Added: original\n");
+		assertEquals(4, original.getHeaderCountNotParsed());
+		assertEquals(3, copy.getHeaderCountNotParsed());
+		assertFalse(copy.hasHeaderNotParsed("x-added"));
+	}
+
+	@Test
+	public void testRemoveFromOriginal() {
+		SelectiveMessageDelegate copy = new SelectiveMessageDelegate(original);
+		assertEquals("Subject: first\nSubject: second\n", original.removeHeaderNotParsed("subject"));
+		assertEquals(1, original.getHeaderCountNotParsed());
+		assertNull(original.getHeaderUnparsed("subject"));
+		assertEquals(3, copy.getHeaderCountNotParsed());
+		assertEquals("Subject: first\nSubject: second\n", copy.getHeaderUnparsed("subject"));
+	}
+
+	@Test
+	public void testCopyOfCopy() {
+		SelectiveMessageDelegate copy = new SelectiveMessageDelegate(original);
+		SelectiveMessageDelegate copyOfCopy = new SelectiveMessageDelegate(copy);
+		copy.removeHeaderNotParsed("x-custom");
+		copyOfCopy.addHeaderNotParsed("X-Other", "X-Other: 2\n");
+		assertEquals(3, original.getHeaderCountNotParsed());
+		assertEquals(2, copy.getHeaderCountNotParsed());
+		assertEquals(4, copyOfCopy.getHeaderCountNotParsed());
+		assertTrue(original.hasHeaderNotParsed("x-custom"));
+		assertTrue(copyOfCopy.hasHeaderNotParsed("x-custom"));
+		assertFalse(original.hasHeaderNotParsed("x-other"));
+		assertFalse(copy.hasHeaderNotParsed("x-other"));
+	}
+
+	@Test
+	public void testOrderKeptAfterRemove() {
+		SelectiveMessageDelegate copy = new SelectiveMessageDelegate(original);
+		copy.removeHeaderNotParsed("x-custom");
+		for (int i = 0; i < 10; i++) {
+			// grows the arrays past their initial capacity
+			copy.addHeaderNotParsed("X-Custom", "X-Custom: " + i + "\n");
+		}
+		List<String> lines = lines(copy);
+		assertEquals(12, lines.size());
+		assertEquals("Subject: first\n", lines.get(0));
+		assertEquals("Subject: second\n", lines.get(1));
+		assertEquals("X-Custom: 9\n", lines.get(11));
+		assertEquals("X-Custom: 1\n", original.getHeaderUnparsed("x-custom"));
+	}
+
+	@Test
+	public void testCopyOfEmpty() {
+		SelectiveMessageDelegate empty = new SelectiveMessageDelegate();
+		SelectiveMessageDelegate copy = new SelectiveMessageDelegate(empty);
+		copy.addHeaderNotParsed("Subject", "Subject: copy\n");
+		assertEquals(0, empty.getHeaderCountNotParsed());
+		assertEquals(1, copy.getHeaderCountNotParsed());
+	}
+
+	private static List<String> lines(SelectiveMessageDelegate delegate) {
+		List<String> lines = new ArrayList<String>();
+		for (Iterator<String> it = delegate.getHeaderValuesNotParsed(); it.hasNext();) {
+			lines.add(it.next());
+		}
+		return lines;
+	}
+}
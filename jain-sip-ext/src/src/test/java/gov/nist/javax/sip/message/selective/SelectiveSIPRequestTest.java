@@ -0,0 +1,83 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2013, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package gov.nist.javax.sip.message.selective;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.ListIterator;
+
+import javax.sip.header.ExtensionHeader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that removing the first or last entry of a header left as received removes 
+ * that entry only, as for a header parsed on receipt.
+ */
+public class SelectiveSIPRequestTest {
+
+	private SelectiveSIPRequest request;
+
+	@Before
+	public void setUp() throws Exception {
+		request = new SelectiveSIPRequest(Collections.<String>emptySet());
+		request.addHeaderNotParsed("x-custom", "X-Custom: 1\n");
+		request.addHeaderNotParsed("x-custom", "X-Custom: 2\n");
+	}
+
+	@Test
+	public void testRemoveTop() {
+		request.removeHeader("X-Custom", true);
+		assertEquals("2", ((ExtensionHeader) request.getHeader("X-Custom")).getValue());
+		assertSingle();
+	}
+
+	@Test
+	public void testRemoveBottom() {
+		request.removeHeader("X-Custom", false);
+		assertEquals("1", ((ExtensionHeader) request.getHeader("X-Custom")).getValue());
+		assertSingle();
+	}
+
+	@Test
+	public void testRemoveBoth() {
+		request.removeHeader("X-Custom", true);
+		request.removeHeader("X-Custom", true);
+		assertNull(request.getHeader("X-Custom"));
+		assertFalse(request.hasHeaderNotParsed("x-custom"));
+	}
+
+	@Test
+	public void testRemoveAll() {
+		request.removeHeader("X-Custom");
+		assertNull(request.getHeader("X-Custom"));
+		assertFalse(request.hasHeaderNotParsed("x-custom"));
+	}
+
+	private void assertSingle() {
+		assertFalse(request.hasHeaderNotParsed("x-custom"));
+		ListIterator<?> headers = request.getHeaders("X-Custom");
+		headers.next();
+		assertFalse(headers.hasNext());
+	}
+}
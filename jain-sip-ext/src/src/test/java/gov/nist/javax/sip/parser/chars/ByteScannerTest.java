@@ -0,0 +1,120 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2013, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package gov.nist.javax.sip.parser.chars;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks the SWAR scans of {@link ByteScanner} against a byte per byte scan, with the 
+ * delimiters on every lane of a word, across word boundaries and in the unaligned tail.
+ */
+public class ByteScannerTest {
+
+	private static final int LENGTH = 37;
+	// no delimiter but the bytes right next to them, so that a borrow between lanes would show
+	private static final byte[] FILLER = { 'a', '9', '<', 0x0B, 0x0C, 0x0E, '\t', 0x7F };
+
+	@Test
+	public void testIndexOfEveryOffset() {
+		for (int position = 0; position < LENGTH; position++) {
+			byte[] buffer = filled(LENGTH);
+			buffer[position] = ':';
+			ByteScanner scanner = new ByteScanner(buffer);
+			for (int from = 0; from < LENGTH; from++) {
+				for (int to = from; to <= LENGTH; to++) {
+					int expected = position >= from && position < to ? position : ByteScanner.NOT_FOUND;
+					assertEquals("':' at " + position + " in [" + from + ", " + to + ")", 
+							expected, scanner.indexOf((byte) ':', from, to));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testIndexOfFirstOfSeveral() {
+		byte[] buffer = filled(LENGTH);
+		buffer[9] = ';';
+		buffer[10] = ';';
+		buffer[15] = ';';
+		buffer[36] = ';';
+		ByteScanner scanner = new ByteScanner(buffer);
+		assertEquals(9, scanner.indexOf((byte) ';', 0, LENGTH));
+		assertEquals(10, scanner.indexOf((byte) ';', 10, LENGTH));
+		assertEquals(15, scanner.indexOf((byte) ';', 11, LENGTH));
+		// only in the tail, after the last full word
+		assertEquals(36, scanner.indexOf((byte) ';', 16, LENGTH));
+		assertEquals(ByteScanner.NOT_FOUND, scanner.indexOf((byte) ';', 16, 36));
+	}
+
+	@Test
+	public void testIndexOfHighBytes() {
+		// bytes above 0x7F must neither match nor hide a match in the same word
+		byte[] buffer = new byte[16];
+		for (int i = 0; i < buffer.length; i++) {
+			buffer[i] = (byte) 0xFF;
+		}
+		buffer[5] = (byte) 0x80;
+		ByteScanner scanner = new ByteScanner(buffer);
+		assertEquals(5, scanner.indexOf((byte) 0x80, 0, 16));
+		assertEquals(0, scanner.indexOf((byte) 0xFF, 0, 16));
+		assertEquals(ByteScanner.NOT_FOUND, scanner.indexOf((byte) 0x7F, 0, 16));
+		buffer[12] = 1;
+		assertEquals(12, scanner.indexOf((byte) 1, 0, 16));
+		assertEquals(ByteScanner.NOT_FOUND, scanner.indexOf((byte) 0, 0, 16));
+	}
+
+	@Test
+	public void testIndexOfLineEndEveryOffset() {
+		for (byte lineEnd : new byte[] { '\r', '\n' }) {
+			for (int position = 0; position < LENGTH; position++) {
+				byte[] buffer = filled(LENGTH);
+				buffer[position] = lineEnd;
+				ByteScanner scanner = new ByteScanner(buffer);
+				for (int from = 0; from < LENGTH; from++) {
+					int expected = position >= from ? position : ByteScanner.NOT_FOUND;
+					assertEquals(lineEnd + " at " + position + " from " + from, 
+							expected, scanner.indexOfLineEnd(from, LENGTH));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testIndexOfLineEndCRLF() {
+		byte[] buffer = "INVITE sip:bob@example.com SIP/2.0\r\nVia: SIP/2.0/UDP host\r\n\r\n".getBytes();
+		ByteScanner scanner = new ByteScanner(buffer);
+		int first = scanner.indexOfLineEnd(0, buffer.length);
+		assertEquals(34, first);
+		int second = scanner.indexOfLineEnd(first + 2, buffer.length);
+		assertEquals(buffer.length - 4, second);
+		assertEquals(buffer.length - 2, scanner.indexOfLineEnd(second + 2, buffer.length));
+		// a range ending right before the line end
+		assertEquals(ByteScanner.NOT_FOUND, scanner.indexOfLineEnd(0, first));
+	}
+
+	private static byte[] filled(int length) {
+		byte[] buffer = new byte[length];
+		for (int i = 0; i < length; i++) {
+			buffer[i] = FILLER[i % FILLER.length];
+		}
+		return buffer;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2013, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package gov.nist.javax.sip.parser.chars;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the keys {@link MessageKeyExtractor} pulls out of raw messages, with long and compact 
+ * header names, folded headers and LF only line ends.
+ */
+public class MessageKeyExtractorTest {
+
+	private static final String INVITE = 
+			"INVITE sip:bob@biloxi.example.com SIP/2.0\r\n" +
+			"Via: SIP/2.0/UDP pc33.atlanta.example.com:5060;branch=z9hG4bK776asdhds\r\n" +
+			"Via: SIP/2.0/UDP proxy.example.com;branch=z9hG4bKother\r\n" +
+			"Max-Forwards: 70\r\n" +
+			"To: Bob <sip:bob@biloxi.example.com>\r\n" +
+			"From: \"Alice; the one\" <sip:alice@atlanta.example.com;tag=uri>;tag=1928301774\r\n" +
+			"Call-ID: a84b4c76e66710@pc33.atlanta.example.com\r\n" +
+			"CSeq: 314159 INVITE\r\n" +
+			"Content-Length: 0\r\n" +
+			"\r\n";
+
+	private MessageKeyExtractor extractor;
+
+	@Before
+	public void setUp() throws Exception {
+		extractor = new MessageKeyExtractor();
+	}
+
+	@Test
+	public void testRequest() {
+		assertTrue(extractor.extract(INVITE.getBytes()));
+		assertTrue(extractor.isRequest());
+		assertEquals("INVITE", get(extractor.getMethodStart(), extractor.getMethodEnd()));
+		assertEquals(MessageKeyExtractor.NOT_FOUND, extractor.getStatusCode());
+		assertEquals("a84b4c76e66710@pc33.atlanta.example.com", get(extractor.getCallIdStart(), extractor.getCallIdEnd()));
+		assertEquals(314159, extractor.getCSeqNumber());
+		assertEquals("INVITE", get(extractor.getCSeqMethodStart(), extractor.getCSeqMethodEnd()));
+		// the top Via only
+		assertEquals("pc33.atlanta.example.com:5060", get(extractor.getViaSentByStart(), extractor.getViaSentByEnd()));
+		assertEquals("z9hG4bK776asdhds", get(extractor.getViaBranchStart(), extractor.getViaBranchEnd()));
+		// the tag of the header, not the one in the URI nor in the display name
+		assertEquals("1928301774", get(extractor.getFromTagStart(), extractor.getFromTagEnd()));
+		assertEquals(MessageKeyExtractor.NOT_FOUND, extractor.getToTagStart());
+	}
+
+	@Test
+	public void testCompactFormsAndFolding() {
+		String message = 
+				"SIP/2.0 180 Ringing\n" +
+				"v:   SIP/2.0 / UDP\n" +
+				" \tpc33.atlanta.example.com ; branch = z9hG4bK776asdhds ;received=192.0.2.1\n" +
+				"t: Bob <sip:bob@biloxi.example.com>\n" +
+				"\t;tag=a6c85cf\n" +
+				"f: <sip:alice@atlanta.example.com>;tag=1928301774\n" +
+				"i:a84b4c76e66710@pc33.atlanta.example.com\n" +
+				"CSEQ : 314159\n" +
+				"  INVITE\n" +
+				"l: 0\n" +
+				"\n";
+		assertTrue(extractor.extract(message.getBytes()));
+		assertFalse(extractor.isRequest());
+		assertEquals(180, extractor.getStatusCode());
+		assertEquals("a84b4c76e66710@pc33.atlanta.example.com", get(extractor.getCallIdStart(), extractor.getCallIdEnd()));
+		assertEquals(314159, extractor.getCSeqNumber());
+		assertEquals("INVITE", get(extractor.getCSeqMethodStart(), extractor.getCSeqMethodEnd()));
+		assertEquals("pc33.atlanta.example.com", get(extractor.getViaSentByStart(), extractor.getViaSentByEnd()));
+		assertEquals("z9hG4bK776asdhds", get(extractor.getViaBranchStart(), extractor.getViaBranchEnd()));
+		assertEquals("a6c85cf", get(extractor.getToTagStart(), extractor.getToTagEnd()));
+		assertEquals("1928301774", get(extractor.getFromTagStart(), extractor.getFromTagEnd()));
+	}
+
+	@Test
+	public void testCompactFormHashesMatchLongForm() {
+		String compact = INVITE.replace("Via:", "v:").replace("To:", "t:").replace("From:", "f:")
+				.replace("Call-ID:", "i:").replace("Content-Length:", "l:").replace("\r\n", "\n");
+		assertTrue(extractor.extract(INVITE.getBytes()));
+		long callIdHash = extractor.getCallIdHash();
+		long transactionHash = extractor.getTransactionHash();
+		long fromTagHash = extractor.getFromTagHash();
+		assertTrue(transactionHash != 0);
+		assertTrue(extractor.extract(compact.getBytes()));
+		assertEquals(callIdHash, extractor.getCallIdHash());
+		assertEquals(transactionHash, extractor.getTransactionHash());
+		assertEquals(fromTagHash, extractor.getFromTagHash());
+	}
+
+	@Test
+	public void testAckMatchesInviteTransaction() {
+		assertTrue(extractor.extract(INVITE.getBytes()));
+		long transactionHash = extractor.getTransactionHash();
+		String ack = INVITE.replace("INVITE sip:", "ACK sip:").replace("314159 INVITE", "314159 ACK");
+		assertTrue(extractor.extract(ack.getBytes()));
+		assertEquals(transactionHash, extractor.getTransactionHash());
+		String bye = INVITE.replace("INVITE sip:", "BYE sip:").replace("314159 INVITE", "314160 BYE");
+		assertTrue(extractor.extract(bye.getBytes()));
+		assertTrue(transactionHash != extractor.getTransactionHash());
+	}
+
+	@Test
+	public void testRange() {
+		String keepAlive = "\r\n\r\n";
+		byte[] buffer = (keepAlive + INVITE + "garbage").getBytes();
+		assertFalse(extractor.extract(buffer, 0, keepAlive.length()));
+		assertTrue(extractor.extract(buffer, keepAlive.length(), INVITE.length()));
+		assertEquals("INVITE", new String(buffer, extractor.getMethodStart(), extractor.getMethodEnd() - extractor.getMethodStart()));
+		// the message is cut before its Call-ID
+		int callId = INVITE.indexOf("Call-ID");
+		assertFalse(extractor.extract(buffer, keepAlive.length(), callId));
+	}
+
+	@Test
+	public void testNoBranchCookie() {
+		String rfc2543 = INVITE.replace("branch=z9hG4bK776asdhds", "branch=776asdhds");
+		assertTrue(extractor.extract(rfc2543.getBytes()));
+		assertEquals("776asdhds", get(extractor.getViaBranchStart(), extractor.getViaBranchEnd()));
+		assertEquals(0, extractor.getTransactionHash());
+	}
+
+	private String get(int start, int end) {
+		assertTrue("not found", start != MessageKeyExtractor.NOT_FOUND);
+		return new String(extractor.getBuffer(), start, end - start);
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2013, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package gov.nist.javax.sip.parser.chars;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Feeds {@link StreamFramer} a stream of messages and keep alives cut in chunks of every size, 
+ * and checks the messages handed to the parser and the limits on the announced sizes.
+ */
+public class StreamFramerTest {
+
+	private static final String INVITE = 
+			"INVITE sip:bob@biloxi.example.com SIP/2.0\r\n" +
+			"Via: SIP/2.0/TCP pc33.atlanta.example.com;branch=z9hG4bK776asdhds\r\n" +
+			"Call-ID: a84b4c76e66710\r\n" +
+			"Content-Type: application/sdp\r\n" +
+			"Content-Length: 14\r\n" +
+			"\r\n" +
+			"v=0\r\no=alice\r\n";
+	private static final String RINGING = 
+			"SIP/2.0 180 Ringing\r\n" +
+			"l : 3\r\n" +
+			"X-Length: 99\r\n" +
+			"\r\n" +
+			"abc";
+	// no Content-Length, no body and LF only line ends
+	private static final String OPTIONS = 
+			"OPTIONS sip:bob@biloxi.example.com SIP/2.0\n" +
+			"Call-ID: 1\n" +
+			"\n";
+	private static final String STREAM = "\r\n\r\n" + INVITE + RINGING + "\r\n\r\n" + OPTIONS + "\r\n";
+
+	private RecordingParser parser;
+	private RecordingListener listener;
+
+	@Before
+	public void setUp() throws Exception {
+		parser = new RecordingParser();
+		listener = new RecordingListener();
+	}
+
+	@Test
+	public void testSeveralMessagesPerRead() throws ParseException {
+		StreamFramer framer = new StreamFramer(parser, listener, 0);
+		framer.frame(ByteBuffer.wrap(STREAM.getBytes()));
+		assertEquals(Arrays.asList(INVITE, RINGING, OPTIONS), parser.messages);
+		assertEquals(3, listener.messages);
+		assertEquals(2, listener.keepAlives);
+		// the trailing CRLF is half a keep alive, nothing is pending
+		assertEquals(0, framer.getPendingBytes());
+	}
+
+	@Test
+	public void testSplitReads() throws ParseException {
+		byte[] bytes = STREAM.getBytes();
+		for (int chunk = 1; chunk <= bytes.length; chunk++) {
+			parser = new RecordingParser();
+			listener = new RecordingListener();
+			StreamFramer framer = new StreamFramer(parser, listener, 0);
+			for (int i = 0; i < bytes.length; i += chunk) {
+				framer.frame(ByteBuffer.wrap(bytes, i, Math.min(chunk, bytes.length - i)));
+			}
+			assertEquals("chunks of " + chunk, Arrays.asList(INVITE, RINGING, OPTIONS), parser.messages);
+			assertEquals("chunks of " + chunk, 2, listener.keepAlives);
+			assertEquals("chunks of " + chunk, 0, framer.getPendingBytes());
+		}
+	}
+
+	@Test
+	public void testPendingBytes() throws ParseException {
+		StreamFramer framer = new StreamFramer(parser, listener, 0);
+		int cut = INVITE.length() - 5;
+		framer.frame(ByteBuffer.wrap((RINGING + INVITE.substring(0, cut)).getBytes()));
+		assertEquals(Arrays.asList(RINGING), parser.messages);
+		assertEquals(cut, framer.getPendingBytes());
+		framer.frame(ByteBuffer.wrap(INVITE.substring(cut).getBytes()));
+		assertEquals(Arrays.asList(RINGING, INVITE), parser.messages);
+		assertEquals(0, framer.getPendingBytes());
+	}
+
+	@Test
+	public void testBodyLargerThanBuffer() throws ParseException {
+		char[] body = new char[20000];
+		Arrays.fill(body, 'x');
+		String message = "MESSAGE sip:bob@biloxi.example.com SIP/2.0\r\nContent-Length: 20000\r\n\r\n" + new String(body);
+		StreamFramer framer = new StreamFramer(parser, listener, 0);
+		byte[] bytes = message.getBytes();
+		for (int i = 0; i < bytes.length; i += 1500) {
+			framer.frame(ByteBuffer.wrap(bytes, i, Math.min(1500, bytes.length - i)));
+		}
+		assertEquals(Arrays.asList(message), parser.messages);
+	}
+
+	@Test
+	public void testBadContentLength() {
+		for (String contentLength : new String[] { "x", "", "1 2", "-1", "99999999999" }) {
+			assertRejected(new StreamFramer(parser, listener, 0), 
+					"INVITE sip:bob@biloxi.example.com SIP/2.0\r\nContent-Length: " + contentLength + "\r\n\r\n");
+		}
+		assertRejected(new StreamFramer(parser, listener, 0), 
+				"INVITE sip:bob@biloxi.example.com SIP/2.0\r\nContent-Length: 1\r\nl: 2\r\n\r\n");
+	}
+
+	@Test
+	public void testMaxMessageSize() throws ParseException {
+		StreamFramer framer = new StreamFramer(parser, listener, INVITE.length());
+		framer.frame(ByteBuffer.wrap(INVITE.getBytes()));
+		assertEquals(1, parser.messages.size());
+		// rejected on the announced length, before the body is received
+		assertRejected(framer, "INVITE sip:bob@biloxi.example.com SIP/2.0\r\nContent-Length: 1000\r\n\r\n");
+		// headers never ending
+		framer = new StreamFramer(parser, listener, 100);
+		char[] header = new char[200];
+		Arrays.fill(header, 'x');
+		assertRejected(framer, "INVITE sip:bob@biloxi.example.com SIP/2.0\r\nX-Long: " + new String(header));
+	}
+
+	@Test
+	public void testHugeContentLengthWithoutLimit() throws ParseException {
+		StreamFramer framer = new StreamFramer(parser, listener, 0);
+		// the buffer is not sized from the announced length, only what was received is kept
+		String headers = "INVITE sip:bob@biloxi.example.com SIP/2.0\r\nContent-Length: 1500000000\r\n\r\n";
+		framer.frame(ByteBuffer.wrap((headers + "abc").getBytes()));
+		assertEquals(headers.length() + 3, framer.getPendingBytes());
+		// the end of the message doesn't fit in an int anymore
+		assertRejected(new StreamFramer(parser, listener, 0), 
+				"INVITE sip:bob@biloxi.example.com SIP/2.0\r\nContent-Length: " + Integer.MAX_VALUE + "\r\n\r\n");
+	}
+
+	private void assertRejected(StreamFramer framer, String stream) {
+		try {
+			framer.frame(ByteBuffer.wrap(stream.getBytes()));
+			fail("expected a ParseException for " + stream);
+		} catch (ParseException e) {
+			// the connection would be closed
+		}
+	}
+
+	private static class RecordingParser extends CharsMsgParser {
+		final List<String> messages = new ArrayList<String>();
+
+		@Override
+		public ParseResult parse(byte[] msgBuffer, boolean readBody, boolean strict) {
+			messages.add(new String(msgBuffer));
+			return null;
+		}
+	}
+
+	private static class RecordingListener implements FramedMessageListener {
+		int messages;
+		int keepAlives;
+
+		public void messageFramed(ParseResult result) {
+			messages++;
+		}
+
+		public void keepAliveReceived() {
+			keepAlives++;
+		}
+	}
+}
@@ -0,0 +1,515 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2013, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.mobicents.ext.javax.sip.timers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import gov.nist.javax.sip.stack.SIPStackTimerTask;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks on which threads {@link HashedWheelSipTimer} runs its tasks depending on their 
+ * thread hash and on its configuration, and that cancelled tasks don't run.
+ */
+public class HashedWheelSipTimerTest {
+
+	private static final long WAIT = 5000;
+
+	private HashedWheelSipTimer timer;
+	private Properties properties;
+
+	@Before
+	public void setUp() throws Exception {
+		timer = new HashedWheelSipTimer();
+		properties = new Properties();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if(timer.isStarted()) {
+			timer.stop();
+		}
+	}
+
+	@Test
+	public void testSameThreadHashSameShard() throws InterruptedException {
+		properties.setProperty(HashedWheelSipTimer.SHARDS, "4");
+		timer.start(null, properties);
+		CountDownLatch latch = new CountDownLatch(10);
+		List<RecordingTask> tasks = new CopyOnWriteArrayList<RecordingTask>();
+		for (int i = 0; i < 10; i++) {
+			RecordingTask task = new RecordingTask("call-1", latch);
+			tasks.add(task);
+			timer.schedule(task, 10 * (i % 3));
+		}
+		assertTrue(latch.await(WAIT, TimeUnit.MILLISECONDS));
+		Set<String> threads = new HashSet<String>();
+		for (RecordingTask task : tasks) {
+			threads.addAll(task.threads);
+		}
+		assertEquals(threads.toString(), 1, threads.size());
+		assertTrue(threads.toString(), threads.iterator().next().startsWith("sip_timer_"));
+	}
+
+	@Test
+	public void testThreadHashesSpreadOverShards() throws InterruptedException {
+		properties.setProperty(HashedWheelSipTimer.SHARDS, "4");
+		timer.start(null, properties);
+		Set<String> threads = runAll(100, true);
+		assertEquals(threads.toString(), 4, threads.size());
+	}
+
+	@Test
+	public void testNoThreadHashRoundRobin() throws InterruptedException {
+		properties.setProperty(HashedWheelSipTimer.SHARDS, "3");
+		timer.start(null, properties);
+		Set<String> threads = runAll(30, false);
+		assertEquals(threads.toString(), 3, threads.size());
+	}
+
+	@Test
+	public void testSingleShard() throws InterruptedException {
+		timer.start(null, properties);
+		Set<String> threads = runAll(20, true);
+		assertEquals(threads.toString(), 1, threads.size());
+		assertTrue(threads.toString(), threads.iterator().next().startsWith("sip_timer"));
+	}
+
+	@Test
+	public void testTasksRunOnWorkers() throws InterruptedException {
+		properties.setProperty(HashedWheelSipTimer.SHARDS, "2");
+		properties.setProperty(HashedWheelSipTimer.WORKERS, "3");
+		timer.start(null, properties);
+		Set<String> threads = runAll(60, true);
+		assertEquals(threads.toString(), 3, threads.size());
+		for (String thread : threads) {
+			assertTrue(thread, thread.startsWith("sip_timer_worker_"));
+		}
+		assertEquals(60, timer.getWorkerExecutedTasks());
+		assertEquals(0, timer.getWorkerQueueSize());
+	}
+
+	@Test
+	public void testSameThreadHashInOrderOnOneWorker() throws InterruptedException {
+		properties.setProperty(HashedWheelSipTimer.SHARDS, "2");
+		properties.setProperty(HashedWheelSipTimer.WORKERS, "4");
+		timer.start(null, properties);
+		int count = 10;
+		CountDownLatch latch = new CountDownLatch(count);
+		final List<Integer> order = new CopyOnWriteArrayList<Integer>();
+		Set<String> threads = new HashSet<String>();
+		List<RecordingTask> tasks = new CopyOnWriteArrayList<RecordingTask>();
+		for (int i = count - 1; i >= 0; i--) {
+			final int rank = i;
+			RecordingTask task = new RecordingTask("call-1", latch) {
+				@Override
+				public void runTask() {
+					order.add(rank);
+					super.runTask();
+				}
+			};
+			tasks.add(task);
+			// scheduled in reverse order, several ticks apart
+			timer.schedule(task, 30 * i);
+		}
+		assertTrue(latch.await(WAIT, TimeUnit.MILLISECONDS));
+		for (RecordingTask task : tasks) {
+			threads.addAll(task.threads);
+		}
+		assertEquals(threads.toString(), 1, threads.size());
+		for (int i = 0; i < count; i++) {
+			assertEquals(order.toString(), i, order.get(i).intValue());
+		}
+	}
+
+	@Test
+	public void testSlowTaskDoesNotBlockOtherWorkers() throws InterruptedException {
+		properties.setProperty(HashedWheelSipTimer.WORKERS, "2");
+		timer.start(null, properties);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		timer.schedule(new RecordingTask("slow", null) {
+			@Override
+			public void runTask() {
+				blocked.countDown();
+				try {
+					release.await(WAIT, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 0);
+		assertTrue(blocked.await(WAIT, TimeUnit.MILLISECONDS));
+		// some of these calls go to the other worker and run while the slow task blocks
+		CountDownLatch others = new CountDownLatch(1);
+		for (int i = 0; i < 20; i++) {
+			timer.schedule(new RecordingTask("call-" + i, others), 10);
+		}
+		try {
+			assertTrue(others.await(WAIT, TimeUnit.MILLISECONDS));
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void testPeriodicOnSameWorkerAsOneShot() throws InterruptedException {
+		properties.setProperty(HashedWheelSipTimer.SHARDS, "2");
+		properties.setProperty(HashedWheelSipTimer.WORKERS, "3");
+		timer.start(null, properties);
+		RecordingTask periodic = new RecordingTask("call-1", new CountDownLatch(3));
+		RecordingTask oneShot = new RecordingTask("call-1", new CountDownLatch(1));
+		timer.scheduleWithFixedDelay(periodic, 10, 10);
+		timer.schedule(oneShot, 20);
+		assertTrue(periodic.latch.await(WAIT, TimeUnit.MILLISECONDS));
+		assertTrue(oneShot.latch.await(WAIT, TimeUnit.MILLISECONDS));
+		assertTrue(timer.cancel(periodic));
+		Set<String> threads = new HashSet<String>(periodic.threads);
+		threads.addAll(oneShot.threads);
+		assertEquals(threads.toString(), 1, threads.size());
+		assertTrue(threads.toString(), threads.iterator().next().startsWith("sip_timer_worker_"));
+	}
+
+	@Test
+	public void testPeriodicOnSameThreadAsOneShot() throws InterruptedException {
+		properties.setProperty(HashedWheelSipTimer.SHARDS, "2");
+		timer.start(null, properties);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicBoolean overlapped = new AtomicBoolean();
+		int count = 10;
+		CountDownLatch latch = new CountDownLatch(count);
+		CountDownLatch periodicLatch = new CountDownLatch(5);
+		List<RecordingTask> tasks = new CopyOnWriteArrayList<RecordingTask>();
+		for (int i = 0; i <= count; i++) {
+			RecordingTask task = new RecordingTask("call-1", i == count ? periodicLatch : latch) {
+				@Override
+				public void runTask() {
+					if(running.incrementAndGet() > 1) {
+						overlapped.set(true);
+					}
+					try {
+						Thread.sleep(2);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					running.decrementAndGet();
+					super.runTask();
+				}
+			};
+			tasks.add(task);
+			if(i == count) {
+				timer.scheduleWithFixedDelay(task, 5, 5);
+			} else {
+				timer.schedule(task, 10 * i);
+			}
+		}
+		assertTrue(latch.await(WAIT, TimeUnit.MILLISECONDS));
+		assertTrue(periodicLatch.await(WAIT, TimeUnit.MILLISECONDS));
+		assertTrue(timer.cancel(tasks.get(count)));
+		// the periodic and one shot timers of a call never run at the same time
+		assertFalse(overlapped.get());
+		Set<String> threads = new HashSet<String>();
+		for (RecordingTask task : tasks) {
+			threads.addAll(task.threads);
+		}
+		assertEquals(threads.toString(), 1, threads.size());
+		assertTrue(threads.toString(), threads.iterator().next().startsWith("sip_timer_"));
+	}
+
+	@Test
+	public void testPeriodicSpreadOverShards() throws InterruptedException {
+		properties.setProperty(HashedWheelSipTimer.SHARDS, "3");
+		timer.start(null, properties);
+		CountDownLatch latch = new CountDownLatch(30);
+		List<RecordingTask> tasks = new CopyOnWriteArrayList<RecordingTask>();
+		for (int i = 0; i < 30; i++) {
+			RecordingTask task = new RecordingTask(null, latch);
+			tasks.add(task);
+			timer.scheduleWithFixedDelay(task, 10, 1000);
+		}
+		assertTrue(latch.await(WAIT, TimeUnit.MILLISECONDS));
+		Set<String> threads = new HashSet<String>();
+		for (RecordingTask task : tasks) {
+			threads.addAll(task.threads);
+			timer.cancel(task);
+		}
+		assertEquals(threads.toString(), 3, threads.size());
+		for (String thread : threads) {
+			assertTrue(thread, thread.startsWith("sip_timer_"));
+		}
+	}
+
+	@Test
+	public void testPeriodicCancel() throws InterruptedException {
+		testPeriodicCancel("0");
+	}
+
+	@Test
+	public void testPeriodicCancelOnWorkers() throws InterruptedException {
+		testPeriodicCancel("2");
+	}
+
+	private void testPeriodicCancel(String workers) throws InterruptedException {
+		properties.setProperty(HashedWheelSipTimer.WORKERS, workers);
+		timer.start(null, properties);
+		RecordingTask task = new RecordingTask("call-1", new CountDownLatch(3));
+		timer.scheduleWithFixedDelay(task, 10, 10);
+		assertTrue(task.latch.await(WAIT, TimeUnit.MILLISECONDS));
+		assertTrue(timer.cancel(task));
+		// lets a run that started before the cancel complete
+		Thread.sleep(20);
+		int runs = task.threads.size();
+		Thread.sleep(100);
+		assertEquals(runs, task.threads.size());
+		
+		RecordingTask cancelled = new RecordingTask("call-2", null);
+		timer.scheduleWithFixedDelay(cancelled, 50, 10);
+		assertTrue(timer.cancel(cancelled));
+		Thread.sleep(100);
+		assertEquals(0, cancelled.threads.size());
+	}
+
+	@Test
+	public void testSlowPeriodicDoesNotPileUp() throws InterruptedException {
+		properties.setProperty(HashedWheelSipTimer.WORKERS, "1");
+		timer.start(null, properties);
+		RecordingTask task = new RecordingTask("call-1", null) {
+			@Override
+			public void runTask() {
+				super.runTask();
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		timer.scheduleWithFixedDelay(task, 0, 5);
+		for (int i = 0; i < 10; i++) {
+			Thread.sleep(30);
+			// the periods elapsed while the task runs are skipped, not queued
+			assertTrue(timer.getWorkerQueueSize() <= 1);
+		}
+		timer.cancel(task);
+		assertTrue(task.threads.toString(), task.threads.size() <= 300 / 50 + 1);
+	}
+
+	@Test
+	public void testLongTimerCascadesToNearWheel() throws InterruptedException {
+		// the near wheel takes the tasks due within 4 far ticks, 80 ms
+		properties.setProperty(HashedWheelSipTimer.FAR_TICK_DURATION, "20");
+		timer.start(null, properties);
+		final long[] fired = new long[1];
+		RecordingTask task = new RecordingTask("call-1", new CountDownLatch(1)) {
+			@Override
+			public void runTask() {
+				fired[0] = System.nanoTime();
+				super.runTask();
+			}
+		};
+		long scheduled = System.nanoTime();
+		timer.schedule(task, 200);
+		assertTrue(timer.isInFarWheel(task));
+		assertTrue(task.latch.await(WAIT, TimeUnit.MILLISECONDS));
+		assertFalse(timer.isInFarWheel(task));
+		long delay = TimeUnit.NANOSECONDS.toMillis(fired[0] - scheduled);
+		// never early, although the far wheel hands it over a far tick ahead
+		assertTrue("fired after " + delay + " ms", delay >= 199);
+		assertTrue(task.threads.toString(), task.threads.get(0).startsWith("sip_timer"));
+	}
+
+	@Test
+	public void testCancelInFarWheel() throws InterruptedException {
+		properties.setProperty(HashedWheelSipTimer.FAR_TICK_DURATION, "20");
+		timer.start(null, properties);
+		RecordingTask task = new RecordingTask("call-1", null);
+		timer.schedule(task, 200);
+		Thread.sleep(50);
+		assertTrue(timer.isInFarWheel(task));
+		assertTrue(timer.cancel(task));
+		Thread.sleep(250);
+		assertEquals(0, task.threads.size());
+	}
+
+	@Test
+	public void testCancelAfterCascade() throws InterruptedException {
+		properties.setProperty(HashedWheelSipTimer.FAR_TICK_DURATION, "20");
+		properties.setProperty(HashedWheelSipTimer.TICK_DURATION, "5");
+		timer.start(null, properties);
+		RecordingTask task = new RecordingTask("call-1", null);
+		timer.schedule(task, 300);
+		// the far wheel hands the task over up to 20 ms before it is due
+		long giveUp = System.currentTimeMillis() + WAIT;
+		while (timer.isInFarWheel(task) && System.currentTimeMillis() < giveUp) {
+			Thread.sleep(1);
+		}
+		assertFalse(timer.isInFarWheel(task));
+		// the task may have been handed over when already due and fired
+		boolean cancelled = timer.cancel(task);
+		Thread.sleep(100);
+		assertEquals(task.threads.toString(), cancelled ? 0 : 1, task.threads.size());
+	}
+
+	@Test
+	public void testFarWheelDisabled() throws InterruptedException {
+		properties.setProperty(HashedWheelSipTimer.FAR_TICK_DURATION, "0");
+		timer.start(null, properties);
+		RecordingTask task = new RecordingTask("call-1", new CountDownLatch(1));
+		timer.schedule(task, 100);
+		assertTrue(task.latch.await(WAIT, TimeUnit.MILLISECONDS));
+		assertTrue(task.threads.toString(), task.threads.get(0).startsWith("sip_timer"));
+	}
+
+	@Test
+	public void testCounters() throws InterruptedException {
+		timer.start(null, properties);
+		CountDownLatch latch = new CountDownLatch(30);
+		List<RecordingTask> cancelled = new CopyOnWriteArrayList<RecordingTask>();
+		List<RecordingTask> firing = new CopyOnWriteArrayList<RecordingTask>();
+		for (int i = 0; i < 50; i++) {
+			RecordingTask task = new RecordingTask("call-" + i, latch);
+			if(i < 30) {
+				firing.add(task);
+			} else {
+				timer.schedule(task, 10000);
+				cancelled.add(task);
+			}
+		}
+		RecordingTask periodic = new RecordingTask(null, null);
+		timer.scheduleWithFixedDelay(periodic, 10000, 10);
+		// counted before any task can fire
+		assertEquals(21, timer.getScheduledTasks());
+		assertEquals(21, timer.getPendingTasks());
+		for (RecordingTask task : firing) {
+			timer.schedule(task, 10);
+		}
+		assertEquals(51, timer.getScheduledTasks());
+		for (RecordingTask task : cancelled) {
+			assertTrue(timer.cancel(task));
+			// a second cancel is not counted
+			timer.cancel(task);
+		}
+		assertTrue(latch.await(WAIT, TimeUnit.MILLISECONDS));
+		assertEquals(30, timer.getFiredTasks());
+		assertEquals(20, timer.getCancelledTasks());
+		// the periodic task is pending until cancelled
+		assertEquals(1, timer.getPendingTasks());
+		assertTrue(timer.cancel(periodic));
+		timer.cancel(periodic);
+		assertEquals(21, timer.getCancelledTasks());
+		assertEquals(0, timer.getPendingTasks());
+		String[] counters = timer.getTaskCounters();
+		assertEquals(1, counters.length);
+		assertTrue(counters[0], counters[0].startsWith(RecordingTask.class.getName() + " scheduled=51, periodic=1, cancelled=21, fired=30"));
+		
+		timer.resetStatistics();
+		// the histograms are cleared, the pending count stays right
+		assertEquals(0, timer.getPendingTasks());
+		assertTrue(timer.getLatenessHistograms()[0], timer.getLatenessHistograms()[0].contains("count=0"));
+	}
+
+	@Test
+	public void testCancelWhileCascadingCounted() throws InterruptedException {
+		properties.setProperty(HashedWheelSipTimer.FAR_TICK_DURATION, "20");
+		properties.setProperty(HashedWheelSipTimer.SHARDS, "2");
+		timer.start(null, properties);
+		int count = 2000;
+		List<RecordingTask> tasks = new CopyOnWriteArrayList<RecordingTask>();
+		for (int i = 0; i < count; i++) {
+			RecordingTask task = new RecordingTask(null, null);
+			tasks.add(task);
+			timer.schedule(task, 200);
+		}
+		// cancels every other task while they move from the far wheel to the near wheel
+		Thread.sleep(175);
+		int cancelled = 0;
+		for (int i = 0; i < count; i += 2) {
+			if(timer.cancel(tasks.get(i))) {
+				cancelled++;
+			}
+		}
+		Thread.sleep(300);
+		assertEquals(count, timer.getScheduledTasks());
+		assertEquals(cancelled, timer.getCancelledTasks());
+		assertEquals(count - cancelled, timer.getFiredTasks());
+		assertEquals(0, timer.getPendingTasks());
+		int ran = 0;
+		for (RecordingTask task : tasks) {
+			ran += task.threads.size();
+		}
+		assertTrue(ran <= count - cancelled);
+	}
+
+	/**
+	 * @return the names of the threads the tasks ran on
+	 */
+	private Set<String> runAll(int count, boolean withThreadHash) throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(count);
+		List<RecordingTask> tasks = new CopyOnWriteArrayList<RecordingTask>();
+		for (int i = 0; i < count; i++) {
+			RecordingTask task = new RecordingTask(withThreadHash ? "call-" + i : null, latch);
+			tasks.add(task);
+			timer.schedule(task, 10);
+		}
+		assertTrue(latch.await(WAIT, TimeUnit.MILLISECONDS));
+		Set<String> threads = new HashSet<String>();
+		for (RecordingTask task : tasks) {
+			threads.addAll(task.threads);
+		}
+		return threads;
+	}
+
+	static class RecordingTask extends SIPStackTimerTask {
+		final Object threadHash;
+		final CountDownLatch latch;
+		final List<String> threads = new CopyOnWriteArrayList<String>();
+
+		RecordingTask(Object threadHash, CountDownLatch latch) {
+			this.threadHash = threadHash;
+			this.latch = latch;
+		}
+
+		@Override
+		public void runTask() {
+			threads.add(Thread.currentThread().getName());
+			if(latch != null) {
+				latch.countDown();
+			}
+		}
+
+		@Override
+		public Object getThreadHash() {
+			return threadHash;
+		}
+	}
+}
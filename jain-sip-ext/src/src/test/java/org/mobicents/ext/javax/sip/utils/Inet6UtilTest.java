@@ -0,0 +1,59 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2013, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package org.mobicents.ext.javax.sip.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the parsing of IP address literals.
+ */
+public class Inet6UtilTest {
+
+	@Test
+	public void testParseIPv4() {
+		assertEquals(0x7F000001L, parse4("127.0.0.1"));
+		assertEquals(0xFFFFFFFFL, parse4("255.255.255.255"));
+		assertEquals(0L, parse4("0.0.0.0"));
+		assertEquals(0xC0A80A01L, Inet6Util.parseIPv4("[192.168.10.1]", 1, 13));
+		for (String invalid : new String[] { "", "1.2.3", "1.2.3.4.5", "256.0.0.1", "1.2.3.", ".1.2.3", 
+				"1..2.3", "1.2.3.4a", "0001.2.3.4", "1.2.3.-4" }) {
+			assertEquals(invalid, Inet6Util.NOT_AN_ADDRESS, parse4(invalid));
+			assertFalse(invalid, Inet6Util.isValidIPV4Address(invalid));
+		}
+	}
+
+	@Test
+	public void testIsValidIP6Address() {
+		assertTrue(Inet6Util.isValidIP6Address("::1"));
+		assertTrue(Inet6Util.isValidIP6Address("[fe80::1]"));
+		assertTrue(Inet6Util.isValidIP6Address("fe80::1%2"));
+		assertTrue(Inet6Util.isValidIP6Address("::ffff:192.168.1.1"));
+		assertFalse(Inet6Util.isValidIP6Address("1::2::3"));
+		assertFalse(Inet6Util.isValidIP6Address("[::1"));
+		assertFalse(Inet6Util.isValidIP6Address("example.com"));
+	}
+
+	private static long parse4(String address) {
+		return Inet6Util.parseIPv4(address, 0, address.length());
+	}
+}